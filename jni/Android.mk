@@ -49,6 +49,12 @@ LOCAL_MODULE    := audioboo-native
 LOCAL_SRC_FILES := \
 	jni/FLACStreamEncoder.cpp \
 	jni/FLACStreamDecoder.cpp \
+	jni/FLACConcatenator.cpp \
+	jni/EncoderOutput.cpp \
+	jni/DecoderInput.cpp \
+	jni/FrameParallelEncoder.cpp \
+	jni/SeekTable.cpp \
+	jni/flac_frames.cpp \
 	jni/util.cpp
 LOCAL_LDLIBS := -llog
 
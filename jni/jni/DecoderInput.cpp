@@ -0,0 +1,493 @@
+/**
+ * This file is part of AudioBoo, an android program for audio blogging.
+ * Copyright (C) 2011 Audioboo Ltd. All rights reserved.
+ *
+ * Author: Jens Finkhaeuser <jens@finkhaeuser.de>
+ *
+ * $Id$
+ **/
+
+#include "DecoderInput.h"
+
+#include <string.h>
+#include <unistd.h>
+#include <fcntl.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+
+#include "util.h"
+
+namespace audioboo {
+namespace jni {
+
+namespace {
+
+/*****************************************************************************
+ * Constants
+ **/
+static char const * const LTAG                          = "DecoderInput/native";
+
+// Method name and signature of java.io.InputStream.read()
+static char const * const InputStream_read              = "read";
+static char const * const InputStream_read_signature    = "([BII)I";
+
+// Size of the chunks read from streams.
+static jint const STREAM_CHUNK_SIZE                     = 16384;
+
+} // anonymous namespace
+
+
+/*****************************************************************************
+ * DecoderInput
+ **/
+DecoderInput::DecoderInput()
+{
+}
+
+
+
+DecoderInput::~DecoderInput()
+{
+}
+
+
+
+/*****************************************************************************
+ * FileInput
+ **/
+FileInput::FileInput()
+  : m_file(NULL)
+{
+}
+
+
+
+FileInput::~FileInput()
+{
+  if (m_file) {
+    fclose(m_file);
+  }
+}
+
+
+
+char const * const
+FileInput::init(char const * path)
+{
+  if (!path) {
+    return "No file name given!";
+  }
+
+  m_file = fopen(path, "r");
+  if (!m_file) {
+    return "Could not open file!";
+  }
+  return NULL;
+}
+
+
+
+DecoderInput::status_t
+FileInput::read(FLAC__byte * buffer, size_t & bytes)
+{
+  bytes = fread(buffer, sizeof(FLAC__byte), bytes, m_file);
+
+  if (ferror(m_file)) {
+    return ERROR;
+  }
+  if (feof(m_file)) {
+    return END_OF_STREAM;
+  }
+  return OK;
+}
+
+
+
+DecoderInput::status_t
+FileInput::seek(FLAC__uint64 offset)
+{
+  if (0 != fseeko(m_file, static_cast<off_t>(offset), SEEK_SET)) {
+    return ERROR;
+  }
+  return OK;
+}
+
+
+
+DecoderInput::status_t
+FileInput::tell(FLAC__uint64 & offset)
+{
+  off_t pos = ftello(m_file);
+  if (pos < 0) {
+    return ERROR;
+  }
+  offset = pos;
+  return OK;
+}
+
+
+
+DecoderInput::status_t
+FileInput::length(FLAC__uint64 & length)
+{
+  struct stat filestats;
+  if (0 != fstat(fileno(m_file), &filestats)) {
+    return ERROR;
+  }
+  length = filestats.st_size;
+  return OK;
+}
+
+
+
+bool
+FileInput::eof()
+{
+  return feof(m_file);
+}
+
+
+
+/*****************************************************************************
+ * MemoryInput
+ **/
+MemoryInput::MemoryInput()
+  : m_data(NULL)
+  , m_size(0)
+  , m_pos(0)
+{
+}
+
+
+
+MemoryInput::~MemoryInput()
+{
+}
+
+
+
+void
+MemoryInput::init(FLAC__byte const * data, size_t size)
+{
+  m_data = data;
+  m_size = size;
+  m_pos = 0;
+}
+
+
+
+DecoderInput::status_t
+MemoryInput::read(FLAC__byte * buffer, size_t & bytes)
+{
+  size_t available = m_size - m_pos;
+  if (bytes > available) {
+    bytes = available;
+  }
+
+  memcpy(buffer, m_data + m_pos, bytes);
+  m_pos += bytes;
+
+  return (m_pos >= m_size) ? END_OF_STREAM : OK;
+}
+
+
+
+DecoderInput::status_t
+MemoryInput::seek(FLAC__uint64 offset)
+{
+  if (offset > m_size) {
+    return ERROR;
+  }
+  m_pos = offset;
+  return OK;
+}
+
+
+
+DecoderInput::status_t
+MemoryInput::tell(FLAC__uint64 & offset)
+{
+  offset = m_pos;
+  return OK;
+}
+
+
+
+DecoderInput::status_t
+MemoryInput::length(FLAC__uint64 & length)
+{
+  length = m_size;
+  return OK;
+}
+
+
+
+bool
+MemoryInput::eof()
+{
+  return m_pos >= m_size;
+}
+
+
+
+/*****************************************************************************
+ * MappedInput
+ **/
+MappedInput::MappedInput()
+  : m_mapping(NULL)
+  , m_mapping_size(0)
+{
+}
+
+
+
+MappedInput::~MappedInput()
+{
+  if (m_mapping) {
+    munmap(m_mapping, m_mapping_size);
+  }
+}
+
+
+
+char const * const
+MappedInput::init(char const * path)
+{
+  if (!path) {
+    return "No file name given!";
+  }
+
+  int fd = open(path, O_RDONLY);
+  if (fd < 0) {
+    return "Could not open file!";
+  }
+
+  struct stat filestats;
+  if (0 != fstat(fd, &filestats) || filestats.st_size <= 0
+      || static_cast<off_t>(static_cast<size_t>(filestats.st_size))
+          != filestats.st_size)
+  {
+    close(fd);
+    return "Could not determine a size to map the file at!";
+  }
+  size_t size = filestats.st_size;
+
+  // The mapping stays valid after the descriptor is closed.
+  void * data = mmap(NULL, size, PROT_READ, MAP_PRIVATE, fd, 0);
+  close(fd);
+  if (MAP_FAILED == data) {
+    return "Could not map file!";
+  }
+  m_mapping = data;
+  m_mapping_size = size;
+
+  // Mostly read front to back, so have the kernel read ahead.
+  madvise(m_mapping, m_mapping_size, MADV_SEQUENTIAL);
+
+  MemoryInput::init(static_cast<FLAC__byte const *>(m_mapping), size);
+  return NULL;
+}
+
+
+
+/*****************************************************************************
+ * BufferInput
+ **/
+BufferInput::BufferInput()
+  : m_vm(NULL)
+  , m_buffer(NULL)
+{
+}
+
+
+
+BufferInput::~BufferInput()
+{
+  JNIEnv * env = NULL;
+  if (m_buffer && JNI_OK == m_vm->GetEnv(reinterpret_cast<void **>(&env),
+        JNI_VERSION_1_4))
+  {
+    env->DeleteGlobalRef(m_buffer);
+  }
+}
+
+
+
+char const * const
+BufferInput::init(JNIEnv * env, jobject buffer, jint offset, jint length)
+{
+  if (!buffer) {
+    return "No buffer given!";
+  }
+
+  FLAC__byte * data = static_cast<FLAC__byte *>(
+      env->GetDirectBufferAddress(buffer));
+  jlong capacity = env->GetDirectBufferCapacity(buffer);
+  if (!data || capacity < 0) {
+    return "Buffer is not a direct buffer!";
+  }
+  if (offset < 0 || length < 0
+      || static_cast<jlong>(offset) + length > capacity)
+  {
+    return "Range exceeds the buffer!";
+  }
+
+  if (JNI_OK != env->GetJavaVM(&m_vm)) {
+    return "Could not obtain JavaVM!";
+  }
+  m_buffer = env->NewGlobalRef(buffer);
+
+  MemoryInput::init(data + offset, length);
+  return NULL;
+}
+
+
+
+/*****************************************************************************
+ * StreamInput
+ **/
+StreamInput::StreamInput()
+  : m_vm(NULL)
+  , m_stream(NULL)
+  , m_read(NULL)
+  , m_chunk(NULL)
+  , m_eof(false)
+{
+}
+
+
+
+StreamInput::~StreamInput()
+{
+  if (!m_vm) {
+    return;
+  }
+
+  JNIEnv * env = get_env();
+  if (env) {
+    if (m_chunk) {
+      env->DeleteGlobalRef(m_chunk);
+    }
+    if (m_stream) {
+      env->DeleteGlobalRef(m_stream);
+    }
+  }
+}
+
+
+
+char const * const
+StreamInput::init(JNIEnv * env, jobject stream)
+{
+  if (!stream) {
+    return "No stream given!";
+  }
+
+  if (JNI_OK != env->GetJavaVM(&m_vm)) {
+    m_vm = NULL;
+    return "Could not obtain JavaVM!";
+  }
+
+  jclass cls = env->GetObjectClass(stream);
+  m_read = env->GetMethodID(cls, InputStream_read, InputStream_read_signature);
+  env->DeleteLocalRef(cls);
+  if (!m_read) {
+    env->ExceptionClear();
+    return "Stream is not a java.io.InputStream!";
+  }
+
+  m_stream = env->NewGlobalRef(stream);
+
+  jbyteArray chunk = env->NewByteArray(STREAM_CHUNK_SIZE);
+  if (!chunk) {
+    env->ExceptionClear();
+    return "Could not create stream buffer!";
+  }
+  m_chunk = static_cast<jbyteArray>(env->NewGlobalRef(chunk));
+  env->DeleteLocalRef(chunk);
+
+  return NULL;
+}
+
+
+
+DecoderInput::status_t
+StreamInput::read(FLAC__byte * buffer, size_t & bytes)
+{
+  JNIEnv * env = get_env();
+  if (!env) {
+    log(ANDROID_LOG_ERROR, LTAG, "Reading from stream on unattached thread!");
+    bytes = 0;
+    return ERROR;
+  }
+
+  jint chunk = (bytes > static_cast<size_t>(STREAM_CHUNK_SIZE))
+    ? STREAM_CHUNK_SIZE : static_cast<jint>(bytes);
+
+  jint read = env->CallIntMethod(m_stream, m_read, m_chunk, 0, chunk);
+  if (env->ExceptionCheck()) {
+    // We report failure through FLAC; the caller sees a decoder error.
+    env->ExceptionDescribe();
+    env->ExceptionClear();
+    log(ANDROID_LOG_ERROR, LTAG, "Stream threw an exception in read()!");
+    bytes = 0;
+    return ERROR;
+  }
+
+  if (read < 0) {
+    m_eof = true;
+    bytes = 0;
+    return END_OF_STREAM;
+  }
+
+  env->GetByteArrayRegion(m_chunk, 0, read,
+      reinterpret_cast<jbyte *>(buffer));
+  bytes = read;
+  return OK;
+}
+
+
+
+DecoderInput::status_t
+StreamInput::seek(FLAC__uint64 offset)
+{
+  return UNSUPPORTED;
+}
+
+
+
+DecoderInput::status_t
+StreamInput::tell(FLAC__uint64 & offset)
+{
+  return UNSUPPORTED;
+}
+
+
+
+DecoderInput::status_t
+StreamInput::length(FLAC__uint64 & length)
+{
+  return UNSUPPORTED;
+}
+
+
+
+bool
+StreamInput::eof()
+{
+  return m_eof;
+}
+
+
+
+JNIEnv *
+StreamInput::get_env()
+{
+  JNIEnv * env = NULL;
+  if (JNI_OK != m_vm->GetEnv(reinterpret_cast<void **>(&env), JNI_VERSION_1_4)) {
+    return NULL;
+  }
+  return env;
+}
+
+}} // namespace audioboo::jni
@@ -0,0 +1,210 @@
+/**
+ * This file is part of AudioBoo, an android program for audio blogging.
+ * Copyright (C) 2011 Audioboo Ltd. All rights reserved.
+ *
+ * Author: Jens Finkhaeuser <jens@finkhaeuser.de>
+ *
+ * $Id$
+ **/
+
+#ifndef AUDIOBOO_JNI_DECODER_INPUT_H
+#define AUDIOBOO_JNI_DECODER_INPUT_H
+
+#include <stdio.h>
+#include <sys/types.h>
+
+#include <jni.h>
+
+#include "FLAC/format.h"
+
+namespace audioboo {
+namespace jni {
+
+/*****************************************************************************
+ * Source of FLAC data for FLACStreamDecoder.
+ **/
+class DecoderInput
+{
+public:
+  enum status_t
+  {
+    OK = 0,
+    END_OF_STREAM,
+    UNSUPPORTED,
+    ERROR,
+  };
+
+  DecoderInput();
+  virtual ~DecoderInput();
+
+  /**
+   * Reads up to bytes bytes into buffer, and stores the number of bytes read
+   * in bytes. Returns END_OF_STREAM once the end of the input is reached;
+   * some data may still have been read then.
+   **/
+  virtual status_t read(FLAC__byte * buffer, size_t & bytes) = 0;
+
+  /**
+   * Seeks to the absolute offset, or reports the current offset or the
+   * total length of the input.
+   **/
+  virtual status_t seek(FLAC__uint64 offset) = 0;
+  virtual status_t tell(FLAC__uint64 & offset) = 0;
+  virtual status_t length(FLAC__uint64 & length) = 0;
+
+  /**
+   * Returns true if the read position is at the end of the input.
+   **/
+  virtual bool eof() = 0;
+};
+
+
+
+/*****************************************************************************
+ * Reads a file via stdio.
+ **/
+class FileInput : public DecoderInput
+{
+public:
+  FileInput();
+  ~FileInput();
+
+  /**
+   * Opens the file; does not take ownership of path. Returns NULL on success,
+   * else an error message.
+   **/
+  char const * const init(char const * path);
+
+  status_t read(FLAC__byte * buffer, size_t & bytes);
+  status_t seek(FLAC__uint64 offset);
+  status_t tell(FLAC__uint64 & offset);
+  status_t length(FLAC__uint64 & length);
+  bool eof();
+
+private:
+  FILE *  m_file;
+};
+
+
+
+/*****************************************************************************
+ * Reads from a region of memory it does not own. Reads are copies out of the
+ * region, and seeking is free.
+ **/
+class MemoryInput : public DecoderInput
+{
+public:
+  MemoryInput();
+  ~MemoryInput();
+
+  /**
+   * Reads from the size bytes at data, which must outlive this object.
+   **/
+  void init(FLAC__byte const * data, size_t size);
+
+  status_t read(FLAC__byte * buffer, size_t & bytes);
+  status_t seek(FLAC__uint64 offset);
+  status_t tell(FLAC__uint64 & offset);
+  status_t length(FLAC__uint64 & length);
+  bool eof();
+
+protected:
+  FLAC__byte const *  m_data;
+  size_t              m_size;
+  size_t              m_pos;
+};
+
+
+
+/*****************************************************************************
+ * Reads a file by mapping it into memory; seeking doesn't touch the file at
+ * all.
+ *
+ * The file is mapped at the size it has when it's opened; data appended
+ * later is not seen.
+ **/
+class MappedInput : public MemoryInput
+{
+public:
+  MappedInput();
+  ~MappedInput();
+
+  /**
+   * Maps the file; does not take ownership of path. Returns NULL on success,
+   * else an error message. Empty files can't be mapped.
+   **/
+  char const * const init(char const * path);
+
+private:
+  void *  m_mapping;
+  size_t  m_mapping_size;
+};
+
+
+
+/*****************************************************************************
+ * Reads from the contents of a direct java.nio.ByteBuffer, which is kept
+ * alive by a global reference.
+ **/
+class BufferInput : public MemoryInput
+{
+public:
+  BufferInput();
+  ~BufferInput();
+
+  /**
+   * Reads length bytes starting at offset in buffer. Returns NULL on success,
+   * else an error message.
+   **/
+  char const * const init(JNIEnv * env, jobject buffer, jint offset,
+      jint length);
+
+private:
+  JavaVM *  m_vm;
+  jobject   m_buffer;
+};
+
+
+
+/*****************************************************************************
+ * Reads from a java.io.InputStream. Streams can't seek, so neither can
+ * decoders reading from them; reads block for as long as the stream does.
+ *
+ * Reading calls back into Java, so it must happen on the thread that called
+ * init(), or another thread attached to the VM.
+ **/
+class StreamInput : public DecoderInput
+{
+public:
+  StreamInput();
+  ~StreamInput();
+
+  /**
+   * Keeps a global reference to stream. Returns NULL on success, else an
+   * error message.
+   **/
+  char const * const init(JNIEnv * env, jobject stream);
+
+  status_t read(FLAC__byte * buffer, size_t & bytes);
+  status_t seek(FLAC__uint64 offset);
+  status_t tell(FLAC__uint64 & offset);
+  status_t length(FLAC__uint64 & length);
+  bool eof();
+
+private:
+  // Returns the current thread's JNIEnv, or NULL if it's not attached.
+  JNIEnv * get_env();
+
+  JavaVM *    m_vm;
+  jobject     m_stream;
+  jmethodID   m_read;
+
+  // Java side buffer that the stream reads into.
+  jbyteArray  m_chunk;
+
+  bool        m_eof;
+};
+
+}} // namespace audioboo::jni
+
+#endif // guard
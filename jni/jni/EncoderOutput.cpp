@@ -0,0 +1,384 @@
+/**
+ * This file is part of AudioBoo, an android program for audio blogging.
+ * Copyright (C) 2011 Audioboo Ltd. All rights reserved.
+ *
+ * Author: Jens Finkhaeuser <jens@finkhaeuser.de>
+ *
+ * $Id$
+ **/
+
+#include "EncoderOutput.h"
+
+#include <stdlib.h>
+#include <string.h>
+
+#include "util.h"
+
+namespace audioboo {
+namespace jni {
+
+namespace {
+
+/*****************************************************************************
+ * Constants
+ **/
+static char const * const LTAG                          = "EncoderOutput/native";
+
+// Method names and signatures of FLACStreamEncoder.Sink
+static char const * const Sink_write                    = "write";
+static char const * const Sink_write_signature          = "(Ljava/nio/ByteBuffer;I)Z";
+static char const * const Sink_seek                     = "seek";
+static char const * const Sink_seek_signature           = "(J)Z";
+static char const * const Sink_tell                     = "tell";
+static char const * const Sink_tell_signature           = "()J";
+
+// Size of the chunks handed to the sink.
+static size_t const SINK_CHUNK_SIZE                     = 16384;
+
+} // anonymous namespace
+
+
+
+/*****************************************************************************
+ * EncoderOutput
+ **/
+EncoderOutput::EncoderOutput()
+  : m_bytes_written(0)
+{
+}
+
+
+
+EncoderOutput::~EncoderOutput()
+{
+}
+
+
+
+bool
+EncoderOutput::flush()
+{
+  return true;
+}
+
+
+
+void
+EncoderOutput::thread_started()
+{
+}
+
+
+
+void
+EncoderOutput::thread_finished()
+{
+}
+
+
+
+FLAC__uint64
+EncoderOutput::bytes_written() const
+{
+  return m_bytes_written;
+}
+
+
+
+/*****************************************************************************
+ * FileOutput
+ **/
+FileOutput::FileOutput()
+  : m_file(NULL)
+{
+}
+
+
+
+FileOutput::~FileOutput()
+{
+  if (m_file) {
+    fclose(m_file);
+  }
+}
+
+
+
+char const * const
+FileOutput::init(char const * path, bool append /* = false */)
+{
+  if (!path) {
+    return "No file name given!";
+  }
+
+  m_file = fopen(path, append ? "r+b" : "w+b");
+  if (!m_file) {
+    return "Could not open the given file for writing!";
+  }
+  if (append && 0 != fseeko(m_file, 0, SEEK_END)) {
+    return "Could not seek to the end of the given file!";
+  }
+  return NULL;
+}
+
+
+
+bool
+FileOutput::write(FLAC__byte const * buffer, size_t bytes)
+{
+  if (bytes != fwrite(buffer, 1, bytes, m_file)) {
+    return false;
+  }
+  m_bytes_written += bytes;
+  return true;
+}
+
+
+
+EncoderOutput::status_t
+FileOutput::seek(FLAC__uint64 offset)
+{
+  if (0 != fseeko(m_file, static_cast<off_t>(offset), SEEK_SET)) {
+    return ERROR;
+  }
+  return OK;
+}
+
+
+
+EncoderOutput::status_t
+FileOutput::tell(FLAC__uint64 & offset)
+{
+  off_t pos = ftello(m_file);
+  if (pos < 0) {
+    return ERROR;
+  }
+  offset = pos;
+  return OK;
+}
+
+
+
+bool
+FileOutput::flush()
+{
+  return (0 == fflush(m_file));
+}
+
+
+
+/*****************************************************************************
+ * SinkOutput
+ **/
+SinkOutput::SinkOutput()
+  : m_vm(NULL)
+  , m_sink(NULL)
+  , m_write(NULL)
+  , m_seek(NULL)
+  , m_tell(NULL)
+  , m_chunk(NULL)
+  , m_chunk_buffer(NULL)
+  , m_can_seek(false)
+{
+}
+
+
+
+SinkOutput::~SinkOutput()
+{
+  if (m_vm) {
+    // We may be destroyed on a thread the VM doesn't know about.
+    JNIEnv * env = get_env();
+    bool attached = false;
+    if (!env && JNI_OK == m_vm->AttachCurrentThread(&env, NULL)) {
+      attached = true;
+    }
+
+    if (env) {
+      if (m_chunk_buffer) {
+        env->DeleteGlobalRef(m_chunk_buffer);
+      }
+      if (m_sink) {
+        env->DeleteGlobalRef(m_sink);
+      }
+    }
+
+    if (attached) {
+      m_vm->DetachCurrentThread();
+    }
+  }
+
+  delete [] m_chunk;
+}
+
+
+
+char const * const
+SinkOutput::init(JNIEnv * env, jobject sink)
+{
+  if (!sink) {
+    return "No sink given!";
+  }
+
+  if (JNI_OK != env->GetJavaVM(&m_vm)) {
+    m_vm = NULL;
+    return "Could not obtain JavaVM!";
+  }
+
+  jclass cls = env->GetObjectClass(sink);
+  m_write = env->GetMethodID(cls, Sink_write, Sink_write_signature);
+  m_seek = env->GetMethodID(cls, Sink_seek, Sink_seek_signature);
+  m_tell = env->GetMethodID(cls, Sink_tell, Sink_tell_signature);
+  env->DeleteLocalRef(cls);
+  if (!m_write || !m_seek || !m_tell) {
+    // NoSuchMethodError has been thrown; we'll throw our own instead.
+    env->ExceptionClear();
+    return "Sink does not implement FLACStreamEncoder.Sink!";
+  }
+
+  m_sink = env->NewGlobalRef(sink);
+
+  m_chunk = new FLAC__byte[SINK_CHUNK_SIZE];
+  jobject buf = env->NewDirectByteBuffer(m_chunk, SINK_CHUNK_SIZE);
+  if (!buf) {
+    env->ExceptionClear();
+    return "Could not create sink buffer!";
+  }
+  m_chunk_buffer = env->NewGlobalRef(buf);
+  env->DeleteLocalRef(buf);
+
+  // Sinks that can't tell their position can't seek either.
+  jlong pos = env->CallLongMethod(m_sink, m_tell);
+  if (check_exception(env, Sink_tell)) {
+    return "Could not query sink position!";
+  }
+  m_can_seek = (pos >= 0);
+
+  return NULL;
+}
+
+
+
+bool
+SinkOutput::write(FLAC__byte const * buffer, size_t bytes)
+{
+  JNIEnv * env = get_env();
+  if (!env) {
+    log(ANDROID_LOG_ERROR, LTAG, "Writing to sink from unattached thread!");
+    return false;
+  }
+
+  while (bytes > 0) {
+    size_t chunk = bytes;
+    if (chunk > SINK_CHUNK_SIZE) {
+      chunk = SINK_CHUNK_SIZE;
+    }
+    memcpy(m_chunk, buffer, chunk);
+
+    jboolean ok = env->CallBooleanMethod(m_sink, m_write, m_chunk_buffer,
+        static_cast<jint>(chunk));
+    if (check_exception(env, Sink_write) || !ok) {
+      return false;
+    }
+
+    buffer += chunk;
+    bytes -= chunk;
+    m_bytes_written += chunk;
+  }
+
+  return true;
+}
+
+
+
+EncoderOutput::status_t
+SinkOutput::seek(FLAC__uint64 offset)
+{
+  if (!m_can_seek) {
+    return UNSUPPORTED;
+  }
+
+  JNIEnv * env = get_env();
+  if (!env) {
+    return ERROR;
+  }
+
+  jboolean ok = env->CallBooleanMethod(m_sink, m_seek,
+      static_cast<jlong>(offset));
+  if (check_exception(env, Sink_seek) || !ok) {
+    return ERROR;
+  }
+  return OK;
+}
+
+
+
+EncoderOutput::status_t
+SinkOutput::tell(FLAC__uint64 & offset)
+{
+  if (!m_can_seek) {
+    return UNSUPPORTED;
+  }
+
+  JNIEnv * env = get_env();
+  if (!env) {
+    return ERROR;
+  }
+
+  jlong pos = env->CallLongMethod(m_sink, m_tell);
+  if (check_exception(env, Sink_tell) || pos < 0) {
+    return ERROR;
+  }
+  offset = pos;
+  return OK;
+}
+
+
+
+void
+SinkOutput::thread_started()
+{
+  JNIEnv * env = NULL;
+  if (JNI_OK != m_vm->AttachCurrentThread(&env, NULL)) {
+    log(ANDROID_LOG_ERROR, LTAG, "Could not attach thread to JavaVM!");
+  }
+}
+
+
+
+void
+SinkOutput::thread_finished()
+{
+  m_vm->DetachCurrentThread();
+}
+
+
+
+JNIEnv *
+SinkOutput::get_env()
+{
+  JNIEnv * env = NULL;
+  if (JNI_OK != m_vm->GetEnv(reinterpret_cast<void **>(&env), JNI_VERSION_1_4)) {
+    return NULL;
+  }
+  return env;
+}
+
+
+
+bool
+SinkOutput::check_exception(JNIEnv * env, char const * method)
+{
+  if (!env->ExceptionCheck()) {
+    return false;
+  }
+
+  // There's nobody to pass the exception to on the writer thread, and on the
+  // JNI thread we report failure through FLAC instead.
+  env->ExceptionDescribe();
+  env->ExceptionClear();
+  log(ANDROID_LOG_ERROR, LTAG, "Sink threw an exception in %s()!", method);
+  return true;
+}
+
+}} // namespace audioboo::jni
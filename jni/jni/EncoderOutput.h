@@ -0,0 +1,149 @@
+/**
+ * This file is part of AudioBoo, an android program for audio blogging.
+ * Copyright (C) 2011 Audioboo Ltd. All rights reserved.
+ *
+ * Author: Jens Finkhaeuser <jens@finkhaeuser.de>
+ *
+ * $Id$
+ **/
+
+#ifndef AUDIOBOO_JNI_ENCODER_OUTPUT_H
+#define AUDIOBOO_JNI_ENCODER_OUTPUT_H
+
+#include <stdio.h>
+
+#include <jni.h>
+
+#include "FLAC/format.h"
+
+namespace audioboo {
+namespace jni {
+
+/*****************************************************************************
+ * Destination for encoded FLAC data. Seeking is optional; without it,
+ * STREAMINFO cannot be updated once encoding is finished.
+ *
+ * Outputs are only ever used by one thread at a time, but not necessarily
+ * always the same thread.
+ **/
+class EncoderOutput
+{
+public:
+  enum status_t
+  {
+    OK = 0,
+    UNSUPPORTED,
+    ERROR,
+  };
+
+  EncoderOutput();
+  virtual ~EncoderOutput();
+
+  /**
+   * Writes bytes from buffer; returns false on errors.
+   **/
+  virtual bool write(FLAC__byte const * buffer, size_t bytes) = 0;
+
+  /**
+   * Seeks to the absolute offset, or reports the current offset.
+   **/
+  virtual status_t seek(FLAC__uint64 offset) = 0;
+  virtual status_t tell(FLAC__uint64 & offset) = 0;
+
+  /**
+   * Pushes buffered data to the underlying storage; returns false on errors.
+   **/
+  virtual bool flush();
+
+  /**
+   * Called at the start and end of a thread that will use the output.
+   **/
+  virtual void thread_started();
+  virtual void thread_finished();
+
+  /**
+   * Total number of bytes successfully written so far, including rewrites
+   * after seeking.
+   **/
+  FLAC__uint64 bytes_written() const;
+
+protected:
+  FLAC__uint64  m_bytes_written;
+};
+
+
+
+/*****************************************************************************
+ * Writes to a file.
+ **/
+class FileOutput : public EncoderOutput
+{
+public:
+  FileOutput();
+  ~FileOutput();
+
+  /**
+   * Opens (and truncates) the file; does not take ownership of path. With
+   * append set, the file must exist, and is opened without truncating it,
+   * positioned at its end. Returns NULL on success, else an error message.
+   **/
+  char const * const init(char const * path, bool append = false);
+
+  bool write(FLAC__byte const * buffer, size_t bytes);
+  status_t seek(FLAC__uint64 offset);
+  status_t tell(FLAC__uint64 & offset);
+  bool flush();
+
+private:
+  FILE *  m_file;
+};
+
+
+
+/*****************************************************************************
+ * Writes to a Java object implementing FLACStreamEncoder.Sink.
+ *
+ * Data is handed to the sink in chunks, via a direct ByteBuffer that is
+ * reused for every call.
+ **/
+class SinkOutput : public EncoderOutput
+{
+public:
+  SinkOutput();
+  ~SinkOutput();
+
+  /**
+   * Keeps a global reference to sink. Returns NULL on success, else an error
+   * message.
+   **/
+  char const * const init(JNIEnv * env, jobject sink);
+
+  bool write(FLAC__byte const * buffer, size_t bytes);
+  status_t seek(FLAC__uint64 offset);
+  status_t tell(FLAC__uint64 & offset);
+
+  void thread_started();
+  void thread_finished();
+
+private:
+  // Returns the current thread's JNIEnv, or NULL if it's not attached.
+  JNIEnv * get_env();
+
+  // Clears and logs a pending exception; returns true if there was one.
+  bool check_exception(JNIEnv * env, char const * method);
+
+  JavaVM *    m_vm;
+  jobject     m_sink;
+  jmethodID   m_write;
+  jmethodID   m_seek;
+  jmethodID   m_tell;
+
+  FLAC__byte *  m_chunk;
+  jobject       m_chunk_buffer;
+
+  bool        m_can_seek;
+};
+
+}} // namespace audioboo::jni
+
+#endif // guard
@@ -0,0 +1,634 @@
+/**
+ * This file is part of AudioBoo, an android program for audio blogging.
+ * Copyright (C) 2011 Audioboo Ltd. All rights reserved.
+ *
+ * Author: Jens Finkhaeuser <jens@finkhaeuser.de>
+ *
+ * $Id$
+ **/
+
+#include <stdlib.h>
+#include <string.h>
+#include <unistd.h>
+#include <fcntl.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+
+#include "util.h"
+#include "flac_frames.h"
+#include "EncoderOutput.h"
+#include "SeekTable.h"
+
+// libFLAC's private headers lack C++ guards.
+extern "C" {
+#include "private/crc.h"
+}
+
+#include <jni.h>
+
+namespace aj = audioboo::jni;
+
+namespace {
+
+/*****************************************************************************
+ * Constants
+ **/
+static char const * const IllegalArgumentException_classname  = "java.lang.IllegalArgumentException";
+
+static char const * const LTAG                          = "FLACConcatenator/native";
+
+// Seek point every SEEK_INTERVAL seconds, in a table of SEEK_POINTS points;
+// same as FLACStreamEncoder's defaults.
+static int SEEK_INTERVAL                                = 10;
+static int SEEK_POINTS                                  = 128;
+
+
+/*****************************************************************************
+ * A native FLAC file mapped into memory; audio frames start at m_audio.
+ **/
+struct flac_file
+{
+  flac_file()
+    : m_data(NULL)
+    , m_size(0)
+    , m_audio(0)
+  {
+  }
+
+
+
+  ~flac_file()
+  {
+    if (m_data) {
+      munmap(m_data, m_size);
+    }
+  }
+
+
+
+  /**
+   * Maps the file, and reads STREAMINFO. Returns NULL on success, else an
+   * error message.
+   **/
+  char const * const init(char const * path)
+  {
+    int fd = open(path, O_RDONLY);
+    if (fd < 0) {
+      return "Could not open file!";
+    }
+
+    struct stat filestats;
+    if (0 != fstat(fd, &filestats) || filestats.st_size <= 0) {
+      close(fd);
+      return "Could not determine file size!";
+    }
+    m_size = filestats.st_size;
+
+    void * data = mmap(NULL, m_size, PROT_READ, MAP_PRIVATE, fd, 0);
+    close(fd);
+    if (MAP_FAILED == data) {
+      m_size = 0;
+      return "Could not map file!";
+    }
+    m_data = static_cast<FLAC__byte *>(data);
+    madvise(m_data, m_size, MADV_SEQUENTIAL);
+
+    // Stream marker, then metadata blocks; STREAMINFO comes first.
+    if (m_size < aj::STREAMINFO_OFFSET + aj::STREAMINFO_LENGTH
+        || 0 != memcmp(m_data, "fLaC", 4)
+        || FLAC__METADATA_TYPE_STREAMINFO != (m_data[4] & 0x7F))
+    {
+      return "Not a native FLAC stream!";
+    }
+    aj::unpack_streaminfo(m_data + aj::STREAMINFO_OFFSET, m_info);
+
+    size_t pos = 4;
+    while (true) {
+      if (pos + aj::METADATA_HEADER_LENGTH > m_size) {
+        return "Truncated metadata!";
+      }
+      bool is_last = (m_data[pos] & 0x80);
+      size_t length = (m_data[pos + 1] << 16) | (m_data[pos + 2] << 8)
+        | m_data[pos + 3];
+      pos += aj::METADATA_HEADER_LENGTH + length;
+      if (is_last) {
+        break;
+      }
+    }
+    if (pos > m_size) {
+      return "Truncated metadata!";
+    }
+    m_audio = pos;
+
+    return NULL;
+  }
+
+
+
+  /**
+   * Returns the length of the frame starting at offset, or 0 if there's no
+   * valid frame there. Frames aren't length-prefixed, so this looks for the
+   * next frame header (or the end of the file) at which the bytes so far
+   * pass the frame's CRC-16.
+   **/
+  size_t frame_length(size_t offset, aj::frame_header_t & header) const
+  {
+    FLAC__byte const * frame = m_data + offset;
+    size_t available = m_size - offset;
+    if (!aj::parse_frame_header(frame, available, header)) {
+      return 0;
+    }
+
+    aj::frame_header_t next;
+    for (size_t end = header.m_length + aj::FRAME_FOOTER_LENGTH
+        ; end <= available ; ++end)
+    {
+      if (end < available) {
+        if (0xFF != frame[end]
+            || !aj::parse_frame_header(frame + end, available - end, next))
+        {
+          continue;
+        }
+      }
+
+      // A CRC-16 over data followed by its CRC is zero.
+      if (0 == FLAC__crc16(frame, end)) {
+        return end;
+      }
+    }
+    return 0;
+  }
+
+
+
+  /**
+   * Finds the last frame by searching backwards from the end of the file for
+   * a frame header whose frame passes its CRC-16. Returns its offset, or 0
+   * if there is none.
+   **/
+  size_t last_frame(aj::frame_header_t & header) const
+  {
+    if (m_size < m_audio + aj::FRAME_FOOTER_LENGTH) {
+      return 0;
+    }
+
+    for (size_t offset = m_size - aj::FRAME_FOOTER_LENGTH ; offset-- > m_audio ; ) {
+      if (0xFF != m_data[offset]
+          || !aj::parse_frame_header(m_data + offset, m_size - offset, header))
+      {
+        continue;
+      }
+      if (0 == FLAC__crc16(m_data + offset, m_size - offset)) {
+        return offset;
+      }
+    }
+    return 0;
+  }
+
+
+
+  FLAC__byte *      m_data;
+  size_t            m_size;
+  size_t            m_audio;
+  aj::streaminfo_t  m_info;
+};
+
+
+
+/*****************************************************************************
+ * Joins FLAC files by copying their frames, renumbered to follow on from one
+ * another. The result is a variable blocksize stream, because each input may
+ * end in a short frame. Nothing is decoded, so the MD5 signature is left
+ * unset.
+ **/
+class FLACConcatenator
+{
+public:
+  FLACConcatenator()
+    : m_files(NULL)
+    , m_file_count(0)
+    , m_seek_table(NULL)
+    , m_frame_buffer(NULL)
+    , m_frame_buffer_size(0)
+  {
+    memset(&m_info, 0, sizeof(m_info));
+  }
+
+
+
+  ~FLACConcatenator()
+  {
+    for (int i = 0 ; i < m_file_count ; ++i) {
+      delete m_files[i];
+    }
+    delete [] m_files;
+    delete m_seek_table;
+    delete [] m_frame_buffer;
+  }
+
+
+
+  /**
+   * Maps all input files that can be opened; others are skipped. Returns
+   * NULL if the remaining files can be concatenated, else the reason why
+   * they can't.
+   **/
+  char const * const init(char ** paths, int count)
+  {
+    m_files = new flac_file *[count];
+    for (int i = 0 ; i < count ; ++i) {
+      flac_file * file = new flac_file();
+      char const * error = file->init(paths[i]);
+      if (error) {
+        aj::log(ANDROID_LOG_WARN, LTAG, "%s Skipping %s.", error, paths[i]);
+        delete file;
+        continue;
+      }
+      m_files[m_file_count++] = file;
+
+      aj::streaminfo_t const & info = file->m_info;
+      if (1 == m_file_count) {
+        m_info.m_sample_rate = info.m_sample_rate;
+        m_info.m_channels = info.m_channels;
+        m_info.m_bits_per_sample = info.m_bits_per_sample;
+      }
+      else if (info.m_sample_rate != m_info.m_sample_rate
+          || info.m_channels != m_info.m_channels
+          || info.m_bits_per_sample != m_info.m_bits_per_sample)
+      {
+        return "Stream parameters differ!";
+      }
+    }
+
+    if (!m_file_count) {
+      return "No input files!";
+    }
+    return NULL;
+  }
+
+
+
+  /**
+   * Writes the concatenated stream to output. Returns NULL on success, else
+   * an error message; the output is incomplete then.
+   **/
+  char const * const write(aj::EncoderOutput * output)
+  {
+    m_seek_table = new aj::SeekTable(SEEK_INTERVAL * m_info.m_sample_rate,
+        SEEK_POINTS);
+    char const * error = m_seek_table->init();
+    if (error) {
+      return error;
+    }
+
+    // Stream header with placeholders; patched once all frames are written.
+    size_t header_size = aj::STREAMINFO_OFFSET + aj::STREAMINFO_LENGTH
+      + aj::METADATA_HEADER_LENGTH + m_seek_table->length();
+    FLAC__byte * header = new FLAC__byte[header_size];
+    pack_header(header);
+    bool ok = output->write(header, header_size);
+    if (!ok) {
+      delete [] header;
+      return "Could not write stream header!";
+    }
+
+    FLAC__uint64 sample = 0;
+    FLAC__uint64 audio_bytes = 0;
+    unsigned last_blocksize = 0;
+    error = write_frames(output, sample, audio_bytes, last_blocksize);
+    if (error) {
+      delete [] header;
+      return error;
+    }
+
+    error = finish(output, header, header_size, sample, last_blocksize);
+    delete [] header;
+    if (error) {
+      return error;
+    }
+
+    aj::log(ANDROID_LOG_DEBUG, LTAG, "Concatenated %d files, %llu samples.",
+        m_file_count, sample);
+    return NULL;
+  }
+
+
+
+  /**
+   * Appends the input files to the stream at path, which must have been
+   * written by write() or append(). Returns NULL on success, else an error
+   * message. The stream is left untouched if it can't be appended to, but
+   * may be damaged if writing fails part way.
+   **/
+  char const * const append(char const * path)
+  {
+    size_t header_size = 0;
+    FLAC__uint64 sample = 0;
+    FLAC__uint64 audio_bytes = 0;
+    unsigned last_blocksize = 0;
+    {
+      flac_file existing;
+      char const * error = existing.init(path);
+      if (error) {
+        return error;
+      }
+
+      // Only what write() produces can be extended: STREAMINFO followed by
+      // the seek table, and frames numbered by sample.
+      size_t table_pos = aj::STREAMINFO_OFFSET + aj::STREAMINFO_LENGTH;
+      FLAC__byte const * block = existing.m_data + table_pos;
+      if (existing.m_audio <= table_pos + aj::METADATA_HEADER_LENGTH
+          || (FLAC__METADATA_TYPE_SEEKTABLE | 0x80) != block[0])
+      {
+        return "Stream has unexpected metadata!";
+      }
+      size_t table_length = existing.m_audio - table_pos
+        - aj::METADATA_HEADER_LENGTH;
+      if (0 != table_length % FLAC__STREAM_METADATA_SEEKPOINT_LENGTH) {
+        return "Stream has unexpected metadata!";
+      }
+
+      aj::streaminfo_t const & info = existing.m_info;
+      if (info.m_sample_rate != m_info.m_sample_rate
+          || info.m_channels != m_info.m_channels
+          || info.m_bits_per_sample != m_info.m_bits_per_sample)
+      {
+        return "Stream parameters differ!";
+      }
+
+      aj::frame_header_t frame;
+      if (existing.m_audio < existing.m_size) {
+        if (!aj::parse_frame_header(existing.m_data + existing.m_audio,
+              existing.m_size - existing.m_audio, frame)
+            || !frame.m_variable_blocksize)
+        {
+          return "Stream does not have a variable blocksize!";
+        }
+        if (!existing.last_frame(frame)) {
+          return "Could not find the last frame!";
+        }
+        last_blocksize = frame.m_blocksize;
+      }
+
+      m_info = info;
+      m_seek_table = new aj::SeekTable(SEEK_INTERVAL * m_info.m_sample_rate,
+          table_length / FLAC__STREAM_METADATA_SEEKPOINT_LENGTH);
+      error = m_seek_table->init();
+      if (error) {
+        return error;
+      }
+      m_seek_table->restore(block + aj::METADATA_HEADER_LENGTH);
+
+      header_size = existing.m_audio;
+      sample = info.m_total_samples;
+      audio_bytes = existing.m_size - existing.m_audio;
+    }
+
+    aj::FileOutput output;
+    char const * error = output.init(path, true);
+    if (!error) {
+      error = write_frames(&output, sample, audio_bytes, last_blocksize);
+    }
+    if (!error) {
+      FLAC__byte * header = new FLAC__byte[header_size];
+      error = finish(&output, header, header_size, sample, last_blocksize);
+      delete [] header;
+    }
+    if (!error && !output.flush()) {
+      error = "Could not flush output!";
+    }
+    if (error) {
+      return error;
+    }
+
+    aj::log(ANDROID_LOG_DEBUG, LTAG, "Appended %d files, %llu samples.",
+        m_file_count, sample);
+    return NULL;
+  }
+
+
+
+private:
+
+  /**
+   * Copies the frames of all input files to output, numbering them from
+   * sample onwards; sample, audio_bytes and last_blocksize are updated as
+   * frames are written.
+   **/
+  char const * const write_frames(aj::EncoderOutput * output,
+      FLAC__uint64 & sample, FLAC__uint64 & audio_bytes,
+      unsigned & last_blocksize)
+  {
+    for (int i = 0 ; i < m_file_count ; ++i) {
+      flac_file const & file = *m_files[i];
+
+      size_t offset = file.m_audio;
+      while (offset < file.m_size) {
+        aj::frame_header_t frame;
+        size_t size = file.frame_length(offset, frame);
+        if (!size) {
+          return "Could not find frame boundaries!";
+        }
+
+        if (size + aj::FRAME_HEADER_MAX_LENGTH > m_frame_buffer_size) {
+          delete [] m_frame_buffer;
+          m_frame_buffer_size = size + aj::FRAME_HEADER_MAX_LENGTH;
+          m_frame_buffer = new FLAC__byte[m_frame_buffer_size];
+        }
+
+        size_t out_size = aj::renumber_frame(file.m_data + offset, size,
+            sample, true, m_frame_buffer);
+        if (!out_size || !output->write(m_frame_buffer, out_size)) {
+          return "Could not write frame!";
+        }
+
+        m_seek_table->add_frame(sample, audio_bytes, frame.m_blocksize);
+        update_info(out_size, frame.m_blocksize, last_blocksize);
+
+        sample += frame.m_blocksize;
+        audio_bytes += out_size;
+        last_blocksize = frame.m_blocksize;
+        offset += size;
+      }
+    }
+
+    return NULL;
+  }
+
+
+
+  /**
+   * Completes STREAMINFO, and rewrites the stream header at the start of
+   * output, using header as scratch space.
+   **/
+  char const * const finish(aj::EncoderOutput * output, FLAC__byte * header,
+      size_t header_size, FLAC__uint64 sample, unsigned last_blocksize)
+  {
+    // Only the last frame may be shorter than the minimum blocksize.
+    if (!m_info.m_min_blocksize) {
+      m_info.m_min_blocksize = last_blocksize;
+    }
+    m_info.m_total_samples = sample;
+
+    pack_header(header);
+    if (aj::EncoderOutput::OK != output->seek(0)
+        || !output->write(header, header_size))
+    {
+      return "Could not update stream header!";
+    }
+    return NULL;
+  }
+
+
+
+  void pack_header(FLAC__byte * header)
+  {
+    aj::pack_stream_header(m_info, false, header);
+
+    FLAC__byte * block = header + aj::STREAMINFO_OFFSET + aj::STREAMINFO_LENGTH;
+    aj::pack_metadata_header(FLAC__METADATA_TYPE_SEEKTABLE, true,
+        m_seek_table->length(), block);
+    m_seek_table->pack(block + aj::METADATA_HEADER_LENGTH);
+  }
+
+
+
+  /**
+   * Folds a written frame into STREAMINFO. The minimum blocksize can't
+   * include the last frame, so it lags one frame behind.
+   **/
+  void update_info(size_t frame_size, unsigned blocksize,
+      unsigned last_blocksize)
+  {
+    if (!m_info.m_min_framesize || frame_size < m_info.m_min_framesize) {
+      m_info.m_min_framesize = frame_size;
+    }
+    if (frame_size > m_info.m_max_framesize) {
+      m_info.m_max_framesize = frame_size;
+    }
+
+    if (last_blocksize && (!m_info.m_min_blocksize
+          || last_blocksize < m_info.m_min_blocksize))
+    {
+      m_info.m_min_blocksize = last_blocksize;
+    }
+    if (blocksize > m_info.m_max_blocksize) {
+      m_info.m_max_blocksize = blocksize;
+    }
+  }
+
+
+  flac_file **      m_files;
+  int               m_file_count;
+
+  aj::streaminfo_t  m_info;
+  aj::SeekTable *   m_seek_table;
+
+  FLAC__byte *      m_frame_buffer;
+  size_t            m_frame_buffer_size;
+};
+
+
+
+/**
+ * Initializes concatenator with the paths in infiles. Returns NULL on
+ * success, else an error message.
+ **/
+char const * const
+init_concatenator(JNIEnv * env, jobjectArray infiles,
+    FLACConcatenator & concatenator)
+{
+  jsize count = env->GetArrayLength(infiles);
+  char ** paths = new char *[count];
+  for (jsize i = 0 ; i < count ; ++i) {
+    jstring infile = static_cast<jstring>(env->GetObjectArrayElement(infiles, i));
+    paths[i] = aj::convert_jstring_path(env, infile);
+    env->DeleteLocalRef(infile);
+  }
+
+  char const * error = concatenator.init(paths, count);
+
+  for (jsize i = 0 ; i < count ; ++i) {
+    free(paths[i]);
+  }
+  delete [] paths;
+
+  return error;
+}
+
+
+} // anonymous namespace
+
+
+
+/*****************************************************************************
+ * JNI Wrappers
+ **/
+
+extern "C" {
+
+jboolean
+Java_fm_audioboo_jni_FLACConcatenator_concatenate(JNIEnv * env, jclass cls,
+    jobjectArray infiles, jstring outfile)
+{
+  if (NULL == infiles || NULL == outfile) {
+    aj::throwByName(env, IllegalArgumentException_classname,
+        "Need input files and an output file!");
+    return false;
+  }
+
+  FLACConcatenator concatenator;
+  char const * error = init_concatenator(env, infiles, concatenator);
+  if (error) {
+    aj::log(ANDROID_LOG_INFO, LTAG, "Can't concatenate: %s", error);
+    return false;
+  }
+
+  char * path = aj::convert_jstring_path(env, outfile);
+  aj::FileOutput output;
+  error = output.init(path);
+  if (!error) {
+    error = concatenator.write(&output);
+    if (!error && !output.flush()) {
+      error = "Could not flush output!";
+    }
+  }
+
+  if (error) {
+    aj::log(ANDROID_LOG_ERROR, LTAG, "Could not concatenate: %s", error);
+    unlink(path);
+  }
+  free(path);
+
+  return !error;
+}
+
+
+
+jboolean
+Java_fm_audioboo_jni_FLACConcatenator_append(JNIEnv * env, jclass cls,
+    jobjectArray infiles, jstring outfile)
+{
+  if (NULL == infiles || NULL == outfile) {
+    aj::throwByName(env, IllegalArgumentException_classname,
+        "Need input files and an output file!");
+    return false;
+  }
+
+  FLACConcatenator concatenator;
+  char const * error = init_concatenator(env, infiles, concatenator);
+  if (!error) {
+    char * path = aj::convert_jstring_path(env, outfile);
+    error = concatenator.append(path);
+    free(path);
+  }
+
+  if (error) {
+    aj::log(ANDROID_LOG_INFO, LTAG, "Can't append: %s", error);
+    return false;
+  }
+  return true;
+}
+
+
+} // extern "C"
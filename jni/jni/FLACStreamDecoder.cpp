@@ -16,13 +16,16 @@
 #include <string.h>
 #include <alloca.h>
 #include <limits.h>
-
-#include <sys/stat.h>
+#include <math.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <unistd.h>
 
 #include "FLAC/metadata.h"
 #include "FLAC/stream_encoder.h"
 
 #include "util.h"
+#include "DecoderInput.h"
 
 #include <jni.h>
 
@@ -40,6 +43,21 @@ static char const * const IllegalArgumentException_classname  = "java.lang.Illeg
 
 static char const * const LTAG                          = "FLACStreamDecoder/native";
 
+// Input modes; keep in sync with FLACStreamDecoder.java
+static int INPUT_STDIO                                  = 0;
+static int INPUT_MMAP                                   = 1;
+
+// Peak summary file format version; keep in sync with PeakSummary.java
+static int PEAKS_VERSION                                = 1;
+
+// Verification results; keep in sync with FLACVerifier.java
+static int VERIFY_OK                                    = 0;
+static int VERIFY_NO_CHECKSUM                           = 1;
+static int VERIFY_CORRUPT                               = 2;
+static int VERIFY_CANCELLED                             = 3;
+
+static char const * const FLACVerifier_mCancelled       = "mCancelled";
+
 
 /*****************************************************************************
  * FLAC callbacks forward declarations
@@ -88,6 +106,181 @@ void flac_error_helper(
     void * client_data);
 
 
+/*****************************************************************************
+ * Accumulates min/max/RMS per bucket of samples (per channel), over all
+ * channels and scaled to 16 bit. Buckets carry on across streams, so feeding
+ * several streams in a row summarizes them as if they were one.
+ **/
+class peak_summary
+{
+public:
+  peak_summary(int bucket_size)
+    : m_bucket_size(bucket_size)
+    , m_sample_rate(0)
+    , m_peaks(NULL)
+    , m_capacity(0)
+    , m_buckets(0)
+    , m_min(0)
+    , m_max(0)
+    , m_sum_squares(0)
+    , m_samples(0)
+  {
+  }
+
+
+
+  ~peak_summary()
+  {
+    delete [] m_peaks;
+  }
+
+
+
+  /**
+   * Adds a decoded frame, straight from FLAC's per-channel buffers.
+   **/
+  void add(int blocksize, int channels, int bits_per_sample,
+      FLAC__int32 const * const buffer[])
+  {
+    int shift = 16 - bits_per_sample;
+
+    for (int i = 0 ; i < blocksize ; ++i) {
+      for (int channel = 0 ; channel < channels ; ++channel) {
+        FLAC__int32 value = buffer[channel][i] << shift;
+        if (0 == m_samples && 0 == channel) {
+          // First sample of the bucket; the range needn't include zero.
+          m_min = m_max = value;
+        }
+        if (value < m_min) {
+          m_min = value;
+        }
+        if (value > m_max) {
+          m_max = value;
+        }
+        m_sum_squares += static_cast<double>(value) * value;
+      }
+
+      m_samples += channels;
+      if (m_samples >= m_bucket_size * channels) {
+        close_bucket();
+      }
+    }
+  }
+
+
+
+  /**
+   * Closes the last, partial bucket.
+   **/
+  void finish()
+  {
+    if (m_samples > 0) {
+      close_bucket();
+    }
+  }
+
+
+
+  /**
+   * Writes the summary to path; see PeakSummary.java for the format. The
+   * stamp is written as is, for the caller to tell whether the summary is
+   * still up to date. Returns NULL on success, else an error message.
+   **/
+  char const * const write(char const * path, FLAC__int64 stamp)
+  {
+    unsigned char header[28];
+    memcpy(header, "PEAK", 4);
+    put(header + 4, PEAKS_VERSION, 4);
+    put(header + 8, stamp, 8);
+    put(header + 16, m_sample_rate, 4);
+    put(header + 20, m_bucket_size, 4);
+    put(header + 24, m_buckets, 4);
+
+    // Write to a temporary file first, so that readers never see a partial
+    // summary.
+    size_t path_len = strlen(path);
+    char * tmp_path = static_cast<char *>(alloca(path_len + 5));
+    memcpy(tmp_path, path, path_len);
+    memcpy(tmp_path + path_len, ".tmp", 5);
+
+    FILE * file = fopen(tmp_path, "w");
+    if (!file) {
+      return "Could not open peak summary file!";
+    }
+
+    bool ok = (1 == fwrite(header, sizeof(header), 1, file));
+    unsigned char bucket[6];
+    for (int i = 0 ; ok && i < m_buckets * 3 ; i += 3) {
+      put(bucket, m_peaks[i], 2);
+      put(bucket + 2, m_peaks[i + 1], 2);
+      put(bucket + 4, m_peaks[i + 2], 2);
+      ok = (1 == fwrite(bucket, sizeof(bucket), 1, file));
+    }
+    ok = (0 == fclose(file)) && ok;
+
+    if (!ok || 0 != rename(tmp_path, path)) {
+      unlink(tmp_path);
+      return "Could not write peak summary file!";
+    }
+    return NULL;
+  }
+
+
+
+  int m_bucket_size;
+  int m_sample_rate;
+
+private:
+
+  void close_bucket()
+  {
+    if (m_buckets * 3 >= m_capacity) {
+      int capacity = (m_capacity > 0) ? m_capacity * 2 : 3 * 1024;
+      int16_t * peaks = new int16_t[capacity];
+      if (m_peaks) {
+        memcpy(peaks, m_peaks, m_capacity * sizeof(int16_t));
+        delete [] m_peaks;
+      }
+      m_peaks = peaks;
+      m_capacity = capacity;
+    }
+
+    int16_t * bucket = m_peaks + m_buckets * 3;
+    bucket[0] = m_min;
+    bucket[1] = m_max;
+    // Full scale negative samples make for an RMS of 32768.
+    double rms = sqrt(m_sum_squares / m_samples);
+    bucket[2] = static_cast<int16_t>(rms > 32767 ? 32767 : rms);
+    ++m_buckets;
+
+    m_sum_squares = 0;
+    m_samples = 0;
+  }
+
+
+
+  static void put(unsigned char * out, FLAC__int64 value, int bytes)
+  {
+    for (int i = 0 ; i < bytes ; ++i) {
+      out[i] = (value >> (8 * (bytes - 1 - i))) & 0xff;
+    }
+  }
+
+
+  // Summary so far; min, max and RMS for each bucket.
+  int16_t * m_peaks;
+  int       m_capacity;
+  int       m_buckets;
+
+  // Current bucket
+  FLAC__int32 m_min;
+  FLAC__int32 m_max;
+  double      m_sum_squares;
+  int         m_samples;
+};
+
+
+
 /*****************************************************************************
  * Native FLACStreamDecoder representation
  **/
@@ -96,11 +289,10 @@ class FLACStreamDecoder
 {
 public:
   /**
-   * Takes ownership of the infile.
+   * Takes ownership of the input.
    **/
-  FLACStreamDecoder(char * infile)
-    : m_infile_name(infile)
-    , m_infile(NULL)
+  FLACStreamDecoder(aj::DecoderInput * input)
+    : m_input(input)
     , m_sample_rate(-1)
     , m_total_samples(-1)
     , m_channels(-1)
@@ -109,10 +301,15 @@ public:
     , m_decoder(NULL)
     , m_finished(false)
     , m_seek_pos(-1)
-    , m_cur_pos(-1)
-    , m_buffer(NULL)
-    , m_buf_size(-1)
-    , m_buf_used(-1)
+    , m_cur_pos(0)
+    , m_carry(NULL)
+    , m_carry_size(0)
+    , m_carry_fill(0)
+    , m_carry_pos(0)
+    , m_peaks(NULL)
+    , m_discard(false)
+    , m_has_md5(false)
+    , m_decode_errors(0)
   {
   }
 
@@ -121,10 +318,10 @@ public:
    * There are no exceptions here, so we need to "construct" outside the ctor.
    * Returns NULL on success, else an error message
    **/
-  char const * const init()
+  char const * const init(bool check_md5 = false)
   {
-    if (!m_infile_name) {
-      return "No file name given!";
+    if (!m_input) {
+      return "No input given!";
     }
 
 
@@ -134,12 +331,9 @@ public:
       return "Could not create FLAC__StreamDecoder!";
     }
 
-    // Open file.
-    m_infile = fopen(m_infile_name, "r");
-    if (!m_infile) {
-      return "Could not open file!";
+    if (check_md5 && !FLAC__stream_decoder_set_md5_checking(m_decoder, true)) {
+      return "Could not enable MD5 checking!";
     }
-    aj::log(ANDROID_LOG_DEBUG, LTAG, "FLAC__StreamDecoder opened %s", m_infile_name);
 
     // Try initializing the file stream.
     FLAC__StreamDecoderInitStatus init_status = FLAC__stream_decoder_init_stream(
@@ -165,7 +359,7 @@ public:
 
 
   /**
-   * Destroys Decoder instance, releases infile
+   * Destroys Decoder instance, releases input
    **/
   ~FLACStreamDecoder()
   {
@@ -175,68 +369,163 @@ public:
       m_decoder = NULL;
     }
 
-    if (m_infile_name) {
-      free(m_infile_name);
-      m_infile_name = NULL;
-    }
+    delete m_input;
+    m_input = NULL;
 
-    if (m_infile) {
-      fclose(m_infile);
-      m_infile = NULL;
-    }
+    delete [] m_carry;
+    m_carry = NULL;
   }
 
 
 
   /**
    * Reads up to bufsize bytes from the FLAC stream and writes them into buffer.
-   * Returns the number of bytes read, or -1 on fatal errors.
+   * Frames are decoded into a carry-over buffer as needed, so bufsize may be
+   * anything; it's only rounded down to a whole number of samples for all
+   * channels.
+   * Returns the number of bytes read, or a negative value from checkState()
+   * if nothing could be read.
    **/
   int read(char * buffer, int bufsize)
   {
     //aj::log(ANDROID_LOG_DEBUG, LTAG, "read(%d)", bufsize);
-    // If the decoder is at the end of the stream, exit immediately.
-    int ret = checkState();
-    //aj::log(ANDROID_LOG_DEBUG, LTAG, "state: %d", ret);
-    if (0 != ret) {
-      return ret;
+    if (m_bits_per_sample <= 0 || m_channels <= 0) {
+      return -7;
     }
+    int sample_size = (m_bits_per_sample / 8) * m_channels;
+    bufsize -= bufsize % sample_size;
 
-    // These are set temporarily - this object does not own the buffer.
-    m_buffer = buffer;
-    m_buf_size = bufsize / (m_bits_per_sample / 8);
-    m_buf_used = 0;
-
-    FLAC__bool result = 0;
-    do {
+    int used = 0;
+    int ret = 0;
+    while (used < bufsize) {
       if (m_seek_pos >= 0) {
         //aj::log(ANDROID_LOG_DEBUG, LTAG, "seek to: %d", m_seek_pos);
-        result = FLAC__stream_decoder_seek_absolute(m_decoder, m_seek_pos);
-        m_cur_pos = m_seek_pos;
+        seek(m_seek_pos);
         m_seek_pos = -1;
-        m_buf_used = 0;
+        continue;
+      }
 
-        ret = checkState();
-        if (-4 == ret) {
-          ret = 0;
-          FLAC__stream_decoder_flush(m_decoder);
-          continue;
+      // Serve from the carry-over buffer first.
+      if (m_carry_pos < m_carry_fill) {
+        int count = m_carry_fill - m_carry_pos;
+        if (count > bufsize - used) {
+          count = bufsize - used;
         }
+        memcpy(buffer + used, m_carry + m_carry_pos, count);
+        m_carry_pos += count;
+        used += count;
+        m_cur_pos += count / sample_size;
+        continue;
       }
 
-      result = FLAC__stream_decoder_process_single(m_decoder);
-
+      // Decode the next frame into the carry-over buffer.
       ret = checkState();
-       aj::log(ANDROID_LOG_DEBUG, LTAG, "result: %d, used: %d, size: %d, ret: %d", result, m_buf_used, m_buf_size, ret);
-    } while ((0 == ret) && (result && m_buf_used < m_buf_size));
+      if (0 != ret) {
+        break;
+      }
+      if (!FLAC__stream_decoder_process_single(m_decoder)) {
+        ret = checkState();
+        break;
+      }
+    }
+
+    //aj::log(ANDROID_LOG_DEBUG, LTAG, "read %d bytes, state %d", used, ret);
+    return (used > 0 ? used : ret);
+  }
+
+
+
+  /**
+   * Decodes count samples (per channel) starting at sample start into buffer,
+   * which must hold count samples for all channels. Reading continues after
+   * the range.
+   * Returns the number of samples decoded, which is less than count only at
+   * the end of the stream, or a negative value from checkState() on errors.
+   **/
+  int decodeRange(FLAC__uint64 start, int count, char * buffer)
+  {
+    if (m_bits_per_sample <= 0 || m_channels <= 0) {
+      return -7;
+    }
+    int sample_size = (m_bits_per_sample / 8) * m_channels;
+
+    // A pending seekTo() is superseded by this.
+    m_seek_pos = -1;
+    if (!seek(start)) {
+      int ret = checkState();
+      return (0 == ret) ? -4 : ret;
+    }
+
+    int ret = read(buffer, count * sample_size);
+    return (ret > 0) ? ret / sample_size : ret;
+  }
+
+
+
+  /**
+   * Decodes the rest of the stream into peaks, without producing any PCM.
+   * Returns 0 once the stream is done, or a negative value from checkState()
+   * on errors.
+   **/
+  int summarize(peak_summary & peaks)
+  {
+    m_peaks = &peaks;
+
+    int ret = 0;
+    while (0 == (ret = checkState())) {
+      if (!FLAC__stream_decoder_process_single(m_decoder)) {
+        ret = checkState();
+        break;
+      }
+    }
 
-    aj::log(ANDROID_LOG_DEBUG, LTAG, "finished read()");
+    m_peaks = NULL;
 
-    // Clear m_buffer, just to be extra-paranoid that it won't accidentally
-    // be freed.
-    m_buffer = NULL;
-    m_buf_size = 0;
-    return (result ? m_buf_used * (m_bits_per_sample / 8) : ret);
+    // Decoding errors also finish the stream; keep whatever was decoded
+    // before, as read() would.
+    return (-1 == ret || -2 == ret) ? 0 : ret;
+  }
+
+
+
+  /**
+   * Decodes the rest of the stream without producing any PCM, and reports
+   * one of the VERIFY_* results. The MD5 sum is only checked if init() was
+   * asked to, and if the stream was not seeked. cancelled(data) is called
+   * before each frame; decoding stops once it returns true.
+   * The decoder can't be used any further afterwards.
+   **/
+  int verify(bool (*cancelled)(void *), void * data)
+  {
+    m_discard = true;
+
+    int ret = 0;
+    while (0 == (ret = checkState())) {
+      if (cancelled(data)) {
+        m_discard = false;
+        return VERIFY_CANCELLED;
+      }
+      if (!FLAC__stream_decoder_process_single(m_decoder)) {
+        ret = checkState();
+        break;
+      }
+    }
+
+    m_discard = false;
+
+    // Decoding errors finish the stream early, see cb_error().
+    if (m_decode_errors > 0 || -2 != ret) {
+      return VERIFY_CORRUPT;
+    }
+    if (m_total_samples > 0 && m_cur_pos != m_total_samples) {
+      return VERIFY_CORRUPT;
+    }
+
+    // This is where the MD5 sum is compared.
+    if (!FLAC__stream_decoder_finish(m_decoder)) {
+      return VERIFY_CORRUPT;
+    }
+    return m_has_md5 ? VERIFY_OK : VERIFY_NO_CHECKSUM;
   }
 
 
@@ -304,17 +593,18 @@ public:
       return FLAC__STREAM_DECODER_READ_STATUS_ABORT;
     }
 
-    *bytes = fread(buffer, sizeof(FLAC__byte), expected, m_infile);
+    // The end of the input isn't the end of the stream; FLAC may still have
+    // frames to decode from what it read before. It finds out via cb_eof().
+    switch (m_input->read(buffer, *bytes)) {
+      case aj::DecoderInput::OK:
+        return FLAC__STREAM_DECODER_READ_STATUS_CONTINUE;
 
-    if (ferror(m_infile)) {
-      return FLAC__STREAM_DECODER_READ_STATUS_ABORT;
-    }
-    else if (feof(m_infile)) {
-      m_finished = true;
-      return FLAC__STREAM_DECODER_READ_STATUS_END_OF_STREAM;
-    }
+      case aj::DecoderInput::END_OF_STREAM:
+        return FLAC__STREAM_DECODER_READ_STATUS_END_OF_STREAM;
 
-    return FLAC__STREAM_DECODER_READ_STATUS_CONTINUE;
+      default:
+        return FLAC__STREAM_DECODER_READ_STATUS_ABORT;
+    }
   }
 
 
@@ -323,11 +613,16 @@ public:
       FLAC__StreamDecoder const * decoder,
       FLAC__uint64 absolute_byte_offset)
   {
-    if (0 > fseeko(m_infile, static_cast<off_t>(absolute_byte_offset), SEEK_SET)) {
-      return FLAC__STREAM_DECODER_SEEK_STATUS_ERROR;
-    }
+    switch (m_input->seek(absolute_byte_offset)) {
+      case aj::DecoderInput::OK:
+        return FLAC__STREAM_DECODER_SEEK_STATUS_OK;
 
-    return FLAC__STREAM_DECODER_SEEK_STATUS_OK;
+      case aj::DecoderInput::UNSUPPORTED:
+        return FLAC__STREAM_DECODER_SEEK_STATUS_UNSUPPORTED;
+
+      default:
+        return FLAC__STREAM_DECODER_SEEK_STATUS_ERROR;
+    }
   }
 
 
@@ -336,15 +631,16 @@ public:
       FLAC__StreamDecoder const * decoder,
       FLAC__uint64 * absolute_byte_offset)
   {
-    off_t pos = 0;
-
-    if (0 > (pos = ftello(m_infile))) {
-      return FLAC__STREAM_DECODER_TELL_STATUS_ERROR;
-    }
+    switch (m_input->tell(*absolute_byte_offset)) {
+      case aj::DecoderInput::OK:
+        return FLAC__STREAM_DECODER_TELL_STATUS_OK;
 
-    *absolute_byte_offset = static_cast<FLAC__uint64>(pos);
+      case aj::DecoderInput::UNSUPPORTED:
+        return FLAC__STREAM_DECODER_TELL_STATUS_UNSUPPORTED;
 
-    return FLAC__STREAM_DECODER_TELL_STATUS_OK;
+      default:
+        return FLAC__STREAM_DECODER_TELL_STATUS_ERROR;
+    }
   }
 
 
@@ -353,14 +649,15 @@ public:
       FLAC__StreamDecoder const * decoder,
       FLAC__uint64 * stream_length)
   {
-    struct stat filestats;
+    switch (m_input->length(*stream_length)) {
+      case aj::DecoderInput::OK:
+        return FLAC__STREAM_DECODER_LENGTH_STATUS_OK;
 
-    if (0 != fstat(fileno(m_infile), &filestats)) {
-      return FLAC__STREAM_DECODER_LENGTH_STATUS_ERROR;
-    }
-    else {
-      *stream_length = static_cast<FLAC__uint64>(filestats.st_size);
-      return FLAC__STREAM_DECODER_LENGTH_STATUS_OK;
+      case aj::DecoderInput::UNSUPPORTED:
+        return FLAC__STREAM_DECODER_LENGTH_STATUS_UNSUPPORTED;
+
+      default:
+        return FLAC__STREAM_DECODER_LENGTH_STATUS_ERROR;
     }
   }
 
@@ -369,10 +666,7 @@ public:
   FLAC__bool cb_eof(
       FLAC__StreamDecoder const * decoder)
   {
-    if (feof(m_infile)) {
-      m_finished = true;
-    }
-    return m_finished;
+    return m_finished || m_input->eof();
   }
 
 
@@ -383,18 +677,49 @@ public:
       FLAC__int32 const * const buffer[])
   {
     assert(decoder == m_decoder);
-    assert(m_buffer);
+
+    // read() only decodes once the carry-over buffer is drained.
+    assert(m_carry_pos >= m_carry_fill);
+
+    if (static_cast<int>(frame->header.channels) != m_channels) {
+      return FLAC__STREAM_DECODER_WRITE_STATUS_ABORT;
+    }
+
+    if (m_discard) {
+      m_cur_pos += frame->header.blocksize;
+      return FLAC__STREAM_DECODER_WRITE_STATUS_CONTINUE;
+    }
+
+    if (m_peaks) {
+      if (8 != m_bits_per_sample && 16 != m_bits_per_sample) {
+        return FLAC__STREAM_DECODER_WRITE_STATUS_ABORT;
+      }
+      m_peaks->add(frame->header.blocksize, m_channels, m_bits_per_sample,
+          buffer);
+      return FLAC__STREAM_DECODER_WRITE_STATUS_CONTINUE;
+    }
+
+    int bytes = frame->header.blocksize * m_channels * (m_bits_per_sample / 8);
+    if (bytes > m_carry_size) {
+      delete [] m_carry;
+      m_carry = new char[bytes];
+      m_carry_size = bytes;
+    }
 
     if (8 == m_bits_per_sample) {
-      return write_internal<int8_t>(frame->header.blocksize, buffer);
+      interleave<int8_t>(frame->header.blocksize, buffer);
     }
     else if (16 == m_bits_per_sample) {
-      return write_internal<int16_t>(frame->header.blocksize, buffer);
+      interleave<int16_t>(frame->header.blocksize, buffer);
     }
     else {
       // Should not happen, just return an error.
       return FLAC__STREAM_DECODER_WRITE_STATUS_ABORT;
     }
+
+    m_carry_fill = bytes;
+    m_carry_pos = 0;
+    return FLAC__STREAM_DECODER_WRITE_STATUS_CONTINUE;
   }
 
 
@@ -414,11 +739,25 @@ public:
     m_channels = metadata->data.stream_info.channels;
     m_bits_per_sample = metadata->data.stream_info.bits_per_sample;
 
+    // Encoders that can't seek back to STREAMINFO leave the MD5 sum zeroed.
+    m_has_md5 = false;
+    for (int i = 0 ; i < 16 ; ++i) {
+      if (metadata->data.stream_info.md5sum[i]) {
+        m_has_md5 = true;
+        break;
+      }
+    }
+
     // We report the maximum block size, because a buffer that size will hold
     // any block. Yes, that's somewhat lazy, but blocks aren't *that* large.
     m_min_buffer_size = metadata->data.stream_info.max_blocksize
       * (m_bits_per_sample / 8)
       * m_channels;
+
+    // That's also what the carry-over buffer needs to hold.
+    delete [] m_carry;
+    m_carry = new char[m_min_buffer_size];
+    m_carry_size = m_min_buffer_size;
   }
 
 
@@ -429,6 +768,7 @@ public:
   {
     assert(decoder == m_decoder);
     m_finished = true;
+    ++m_decode_errors;
   }
 
 
@@ -436,33 +776,44 @@ public:
 private:
 
   /**
-   * Copies samples from buffer into m_buffer as sized samples, and interleaved
+   * Seeks to the given sample; the next frame decoded starts exactly there.
+   * Returns false if that failed.
+   **/
+  bool seek(FLAC__uint64 sample)
+  {
+    // Whatever is left over is from before the seek point. We may also have
+    // hit the end of the stream before, but that's where we're leaving;
+    // cb_eof() would make the seek fail otherwise.
+    m_carry_fill = m_carry_pos = 0;
+    m_cur_pos = sample;
+    m_finished = false;
+
+    FLAC__bool result = FLAC__stream_decoder_seek_absolute(m_decoder, sample);
+    if (FLAC__STREAM_DECODER_SEEK_ERROR == FLAC__stream_decoder_get_state(m_decoder)) {
+      FLAC__stream_decoder_flush(m_decoder);
+    }
+    return result;
+  }
+
+
+
+  /**
+   * Copies samples from buffer into m_carry as sized samples, and interleaved
    * for multi-channel streams.
    **/
   template <typename sized_sampleT>
-  FLAC__StreamDecoderWriteStatus
-  write_internal(int blocksize, FLAC__int32 const * const buffer[])
+  void interleave(int blocksize, FLAC__int32 const * const buffer[])
   {
-    sized_sampleT * outbuf = reinterpret_cast<sized_sampleT *>(m_buffer);
-    m_buffer += m_buf_used;
+    sized_sampleT * outbuf = reinterpret_cast<sized_sampleT *>(m_carry);
 
     // We need to interleave the samples for each channel; FLAC on the other
     // hand keeps them in separate buffers.
     for (int i = 0 ; i < blocksize ; ++i) {
       for (int channel = 0 ; channel < m_channels ; ++channel) {
-        if (m_buf_used >= m_buf_size) {
-          // Should never happen, if the buffer we've been handed via the read()
-          // function is large enough.
-          return FLAC__STREAM_DECODER_WRITE_STATUS_ABORT;
-        }
         *outbuf = buffer[channel][i];
         ++outbuf;
-        ++m_buf_used;
-        ++m_cur_pos;
       }
     }
-
-    return FLAC__STREAM_DECODER_WRITE_STATUS_CONTINUE;
   }
 
 
@@ -510,11 +861,8 @@ private:
   }
 
 
-  // Configuration values passed to ctor
-  char *  m_infile_name;
-
-  // FILE pointer we're reading.
-  FILE *  m_infile;
+  // Input we're reading; passed to ctor.
+  aj::DecoderInput *  m_input;
 
   // FLAC Decoder instance
   FLAC__StreamDecoder * m_decoder;
@@ -532,10 +880,20 @@ private:
   int m_seek_pos;
   int m_cur_pos;
 
-  // Buffer related data, used by write callback and set by read function
-  char *  m_buffer;
-  int     m_buf_size;
-  int     m_buf_used;
+  // Interleaved PCM from the last decoded frame, in the output sample format;
+  // filled by the write callback, and drained by read().
+  char *  m_carry;
+  int     m_carry_size;
+  int     m_carry_fill;
+  int     m_carry_pos;
+
+  // Set while summarize() runs; frames go there instead of m_carry.
+  peak_summary *  m_peaks;
+
+  // Set while verify() runs; frames are only counted.
+  bool  m_discard;
+  bool  m_has_md5;
+  int   m_decode_errors;
 };
 
 
@@ -670,6 +1028,72 @@ static void set_decoder(JNIEnv * env, jobject obj, FLACStreamDecoder * decoder)
 }
 
 
+/**
+ * Opens path in the given input mode. Falls back to stdio if the file can't
+ * be mapped. Returns NULL if the file can't be opened at all.
+ **/
+static aj::DecoderInput * open_input(char const * path, int input_mode)
+{
+  if (INPUT_MMAP == input_mode) {
+    aj::MappedInput * mapped = new aj::MappedInput();
+    char const * error = mapped->init(path);
+    if (!error) {
+      return mapped;
+    }
+    delete mapped;
+    aj::log(ANDROID_LOG_WARN, LTAG, "%s Falling back to stdio for %s", error,
+        path);
+  }
+
+  aj::FileInput * file = new aj::FileInput();
+  if (file->init(path)) {
+    delete file;
+    return NULL;
+  }
+  return file;
+}
+
+
+
+/**
+ * Cancellation check for FLACStreamDecoder::verify(); reads the verifier's
+ * mCancelled field.
+ **/
+struct verify_job
+{
+  JNIEnv *  m_env;
+  jobject   m_verifier;
+  jfieldID  m_cancelled;
+};
+
+
+static bool verify_cancelled(void * data)
+{
+  verify_job * job = static_cast<verify_job *>(data);
+  return job->m_env->GetBooleanField(job->m_verifier, job->m_cancelled);
+}
+
+
+
+/**
+ * Creates a decoder reading from input, and stores it in obj. Takes ownership
+ * of input, and throws if the decoder can't be initialized.
+ **/
+static void init_decoder(JNIEnv * env, jobject obj, aj::DecoderInput * input)
+{
+  FLACStreamDecoder * decoder = new FLACStreamDecoder(input);
+
+  char const * const error = decoder->init();
+  if (NULL != error) {
+    delete decoder;
+
+    aj::throwByName(env, IllegalArgumentException_classname, error);
+    return;
+  }
+
+  set_decoder(env, obj, decoder);
+}
+
 
 
 } // anonymous namespace
@@ -684,24 +1108,56 @@ extern "C" {
 
 void
 Java_fm_audioboo_jni_FLACStreamDecoder_init(JNIEnv * env, jobject obj,
-    jstring infile)
+    jstring infile, jint input_mode)
 {
   assert(sizeof(jlong) >= sizeof(FLACStreamDecoder *));
 
-	aj::log(ANDROID_LOG_DEBUG, LTAG,"FLACStreamDecoder_init.., infile=%s", aj::convert_jstring_path(env, infile));
+  char * path = aj::convert_jstring_path(env, infile);
+  aj::log(ANDROID_LOG_DEBUG, LTAG, "FLACStreamDecoder_init.., infile=%s", path);
 
-  FLACStreamDecoder * decoder = new FLACStreamDecoder(
-      aj::convert_jstring_path(env, infile));
+  aj::DecoderInput * input = open_input(path, input_mode);
+  free(path);
+  if (!input) {
+    aj::throwByName(env, IllegalArgumentException_classname,
+        "Could not open file!");
+    return;
+  }
+
+  init_decoder(env, obj, input);
+}
 
-  char const * const error = decoder->init();
-  if (NULL != error) {
-    delete decoder;
 
+
+void
+Java_fm_audioboo_jni_FLACStreamDecoder_initBuffer(JNIEnv * env, jobject obj,
+    jobject buffer, jint offset, jint length)
+{
+  aj::BufferInput * input = new aj::BufferInput();
+  char const * const error = input->init(env, buffer, offset, length);
+  if (error) {
+    delete input;
     aj::throwByName(env, IllegalArgumentException_classname, error);
     return;
   }
 
-  set_decoder(env, obj, decoder);
+  init_decoder(env, obj, input);
+}
+
+
+
+void
+Java_fm_audioboo_jni_FLACStreamDecoder_initStream(JNIEnv * env, jobject obj,
+    jobject stream)
+{
+  aj::StreamInput * input = new aj::StreamInput();
+  char const * const error = input->init(env, stream);
+  if (error) {
+    delete input;
+    aj::throwByName(env, IllegalArgumentException_classname, error);
+    return;
+  }
+
+  init_decoder(env, obj, input);
 }
 
 
@@ -739,6 +1195,38 @@ Java_fm_audioboo_jni_FLACStreamDecoder_read(JNIEnv * env, jobject obj,
 
 
 
+jint
+Java_fm_audioboo_jni_FLACStreamDecoder_decodeRange(JNIEnv * env, jobject obj,
+    jlong start, jint count, jobject buffer)
+{
+  FLACStreamDecoder * decoder = get_decoder(env, obj);
+
+  if (NULL == decoder) {
+    aj::throwByName(env, IllegalArgumentException_classname,
+        "Called without a valid Decoder instance!");
+    return 0;
+  }
+
+  if (start < 0 || count < 0) {
+    aj::throwByName(env, IllegalArgumentException_classname,
+        "Start sample and sample count must not be negative!");
+    return 0;
+  }
+
+  char * buf = static_cast<char *>(env->GetDirectBufferAddress(buffer));
+  jlong needed = static_cast<jlong>(count) * decoder->channels()
+    * (decoder->bitsPerSample() / 8);
+  if (NULL == buf || needed > env->GetDirectBufferCapacity(buffer)) {
+    aj::throwByName(env, IllegalArgumentException_classname,
+        "Buffer is not direct, or too small for the requested range!");
+    return 0;
+  }
+
+  return decoder->decodeRange(start, count, buf);
+}
+
+
+
 jint
 Java_fm_audioboo_jni_FLACStreamDecoder_bitsPerSample(JNIEnv * env, jobject obj)
 {
@@ -850,4 +1338,100 @@ Java_fm_audioboo_jni_FLACStreamDecoder_position(JNIEnv * env, jobject obj)
 }
 
 
+
+void
+Java_fm_audioboo_jni_PeakSummary_generate(JNIEnv * env, jclass cls,
+    jobjectArray infiles, jint bucket_size, jstring outfile, jlong stamp)
+{
+  if (NULL == infiles || NULL == outfile || bucket_size <= 0) {
+    aj::throwByName(env, IllegalArgumentException_classname,
+        "Need input files, an output file and a positive bucket size!");
+    return;
+  }
+
+  peak_summary peaks(bucket_size);
+  int channels = -1;
+
+  jsize count = env->GetArrayLength(infiles);
+  for (jsize i = 0 ; i < count ; ++i) {
+    jstring infile = static_cast<jstring>(env->GetObjectArrayElement(infiles, i));
+    char * path = aj::convert_jstring_path(env, infile);
+    env->DeleteLocalRef(infile);
+
+    // Recordings that can't be read are skipped, as when flattening them.
+    aj::DecoderInput * input = open_input(path, INPUT_MMAP);
+    if (!input) {
+      aj::log(ANDROID_LOG_WARN, LTAG, "Could not open %s, skipping.", path);
+      free(path);
+      continue;
+    }
+
+    FLACStreamDecoder decoder(input);
+    char const * const error = decoder.init();
+    if (error) {
+      aj::log(ANDROID_LOG_WARN, LTAG, "%s Skipping %s.", error, path);
+      free(path);
+      continue;
+    }
+
+    // All recordings share the format of the first one.
+    if (channels < 0) {
+      channels = decoder.channels();
+      peaks.m_sample_rate = decoder.sampleRate();
+    }
+    if (decoder.channels() != channels
+        || decoder.sampleRate() != peaks.m_sample_rate)
+    {
+      aj::log(ANDROID_LOG_WARN, LTAG, "Format of %s differs, skipping.", path);
+      free(path);
+      continue;
+    }
+
+    int ret = decoder.summarize(peaks);
+    if (0 != ret) {
+      aj::log(ANDROID_LOG_WARN, LTAG, "Error %d summarizing %s.", ret, path);
+    }
+    free(path);
+  }
+
+  peaks.finish();
+
+  char * path = aj::convert_jstring_path(env, outfile);
+  char const * const error = peaks.write(path, stamp);
+  free(path);
+  if (error) {
+    aj::throwByName(env, IllegalArgumentException_classname, error);
+  }
+}
+
+
+
+jint
+Java_fm_audioboo_jni_FLACVerifier_verifyFile(JNIEnv * env, jobject obj,
+    jstring infile)
+{
+  char * path = aj::convert_jstring_path(env, infile);
+  aj::DecoderInput * input = open_input(path, INPUT_MMAP);
+  free(path);
+  if (!input) {
+    aj::throwByName(env, IllegalArgumentException_classname,
+        "Could not open file!");
+    return VERIFY_CORRUPT;
+  }
+
+  jclass cls = env->GetObjectClass(obj);
+  verify_job job = { env, obj,
+    env->GetFieldID(cls, FLACVerifier_mCancelled, "Z") };
+  env->DeleteLocalRef(cls);
+
+  // Files that don't even have valid metadata are as corrupt as they get.
+  FLACStreamDecoder decoder(input);
+  if (decoder.init(true)) {
+    return VERIFY_CORRUPT;
+  }
+
+  return decoder.verify(verify_cancelled, &job);
+}
+
+
 } // extern "C"
@@ -11,16 +11,24 @@
 #define __STDINT_LIMITS 1
 #include <stdint.h>
 #include <assert.h>
+#include <stdlib.h>
 #include <string.h>
+#include <errno.h>
 #include <alloca.h>
 #include <limits.h>
 #include <pthread.h>
+#include <semaphore.h>
 #include <unistd.h>
+#include <fcntl.h>
+#include <time.h>
 
 #include "FLAC/metadata.h"
 #include "FLAC/stream_encoder.h"
 
 #include "util.h"
+#include "FrameParallelEncoder.h"
+#include "EncoderOutput.h"
+#include "SeekTable.h"
 
 #include <jni.h>
 
@@ -34,72 +42,368 @@ namespace {
 static char const * const FLACStreamEncoder_classname   = "fm.audioboo.jni.FLACStreamEncoder";
 static char const * const FLACStreamEncoder_mObject     = "mObject";
 
+static char const * const ReleaseListener_onReleased    = "onReleased";
+static char const * const ReleaseListener_onReleased_signature  = "(Z)V";
+
+static char const * const EncoderConfig_mCompressionLevel = "mCompressionLevel";
+static char const * const EncoderConfig_mVerify         = "mVerify";
+static char const * const EncoderConfig_mBlocksize      = "mBlocksize";
+static char const * const EncoderConfig_mMaxLPCOrder    = "mMaxLPCOrder";
+static char const * const EncoderConfig_mWriteBufferSize  = "mWriteBufferSize";
+static char const * const EncoderConfig_mFifoDepth      = "mFifoDepth";
+static char const * const EncoderConfig_mThreads        = "mThreads";
+static char const * const EncoderConfig_mSpillPath      = "mSpillPath";
+static char const * const EncoderConfig_mSeekInterval   = "mSeekInterval";
+static char const * const EncoderConfig_mSeekPoints     = "mSeekPoints";
+static char const * const EncoderConfig_mCheckpointPath = "mCheckpointPath";
+static char const * const EncoderConfig_mCheckpointInterval = "mCheckpointInterval";
+
+static char const * const EncoderMetrics_mQueuedBuffers   = "mQueuedBuffers";
+static char const * const EncoderMetrics_mQueuedBytes     = "mQueuedBytes";
+static char const * const EncoderMetrics_mSpilledBytes    = "mSpilledBytes";
+static char const * const EncoderMetrics_mHighWaterMark   = "mHighWaterMark";
+static char const * const EncoderMetrics_mChunks          = "mChunks";
+static char const * const EncoderMetrics_mEncodeTimeMin   = "mEncodeTimeMin";
+static char const * const EncoderMetrics_mEncodeTimeTotal = "mEncodeTimeTotal";
+static char const * const EncoderMetrics_mEncodeTimeMax   = "mEncodeTimeMax";
+static char const * const EncoderMetrics_mRetries         = "mRetries";
+static char const * const EncoderMetrics_mFailures        = "mFailures";
+static char const * const EncoderMetrics_mSamplesWritten  = "mSamplesWritten";
+static char const * const EncoderMetrics_mBytesEmitted    = "mBytesEmitted";
+
 static char const * const IllegalArgumentException_classname  = "java.lang.IllegalArgumentException";
 
 static char const * const LTAG                          = "FLACStreamEncoder/native";
 
+// Defaults for encoder_config; keep in sync with EncoderConfig.java
 static int COMPRESSION_LEVEL                            = 5;
 
+// Size of each write FIFO slab, in samples, and number of slabs in the FIFO.
+static int WRITE_SLAB_SIZE                              = 32768;
+static int FIFO_DEPTH                                   = 16;
+
+// Seek point every SEEK_INTERVAL seconds, in a table of SEEK_POINTS points.
+static int SEEK_INTERVAL                                = 10;
+static int SEEK_POINTS                                  = 128;
+
+// Checkpoint every CHECKPOINT_INTERVAL seconds, if a checkpoint path is set.
+static int CHECKPOINT_INTERVAL                          = 5;
+
+// Marks blocksize/max LPC order as "as implied by the compression level"
+static int USE_LEVEL_DEFAULT                            = -1;
+
+// Backpressure states; keep in sync with FLACStreamEncoder.java
+static int BACKPRESSURE_NONE                            = 0;
+static int BACKPRESSURE_BLOCKED                         = 1;
+static int BACKPRESSURE_SPILLING                        = 2;
+
+// Indices into the array getAmplitudes() fills; keep in sync with
+// FLACStreamEncoder.java
+static int const AMPLITUDE_PEAK                         = 0;
+static int const AMPLITUDE_AVERAGE                      = 1;
+static int const AMPLITUDE_POSITION                     = 2;
+static int const AMPLITUDE_VALUES                       = 3;
+
+
+
+/*****************************************************************************
+ * Encoder configuration, mirrors fm.audioboo.jni.EncoderConfig
+ **/
+struct encoder_config
+{
+  encoder_config()
+    : m_compression_level(COMPRESSION_LEVEL)
+    , m_verify(true)
+    , m_blocksize(USE_LEVEL_DEFAULT)
+    , m_max_lpc_order(USE_LEVEL_DEFAULT)
+    , m_write_buffer_size(WRITE_SLAB_SIZE)
+    , m_fifo_depth(FIFO_DEPTH)
+    , m_threads(1)
+    , m_spill_path(NULL)
+    , m_seek_interval(SEEK_INTERVAL)
+    , m_seek_points(SEEK_POINTS)
+    , m_checkpoint_path(NULL)
+    , m_checkpoint_interval(CHECKPOINT_INTERVAL)
+  {
+  }
+
+  int   m_compression_level;
+  bool  m_verify;
+  int   m_blocksize;
+  int   m_max_lpc_order;
+  int   m_write_buffer_size;
+  int   m_fifo_depth;
+  int   m_threads;
+
+  // Not freed here; FLACStreamEncoder takes ownership of it.
+  char * m_spill_path;
+
+  // Seek point interval in seconds, and number of seek points; no seek table
+  // is written if either is zero.
+  int   m_seek_interval;
+  int   m_seek_points;
+
+  // Checkpoint sidecar file and interval in seconds; no checkpoints are
+  // written without a path. Not freed here, either.
+  char * m_checkpoint_path;
+  int   m_checkpoint_interval;
+};
+
+
+
+/*****************************************************************************
+ * Encoder metrics, mirrors fm.audioboo.jni.EncoderMetrics. Times are in
+ * microseconds.
+ **/
+struct encoder_metrics
+{
+  encoder_metrics()
+    : m_queued_buffers(0)
+    , m_queued_bytes(0)
+    , m_spilled_bytes(0)
+    , m_high_water_mark(0)
+    , m_chunks(0)
+    , m_encode_time_min(0)
+    , m_encode_time_total(0)
+    , m_encode_time_max(0)
+    , m_retries(0)
+    , m_failures(0)
+    , m_samples_written(0)
+    , m_bytes_emitted(0)
+  {
+  }
+
+  int           m_queued_buffers;
+  FLAC__uint64  m_queued_bytes;
+  FLAC__uint64  m_spilled_bytes;
+  int           m_high_water_mark;
+  FLAC__uint64  m_chunks;
+  FLAC__uint64  m_encode_time_min;
+  FLAC__uint64  m_encode_time_total;
+  FLAC__uint64  m_encode_time_max;
+  int           m_retries;
+  int           m_failures;
+  FLAC__uint64  m_samples_written;
+  FLAC__uint64  m_bytes_emitted;
+};
+
+
+
+/**
+ * Monotonic clock in microseconds.
+ **/
+static FLAC__uint64 now_usec()
+{
+  struct timespec ts;
+  clock_gettime(CLOCK_MONOTONIC, &ts);
+  return static_cast<FLAC__uint64>(ts.tv_sec) * 1000000 + ts.tv_nsec / 1000;
+}
+
+
+
+/*****************************************************************************
+ * PCM sources for FLACStreamEncoder::write_pcm(). lock() returns the start of
+ * the PCM data or NULL on errors; the data is only accessed between lock()
+ * and unlock(), and nothing in between may block or call back into Java.
+ **/
+struct direct_pcm
+{
+  direct_pcm(char * buffer)
+    : m_buffer(buffer)
+  {
+  }
+
+  char * lock()
+  {
+    return m_buffer;
+  }
+
+  void unlock(char * buffer)
+  {
+  }
+
+  char * m_buffer;
+};
+
+
+/**
+ * PCM in a Java array. Pins the array rather than copying it out, so no
+ * other JNI calls are allowed while it's locked.
+ **/
+struct array_pcm
+{
+  array_pcm(JNIEnv * env, jarray array, int offset)
+    : m_env(env)
+    , m_array(array)
+    , m_offset(offset)
+  {
+  }
+
+  char * lock()
+  {
+    char * data = static_cast<char *>(m_env->GetPrimitiveArrayCritical(m_array,
+          NULL));
+    return data ? data + m_offset : NULL;
+  }
+
+  void unlock(char * buffer)
+  {
+    // We only read, so there's nothing to copy back.
+    m_env->ReleasePrimitiveArrayCritical(m_array, buffer - m_offset,
+        JNI_ABORT);
+  }
+
+  JNIEnv *  m_env;
+  jarray    m_array;
+  int       m_offset;
+};
+
 
 
 /*****************************************************************************
  * Native FLACStreamEncoder representation
  *
  * FLACStreamEncoder uses a writer thread to write its internal buffer. The
- * implementation is deliberately simple, and writing functions like this:
+ * implementation works like this:
  *
  * 1. There's a thread on which Java makes JNI calls to write some data, the
  *    JNI thread.
  *    There's also a thread on which data is written to disk via FLAC, the
  *    writer thread.
- * 2. Data is passed from the JNI thread to the writer thread via a locked
- *    singly linked list of buffers; the JNI thread appends buffers to the
- *    list, and once appended, relinquishes ownership which passes to the
- *    writer thread. The writer thread processes the list in a FIFO fashion;
- *    we'll call the list the write FIFO.
- * 3. Upon being called by Java to write data, the JNI thread writes the
- *    data to an internal buffer.
- *    If that buffer becomes full,
- *    a) it's appended to the write FIFO, and ownership is relinquished.
- *    b) a new buffer is allocated for subsequent write calls
- *    c) the writer thread is woken.
+ * 2. Data is passed from the JNI thread to the writer thread via a fixed
+ *    capacity ring of preallocated buffers (slabs); the JNI thread is the
+ *    only producer, the writer thread the only consumer. Neither side takes
+ *    a lock to hand over a slab, and no memory is allocated after init().
+ *    We'll call the ring the write FIFO.
+ * 3. Upon being called by Java to write data, the JNI thread converts the
+ *    data into the slab at the head of the write FIFO.
+ *    If that slab becomes full,
+ *    a) it's published to the writer thread by advancing the head index.
+ *    b) the writer thread is woken via a semaphore.
+ *    c) subsequent write calls use the next free slab.
+ * 4. Only if all slabs are in use does the JNI thread block, until the writer
+ *    thread has consumed a slab.
+ * 5. Unless a spill file is configured. Then the JNI thread appends data to
+ *    that file instead of blocking, and keeps doing so until the writer thread
+ *    has caught up with the file; that keeps the data in order. Memory use
+ *    stays bounded by the slabs either way.
+ *
+ * If more than one encoder thread is configured, the writer thread hands the
+ * slabs to a FrameParallelEncoder instead of a FLAC__StreamEncoder.
+ *
+ * Either way, encoded data goes to an EncoderOutput, i.e. a file or a Java
+ * sink object.
  **/
 
 class FLACStreamEncoder
 {
 public:
-  // Write FIFO
-  struct write_fifo_t
+  // Write FIFO entry; the buffer is allocated once and reused.
+  struct write_slab_t
+  {
+    FLAC__int32 *   m_buffer;
+    int             m_buffer_fill_size;
+  };
+
+
+  // Single producer/single consumer ring of write slabs. Head and tail are
+  // free-running counters; only the producer advances m_head, and only the
+  // consumer advances m_tail.
+  struct write_ring_t
   {
-    write_fifo_t(FLAC__int32 * buf, int fillsize)
-      : m_next(NULL)
-      , m_buffer(buf) // Taking ownership here.
-      , m_buffer_fill_size(fillsize)
+    write_ring_t()
+      : m_slabs(NULL)
+      , m_capacity(0)
+      , m_head(0)
+      , m_tail(0)
     {
     }
 
 
-    ~write_fifo_t()
+    ~write_ring_t()
     {
-      // We have ownership!
-      delete [] m_buffer;
-      delete m_next;
+      if (m_slabs) {
+        for (int i = 0 ; i < m_capacity ; ++i) {
+          delete [] m_slabs[i].m_buffer;
+        }
+        delete [] m_slabs;
+      }
     }
 
 
-    write_fifo_t * last() volatile
+    void allocate(int capacity, int slab_size)
     {
-      volatile write_fifo_t * last = this;
-      while (last->m_next) {
-        last = last->m_next;
+      m_capacity = capacity;
+      m_slabs = new write_slab_t[m_capacity];
+      for (int i = 0 ; i < m_capacity ; ++i) {
+        m_slabs[i].m_buffer = new FLAC__int32[slab_size];
+        m_slabs[i].m_buffer_fill_size = 0;
       }
-      return (write_fifo_t *) last;
     }
 
 
-    write_fifo_t *  m_next;
-    FLAC__int32 *   m_buffer;
-    int             m_buffer_fill_size;
+    /**
+     * Producer side: returns the slab at the head of the ring, or NULL if the
+     * ring is full.
+     **/
+    write_slab_t * head()
+    {
+      __sync_synchronize();
+      if (m_head - m_tail >= static_cast<unsigned>(m_capacity)) {
+        return NULL;
+      }
+      return &m_slabs[m_head % m_capacity];
+    }
+
+
+    /**
+     * Producer side: publishes the slab returned by head().
+     **/
+    void push()
+    {
+      // Make sure the slab contents are visible before the new head is.
+      __sync_synchronize();
+      ++m_head;
+      __sync_synchronize();
+    }
+
+
+    /**
+     * Consumer side: returns the slab at the tail of the ring, or NULL if the
+     * ring is empty.
+     **/
+    write_slab_t * tail()
+    {
+      __sync_synchronize();
+      if (m_head == m_tail) {
+        return NULL;
+      }
+      return &m_slabs[m_tail % m_capacity];
+    }
+
+
+    /**
+     * Consumer side: releases the slab returned by tail() back to the producer.
+     **/
+    void pop()
+    {
+      __sync_synchronize();
+      ++m_tail;
+      __sync_synchronize();
+    }
+
+
+    int size()
+    {
+      __sync_synchronize();
+      return m_head - m_tail;
+    }
+
+
+    write_slab_t *      m_slabs;
+    int                 m_capacity;
+    volatile unsigned   m_head;
+    volatile unsigned   m_tail;
   };
 
   // Thread trampoline arguments
@@ -121,24 +425,42 @@ public:
 
 
   /**
-   * Takes ownership of the outfile.
+   * Takes ownership of the output.
    **/
-  FLACStreamEncoder(char * outfile, int sample_rate, int channels,
-      int bits_per_sample)
-    : m_outfile(outfile)
+  FLACStreamEncoder(aj::EncoderOutput * output, int sample_rate, int channels,
+      int bits_per_sample, encoder_config const & config)
+    : m_output(output)
     , m_sample_rate(sample_rate)
     , m_channels(channels)
     , m_bits_per_sample(bits_per_sample)
+    , m_config(config)
     , m_encoder(NULL)
+    , m_parallel(NULL)
+    , m_seek_table(NULL)
+    , m_stream_bytes(0)
+    , m_audio_offset(0)
+    , m_frame_samples(0)
+    , m_checkpoint_samples(0)
     , m_max_amplitude(0)
     , m_average_sum(0)
     , m_average_count(0)
-    , m_write_buffer(NULL)
-    , m_write_buffer_size(0)
-    , m_write_buffer_offset(0)
-    , m_fifo(NULL)
+    , m_converted_samples(0)
+    , m_write_slab(NULL)
+    , m_write_slab_size(0)
+    , m_producer_waiting(false)
+    , m_writer_started(false)
     , m_kill_writer(false)
+    , m_backpressure(BACKPRESSURE_NONE)
+    , m_queued_samples(0)
+    , m_high_water_mark(0)
+    , m_spill_fd(-1)
+    , m_spilling(false)
+    , m_spill_read_offset(0)
+    , m_spill_write_offset(0)
+    , m_spill_read_buffer(NULL)
   {
+    m_spill_slab.m_buffer = NULL;
+    m_spill_slab.m_buffer_fill_size = 0;
   }
 
 
@@ -148,11 +470,112 @@ public:
    **/
   char const * const init()
   {
-    if (!m_outfile) {
-      return "No file name given!";
+    if (!m_output) {
+      return "No output given!";
+    }
+
+
+    if (m_config.m_compression_level < 0 || m_config.m_compression_level > 8) {
+      return "Compression level must be between 0 and 8!";
+    }
+    if (m_config.m_write_buffer_size < m_channels || m_config.m_fifo_depth < 1) {
+      return "Write buffer size and FIFO depth must be positive!";
+    }
+    if (m_config.m_threads < 0) {
+      return "Thread count must not be negative!";
+    }
+    if (m_config.m_seek_interval < 0 || m_config.m_seek_points < 0) {
+      return "Seek interval and number of seek points must not be negative!";
+    }
+    if (m_config.m_checkpoint_path && m_config.m_checkpoint_interval <= 0) {
+      return "Checkpoint interval must be positive!";
+    }
+
+    // Whatever checkpoint there was refers to the file we're overwriting.
+    if (m_config.m_checkpoint_path) {
+      unlink(m_config.m_checkpoint_path);
     }
 
+    if (m_config.m_seek_interval > 0 && m_config.m_seek_points > 0) {
+      m_seek_table = new aj::SeekTable(m_config.m_seek_interval * m_sample_rate,
+          m_config.m_seek_points);
+      char const * error = m_seek_table->init();
+      if (error) {
+        return error;
+      }
+    }
 
+    int threads = m_config.m_threads;
+    if (0 == threads) {
+      threads = sysconf(_SC_NPROCESSORS_ONLN);
+    }
+
+    char const * error = NULL;
+    if (threads > 1) {
+      error = init_parallel(threads);
+    }
+    else {
+      error = init_serial();
+    }
+    if (error) {
+      return error;
+    }
+
+    // Allocate write FIFO. Based on observations noted down in issue #106,
+    // the default slab size is 32k. Slabs must hold whole interleaved
+    // samples, so round down to a multiple of the channel count.
+    m_write_slab_size = m_config.m_write_buffer_size
+      - (m_config.m_write_buffer_size % m_channels);
+    m_fifo.allocate(m_config.m_fifo_depth, m_write_slab_size);
+
+    if (m_config.m_spill_path) {
+      error = init_spill();
+      if (error) {
+        return error;
+      }
+    }
+
+    // The mutex and condition are only used to let the JNI thread sleep while
+    // the write FIFO is full.
+    int err = pthread_mutex_init(&m_producer_mutex, NULL);
+    if (err) {
+      return "Could not initialize FIFO mutex!";
+    }
+
+    err = pthread_cond_init(&m_producer_condition, NULL);
+    if (err) {
+      return "Could not initialize FIFO condition!";
+    }
+
+    err = pthread_mutex_init(&m_metrics_mutex, NULL);
+    if (err) {
+      return "Could not initialize metrics mutex!";
+    }
+
+    // Create the semaphore the writer thread sleeps on.
+    err = sem_init(&m_writer_semaphore, 0, 0);
+    if (err) {
+      return "Could not initialize writer thread semaphore!";
+    }
+
+    // Start thread!
+    err = pthread_create(&m_writer, NULL, &FLACStreamEncoder::trampoline_func,
+        new trampoline(this, &FLACStreamEncoder::writer_thread, NULL));
+    if (err) {
+      return "Could not start writer thread!";
+    }
+    m_writer_started = true;
+
+    return NULL;
+  }
+
+
+
+  /**
+   * Sets up a single FLAC__StreamEncoder writing to m_output.
+   **/
+  char const * const init_serial()
+  {
     // Try to create the encoder instance
     m_encoder = FLAC__stream_encoder_new();
     if (!m_encoder) {
@@ -164,301 +587,715 @@ public:
     ok &= FLAC__stream_encoder_set_sample_rate(m_encoder, 1.0f * m_sample_rate);
     ok &= FLAC__stream_encoder_set_channels(m_encoder, m_channels);
     ok &= FLAC__stream_encoder_set_bits_per_sample(m_encoder, m_bits_per_sample);
-    ok &= FLAC__stream_encoder_set_verify(m_encoder, true);
-    ok &= FLAC__stream_encoder_set_compression_level(m_encoder, COMPRESSION_LEVEL);
+    ok &= FLAC__stream_encoder_set_verify(m_encoder, m_config.m_verify);
+    ok &= FLAC__stream_encoder_set_compression_level(m_encoder,
+        m_config.m_compression_level);
+    // The compression level sets blocksize and LPC order, so these need to
+    // be overridden afterwards.
+    if (USE_LEVEL_DEFAULT != m_config.m_blocksize) {
+      ok &= FLAC__stream_encoder_set_blocksize(m_encoder, m_config.m_blocksize);
+    }
+    if (USE_LEVEL_DEFAULT != m_config.m_max_lpc_order) {
+      ok &= FLAC__stream_encoder_set_max_lpc_order(m_encoder,
+          m_config.m_max_lpc_order);
+    }
+    if (m_seek_table) {
+      m_metadata[0] = m_seek_table->metadata();
+      ok &= FLAC__stream_encoder_set_metadata(m_encoder, m_metadata, 1);
+    }
     if (!ok) {
       return "Could not set up FLAC__StreamEncoder with the given parameters!";
     }
 
-    // Try initializing the file stream.
-    FLAC__StreamEncoderInitStatus init_status = FLAC__stream_encoder_init_file(
-        m_encoder, m_outfile, NULL, NULL);
+    // Try initializing the stream.
+    FLAC__StreamEncoderInitStatus init_status = FLAC__stream_encoder_init_stream(
+        m_encoder, &FLACStreamEncoder::write_callback,
+        &FLACStreamEncoder::seek_callback, &FLACStreamEncoder::tell_callback,
+        NULL, this);
 
     if (FLAC__STREAM_ENCODER_INIT_STATUS_OK != init_status) {
-      return "Could not initialize FLAC__StreamEncoder for the given file!";
+      return "Could not initialize FLAC__StreamEncoder for the given output!";
     }
 
-    // Allocate write buffer. Based on observations noted down in issue #106, we'll
-    // choose this to be 32k in size. Actual allocation happens lazily.
-    m_write_buffer_size = 32768;
+    return NULL;
+  }
 
-    // The write FIFO gets created lazily. But we'll initialize the mutex for it
-    // here.
-    int err = pthread_mutex_init(&m_fifo_mutex, NULL);
-    if (err) {
-      return "Could not initialize FIFO mutex!";
-    }
 
-    // Similarly, create the condition variable for the writer thread.
-    err = pthread_cond_init(&m_writer_condition, NULL);
-    if (err) {
-      return "Could not initialize writer thread condition!";
+
+  /**
+   * Sets up a FrameParallelEncoder with the given number of threads writing
+   * to m_output.
+   **/
+  char const * const init_parallel(int threads)
+  {
+    m_parallel = new aj::FrameParallelEncoder(m_sample_rate, m_channels,
+        m_bits_per_sample, m_config.m_compression_level, m_config.m_verify,
+        m_config.m_blocksize, m_config.m_max_lpc_order, threads);
+    return m_parallel->init(m_output, m_seek_table);
+  }
+
+
+
+  /**
+   * Opens the spill file, and allocates the buffers used for spilling. The
+   * file is unlinked right away, so it vanishes with the encoder.
+   **/
+  char const * const init_spill()
+  {
+    m_spill_fd = open(m_config.m_spill_path, O_RDWR | O_CREAT | O_TRUNC, 0600);
+    if (m_spill_fd < 0) {
+      return "Could not open spill file!";
     }
+    unlink(m_config.m_spill_path);
 
-    // Start thread!
-    err = pthread_create(&m_writer, NULL, &FLACStreamEncoder::trampoline_func,
-        new trampoline(this, &FLACStreamEncoder::writer_thread, NULL));
+    int err = pthread_mutex_init(&m_spill_mutex, NULL);
     if (err) {
-      return "Could not start writer thread!";
+      close(m_spill_fd);
+      m_spill_fd = -1;
+      return "Could not initialize spill mutex!";
     }
 
+    m_spill_slab.m_buffer = new FLAC__int32[m_write_slab_size];
+    m_spill_read_buffer = new FLAC__int32[m_write_slab_size];
+
     return NULL;
   }
 
 
 
   /**
-   * Destroys encoder instance, releases outfile
+   * Destroys encoder instance, releases output
    **/
   ~FLACStreamEncoder()
   {
-    // Flush thread.
-    flush_to_fifo();
+    finish();
+  }
 
-    pthread_mutex_lock(&m_fifo_mutex);
-    m_kill_writer = true;
-    pthread_mutex_unlock(&m_fifo_mutex);
 
-    pthread_cond_broadcast(&m_writer_condition);
 
-    // Clean up thread related stuff.
-    void * retval = NULL;
-    pthread_join(m_writer, &retval);
-    pthread_cond_destroy(&m_writer_condition);
-    pthread_mutex_destroy(&m_fifo_mutex);
+  /**
+   * Drains the write FIFO, finishes the FLAC stream and releases the output.
+   * Returns true if the stream was completed successfully. Safe to call more
+   * than once; only the first call does anything.
+   **/
+  bool finish()
+  {
+    bool started = m_writer_started;
+    bool flushed = true;
+    if (m_writer_started) {
+      // Flush thread.
+      flushed = flush_to_fifo();
+
+      m_kill_writer = true;
+      __sync_synchronize();
+      sem_post(&m_writer_semaphore);
+
+      // Clean up thread related stuff.
+      void * retval = NULL;
+      pthread_join(m_writer, &retval);
+      sem_destroy(&m_writer_semaphore);
+      pthread_cond_destroy(&m_producer_condition);
+      pthread_mutex_destroy(&m_producer_mutex);
+      pthread_mutex_destroy(&m_metrics_mutex);
+      m_writer_started = false;
+    }
 
     // Clean up FLAC stuff
+    bool finished = false;
     if (m_encoder) {
-      FLAC__stream_encoder_finish(m_encoder);
+      finished = FLAC__stream_encoder_finish(m_encoder);
       FLAC__stream_encoder_delete(m_encoder);
       m_encoder = NULL;
     }
 
-    if (m_outfile) {
-      free(m_outfile);
-      m_outfile = NULL;
+    if (m_parallel) {
+      if (started) {
+        finished = m_parallel->finish();
+        if (!finished) {
+          aj::log(ANDROID_LOG_ERROR, LTAG, "Could not finish parallel encoding!");
+        }
+      }
+      delete m_parallel;
+      m_parallel = NULL;
+    }
+
+    // Audio lost to the spill file leaves a gap in the stream.
+    if (!flushed) {
+      finished = false;
+    }
+
+    // A complete stream needs no recovery; otherwise leave the last
+    // checkpoint in place.
+    if (m_config.m_checkpoint_path && finished) {
+      unlink(m_config.m_checkpoint_path);
+    }
+
+    // Only after the encoders have written it out.
+    delete m_seek_table;
+    m_seek_table = NULL;
+
+    delete m_output;
+    m_output = NULL;
+
+    if (m_spill_fd >= 0) {
+      close(m_spill_fd);
+      m_spill_fd = -1;
+      pthread_mutex_destroy(&m_spill_mutex);
+    }
+    delete [] m_spill_slab.m_buffer;
+    m_spill_slab.m_buffer = NULL;
+    delete [] m_spill_read_buffer;
+    m_spill_read_buffer = NULL;
+
+    free(m_config.m_spill_path);
+    m_config.m_spill_path = NULL;
+    free(m_config.m_checkpoint_path);
+    m_config.m_checkpoint_path = NULL;
+
+    return finished;
+  }
+
+
+
+  /**
+   * Flushes internal buffers to disk.
+   **/
+  void flush()
+  {
+    //aj::log(ANDROID_LOG_DEBUG, LTAG, "flush() called.");
+    flush_to_fifo();
+  }
+
+
+
+  /**
+   * Writes bufsize elements from buffer to the stream. Returns the number of
+   * bytes actually written.
+   **/
+  int write(char * buffer, int bufsize)
+  {
+    direct_pcm pcm(buffer);
+    return write_pcm(pcm, bufsize);
+  }
+
+
+
+  /**
+   * Writes bufsize bytes of PCM from the given source, converting it straight
+   * into the write FIFO. The source is only locked while a slab is filled, so
+   * waiting for a free slab never happens with a Java array pinned.
+   * Returns the number of bytes actually written; that is short of bufsize if
+   * a slab could not be spilled to disk.
+   **/
+  template <typename pcmT>
+  int write_pcm(pcmT & pcm, int bufsize)
+  {
+    //aj::log(ANDROID_LOG_DEBUG, LTAG, "Asked to write buffer of size %d", bufsize);
+
+    // We have 8 or 16 bit pcm in the buffer, but FLAC expects 32 bit samples,
+    // where some of the 32 bits are unused.
+    int bytes_per_sample = m_bits_per_sample / 8;
+    if (1 != bytes_per_sample && 2 != bytes_per_sample) {
+      // XXX should never happen, just exit.
+      return 0;
+    }
+    int bufsize32 = bufsize / bytes_per_sample;
+    //aj::log(ANDROID_LOG_DEBUG, LTAG, "Required size: %d", bufsize32);
+
+    // Distribute the buffer over as many slabs as necessary. Slabs are
+    // published as soon as they're full.
+    m_backpressure = BACKPRESSURE_NONE;
+    int offset = 0;
+    while (offset < bufsize32) {
+      if (!m_write_slab) {
+        m_write_slab = acquire_slab();
+      }
+
+      int count = m_write_slab_size - m_write_slab->m_buffer_fill_size;
+      if (count > bufsize32 - offset) {
+        count = bufsize32 - offset;
+      }
+
+      char * buffer = pcm.lock();
+      if (!buffer) {
+        return offset * bytes_per_sample;
+      }
+      copyBuffer(buffer + offset * bytes_per_sample, count);
+      pcm.unlock(buffer);
+      offset += count;
+
+      if (m_write_slab->m_buffer_fill_size >= m_write_slab_size) {
+        if (!flush_to_fifo()) {
+          // The slab was lost; only what went before it made it.
+          return (offset - count) * bytes_per_sample;
+        }
+      }
+    }
+
+    if (m_write_slab == &m_spill_slab) {
+      m_backpressure = BACKPRESSURE_SPILLING;
+    }
+
+    return bufsize;
+  }
+
+
+
+  int getBitsPerSample() const
+  {
+    return m_bits_per_sample;
+  }
+
+
+
+  /**
+   * Returns how much the last write() call was held up by the writer thread.
+   **/
+  int getBackpressure()
+  {
+    return m_backpressure;
+  }
+
+
+
+  /**
+   * Returns a snapshot of the pipeline metrics. May be called from any thread.
+   **/
+  encoder_metrics getMetrics()
+  {
+    pthread_mutex_lock(&m_metrics_mutex);
+    encoder_metrics metrics = m_metrics;
+    pthread_mutex_unlock(&m_metrics_mutex);
+
+    metrics.m_queued_buffers = m_fifo.size();
+    metrics.m_queued_bytes = static_cast<FLAC__uint64>(
+        __sync_fetch_and_add(&m_queued_samples, 0)) * sizeof(FLAC__int32);
+    metrics.m_high_water_mark = m_high_water_mark;
+
+    if (m_spill_fd >= 0) {
+      pthread_mutex_lock(&m_spill_mutex);
+      metrics.m_spilled_bytes = m_spill_write_offset - m_spill_read_offset;
+      pthread_mutex_unlock(&m_spill_mutex);
+    }
+
+    return metrics;
+  }
+
+
+
+  /**
+   * Writer thread function.
+   **/
+  void * writer_thread(void * args)
+  {
+    m_output->thread_started();
+
+    // Loop until m_kill_writer is set. The flag is read before the FIFO is
+    // drained, so anything published before it was set still gets written.
+    bool done = false;
+    do {
+      //aj::log(ANDROID_LOG_DEBUG, LTAG, "Going to sleep...");
+      while (0 != sem_wait(&m_writer_semaphore)) {
+        // Interrupted; try again.
+      }
+      __sync_synchronize();
+      done = m_kill_writer;
+      //aj::log(ANDROID_LOG_DEBUG, LTAG, "Wakeup: should I die after this? %s", (done ? "yes" : "no"));
+
+      // Slabs in the FIFO are always older than spilled data, so drain the
+      // FIFO first.
+      while (true) {
+        write_slab_t * current = m_fifo.tail();
+        if (current) {
+          //aj::log(ANDROID_LOG_DEBUG, LTAG, "Encoding current slab %p, size %d",
+          //    current->m_buffer, current->m_buffer_fill_size);
+          int size = current->m_buffer_fill_size;
+          encode(current->m_buffer, size);
+
+          // Hand the slab back to the JNI thread.
+          m_fifo.pop();
+          __sync_fetch_and_sub(&m_queued_samples, size);
+          wake_producer();
+          continue;
+        }
+
+        int size = 0;
+        if (m_spill_fd < 0 || !read_spill(size)) {
+          break;
+        }
+        encode(m_spill_read_buffer, size);
+      }
+
+      //aj::log(ANDROID_LOG_DEBUG, LTAG, "End of wakeup, or should I die? %s", (done ? "yes" : "no"));
+    } while (!done);
+
+    //aj::log(ANDROID_LOG_DEBUG, LTAG, "Writer thread dies.");
+    m_output->thread_finished();
+    return NULL;
+  }
+
+
+
+  /**
+   * Fills amplitudes with the peak and average amplitude written since the
+   * last call, and the position after the last sample written, in msec; see
+   * the AMPLITUDE_* indices. Must be called on the thread that writes.
+   **/
+  void getAmplitudes(float * amplitudes)
+  {
+    amplitudes[AMPLITUDE_PEAK] = m_max_amplitude;
+    amplitudes[AMPLITUDE_AVERAGE] = m_average_count
+      ? m_average_sum / m_average_count
+      : 0;
+    amplitudes[AMPLITUDE_POSITION] = (1000.0 * m_converted_samples / m_channels)
+      / m_sample_rate;
+
+    m_max_amplitude = 0;
+    m_average_sum = 0;
+    m_average_count = 0;
+  }
+
+
+private:
+  /**
+   * Encodes size interleaved samples from buffer, retrying a few times on
+   * errors. Returns false if the samples were dropped.
+   **/
+  bool encode(FLAC__int32 * buffer, int size)
+  {
+    FLAC__uint64 start = now_usec();
+    int retries = 0;
+    bool ok = false;
+    while (true) {
+      // Encode! FLAC wants the number of samples per channel here.
+      if (m_parallel) {
+        ok = m_parallel->process(buffer, size / m_channels);
+      }
+      else {
+        ok = FLAC__stream_encoder_process_interleaved(m_encoder, buffer,
+            size / m_channels);
+      }
+      if (ok) {
+        break;
+      }
+
+      // We don't really know how much was written, we have to assume it was
+      // nothing. The parallel encoder doesn't recover from errors, though, so
+      // there's no point in retrying that.
+      if (m_parallel || retries >= 3) {
+        aj::log(ANDROID_LOG_ERROR, LTAG, "Giving up on writing current FIFO slab!");
+        break;
+      }
+
+      // Sleep a little before retrying.
+      aj::log(ANDROID_LOG_ERROR, LTAG, "Writing FIFO slab %p failed; retrying...",
+          buffer);
+      ++retries;
+      usleep(5000); // 5msec
+    }
+
+    update_metrics(now_usec() - start, retries, ok, ok ? size / m_channels : 0);
+    if (ok && m_config.m_checkpoint_path) {
+      checkpoint();
     }
+    return ok;
+  }
+
+
+
+  /**
+   * Writer thread side: once enough samples were encoded since the last
+   * checkpoint, flushes the output and records the number of samples in and
+   * the size of the complete frames written so far in the checkpoint file.
+   * That's all that is needed to salvage the stream if we never get to
+   * finish it; see EncoderCheckpoint.java for the format.
+   **/
+  void checkpoint()
+  {
+    FLAC__uint64 samples = m_frame_samples;
+    FLAC__uint64 offset = m_stream_bytes;
+    if (m_parallel && !m_parallel->written(samples, offset)) {
+      return;
+    }
+
+    if (samples < m_checkpoint_samples + static_cast<FLAC__uint64>(
+          m_config.m_checkpoint_interval) * m_sample_rate)
+    {
+      return;
+    }
+    if (!m_output->flush()) {
+      aj::log(ANDROID_LOG_ERROR, LTAG, "Could not flush output for checkpoint!");
+      return;
+    }
+
+    unsigned char record[16];
+    for (int i = 0 ; i < 8 ; ++i) {
+      record[i] = (samples >> (56 - 8 * i)) & 0xff;
+      record[8 + i] = (offset >> (56 - 8 * i)) & 0xff;
+    }
+
+    // Write to a temporary file first, so that a crash can't leave a
+    // half-written checkpoint behind.
+    size_t path_len = strlen(m_config.m_checkpoint_path);
+    char * tmp_path = static_cast<char *>(alloca(path_len + 5));
+    memcpy(tmp_path, m_config.m_checkpoint_path, path_len);
+    memcpy(tmp_path + path_len, ".tmp", 5);
+
+    int fd = open(tmp_path, O_WRONLY | O_CREAT | O_TRUNC, 0600);
+    if (fd < 0) {
+      aj::log(ANDROID_LOG_ERROR, LTAG, "Could not open checkpoint file!");
+      return;
+    }
+    bool ok = (sizeof(record) == ::write(fd, record, sizeof(record)));
+    ok = (0 == close(fd)) && ok;
+    if (!ok || 0 != rename(tmp_path, m_config.m_checkpoint_path)) {
+      aj::log(ANDROID_LOG_ERROR, LTAG, "Could not write checkpoint file!");
+      unlink(tmp_path);
+      return;
+    }
+
+    m_checkpoint_samples = samples;
   }
 
 
 
   /**
-   * Flushes internal buffers to disk.
+   * Writer thread side: records the outcome of encoding one chunk.
    **/
-  int flush()
+  void update_metrics(FLAC__uint64 duration, int retries, bool ok,
+      int samples)
   {
-    //aj::log(ANDROID_LOG_DEBUG, LTAG, "flush() called.");
-    flush_to_fifo();
+    pthread_mutex_lock(&m_metrics_mutex);
 
-    // Signal writer to wake up.
-    pthread_cond_signal(&m_writer_condition);
+    if (!m_metrics.m_chunks || duration < m_metrics.m_encode_time_min) {
+      m_metrics.m_encode_time_min = duration;
+    }
+    if (duration > m_metrics.m_encode_time_max) {
+      m_metrics.m_encode_time_max = duration;
+    }
+    m_metrics.m_encode_time_total += duration;
+    ++m_metrics.m_chunks;
+
+    m_metrics.m_retries += retries;
+    if (!ok) {
+      ++m_metrics.m_failures;
+    }
+    m_metrics.m_samples_written += samples;
+
+    // The output is only written to from this thread while it runs.
+    m_metrics.m_bytes_emitted = m_output->bytes_written();
+
+    pthread_mutex_unlock(&m_metrics_mutex);
   }
 
 
 
   /**
-   * Writes bufsize elements from buffer to the stream. Returns the number of
-   * bytes actually written.
+   * Writer thread side: reads the next chunk of spilled samples into
+   * m_spill_read_buffer, and stores the number of samples read in size.
+   * Returns false if the spill file is exhausted, or could not be read; in the
+   * latter case the read offset stays put, so the next wakeup retries.
    **/
-  int write(char * buffer, int bufsize)
+  bool read_spill(int & size)
   {
-    //aj::log(ANDROID_LOG_DEBUG, LTAG, "Asked to write buffer of size %d", bufsize);
-
-    // We have 8 or 16 bit pcm in the buffer, but FLAC expects 32 bit samples,
-    // where some of the 32 bits are unused.
-    int bufsize32 = bufsize / (m_bits_per_sample / 8);
-    //aj::log(ANDROID_LOG_DEBUG, LTAG, "Required size: %d", bufsize32);
-
-    // Protect from overly large buffers on the JNI side.
-    if (bufsize32 > m_write_buffer_size) {
-      // The only way we can handle this sanely without fragmenting buffers and
-      // so forth is to use a separate code path here. In this, we'll flush the
-      // current write buffer to the FIFO, and immediately append a new
-      // FIFO entry that's as large as bufsize32.
-      flush_to_fifo();
-
-      m_write_buffer = new FLAC__int32[bufsize32];
-      m_write_buffer_offset = 0;
-
-      int ret = copyBuffer(buffer, bufsize, bufsize32);
-      flush_to_fifo();
+    pthread_mutex_lock(&m_spill_mutex);
+    off_t available = m_spill_write_offset - m_spill_read_offset;
+    if (available <= 0) {
+      // Caught up; the JNI thread may use the FIFO again.
+      if (m_spilling) {
+        aj::log(ANDROID_LOG_INFO, LTAG, "Spill file drained.");
+        ftruncate(m_spill_fd, 0);
+        m_spill_read_offset = m_spill_write_offset = 0;
+        m_spilling = false;
+      }
+      pthread_mutex_unlock(&m_spill_mutex);
+      return false;
+    }
+    pthread_mutex_unlock(&m_spill_mutex);
+
+    // Data below the write offset doesn't change, so it can be read without
+    // holding the mutex. Only this thread modifies the read offset, but
+    // getMetrics() reads it too, so it's only updated under the mutex.
+    off_t bytes = m_write_slab_size * sizeof(FLAC__int32);
+    if (bytes > available) {
+      bytes = available;
+    }
+    off_t offset = m_spill_read_offset;
+    char * buffer = reinterpret_cast<char *>(m_spill_read_buffer);
+    off_t got = 0;
+    while (got < bytes) {
+      ssize_t result = pread(m_spill_fd, buffer + got, bytes - got,
+          offset + got);
+      if (result < 0 && EINTR == errno) {
+        continue;
+      }
+      if (result <= 0) {
+        aj::log(ANDROID_LOG_ERROR, LTAG, "Could not read from spill file!");
+        pthread_mutex_lock(&m_metrics_mutex);
+        ++m_metrics.m_failures;
+        pthread_mutex_unlock(&m_metrics_mutex);
+        return false;
+      }
+      got += result;
+    }
 
-      // Signal writer to wake up.
-      pthread_cond_signal(&m_writer_condition);
+    pthread_mutex_lock(&m_spill_mutex);
+    m_spill_read_offset += bytes;
+    pthread_mutex_unlock(&m_spill_mutex);
 
-      return ret;
-    }
+    size = bytes / sizeof(FLAC__int32);
+    return true;
+  }
 
 
-    // If the current write buffer cannot hold the amount of data we've
-    // got, push it onto the write FIFO and create a new buffer.
-    if (m_write_buffer && m_write_buffer_offset + bufsize32 > m_write_buffer_size) {
-      aj::log(ANDROID_LOG_DEBUG, LTAG, "JNI buffer is full, pushing to FIFO");
-      flush_to_fifo();
 
-      // Signal writer to wake up.
-      pthread_cond_signal(&m_writer_condition);
+  /**
+   * JNI thread side: appends the slab's contents to the spill file. Returns
+   * false if that failed, in which case the slab's contents are lost.
+   **/
+  bool spill(write_slab_t * slab)
+  {
+    size_t bytes = slab->m_buffer_fill_size * sizeof(FLAC__int32);
+
+    pthread_mutex_lock(&m_spill_mutex);
+    ssize_t written = pwrite(m_spill_fd, slab->m_buffer, bytes,
+        m_spill_write_offset);
+    bool ok = written >= 0 && static_cast<size_t>(written) == bytes;
+    if (ok) {
+      m_spill_write_offset += bytes;
     }
+    // The writer thread may have caught up while this slab was being filled,
+    // but the FIFO must stay unused until the file is drained again.
+    m_spilling = true;
+    pthread_mutex_unlock(&m_spill_mutex);
 
-    // If we need to create a new buffer, do so now.
-    if (!m_write_buffer) {
-      //aj::log(ANDROID_LOG_DEBUG, LTAG, "Need new buffer.");
-      m_write_buffer = new FLAC__int32[m_write_buffer_size];
-      m_write_buffer_offset = 0;
+    if (!ok) {
+      aj::log(ANDROID_LOG_ERROR, LTAG, "Could not write to spill file!");
+      pthread_mutex_lock(&m_metrics_mutex);
+      ++m_metrics.m_failures;
+      pthread_mutex_unlock(&m_metrics_mutex);
     }
-
-    // At this point we know that there's a write buffer, and we know that
-    // there's enough space in it to write the data we've received.
-    return copyBuffer(buffer, bufsize, bufsize32);
+    return ok;
   }
 
 
 
   /**
-   * Writer thread function.
+   * Returns the next free slab. While the write FIFO is full, either returns
+   * the spill slab, or blocks if there is no spill file.
    **/
-  void * writer_thread(void * args)
+  write_slab_t * acquire_slab()
   {
-    // Loop while m_kill_writer is false.
-    pthread_mutex_lock(&m_fifo_mutex);
-    do {
-      //aj::log(ANDROID_LOG_DEBUG, LTAG, "Going to sleep...");
-      pthread_cond_wait(&m_writer_condition, &m_fifo_mutex);
-      //aj::log(ANDROID_LOG_DEBUG, LTAG, "Wakeup: should I die after this? %s", (m_kill_writer ? "yes" : "no"));
-
-      // Grab ownership over the current FIFO, and release the lock again.
-      write_fifo_t * fifo = (write_fifo_t *) m_fifo;
-      while (fifo) {
-        m_fifo = NULL;
-        pthread_mutex_unlock(&m_fifo_mutex);
-
-        // Now we can take all the time we want to iterate over the FIFO's
-        // contents. We just need to make sure to grab the lock again before
-        // going into the next iteration of this loop.
-        int retry = 0;
-
-        write_fifo_t * current = fifo;
-        while (current) {
-          //aj::log(ANDROID_LOG_DEBUG, LTAG, "Encoding current entry %p, buffer %p, size %d",
-          //    current, current->m_buffer, current->m_buffer_fill_size);
-
-          // Encode!
-          FLAC__bool ok = FLAC__stream_encoder_process_interleaved(m_encoder,
-              current->m_buffer, current->m_buffer_fill_size);
-          if (ok) {
-            retry = 0;
-          }
-          else {
-            // We don't really know how much was written, we have to assume it was
-            // nothing.
-            if (++retry > 3) {
-              aj::log(ANDROID_LOG_ERROR, LTAG, "Giving up on writing current FIFO!");
-              break;
-            }
-            else {
-              // Sleep a little before retrying.
-              aj::log(ANDROID_LOG_ERROR, LTAG, "Writing FIFO entry %p failed; retrying...");
-              usleep(5000); // 5msec
-            }
-            continue;
-          }
-
-          current = current->m_next;
-        }
+    if (m_spill_fd >= 0) {
+      write_slab_t * slab = NULL;
 
-        // Once we've written everything, delete the fifo and grab the lock again.
-        delete fifo;
-        pthread_mutex_lock(&m_fifo_mutex);
-        fifo = (write_fifo_t *) m_fifo;
+      pthread_mutex_lock(&m_spill_mutex);
+      if (!m_spilling) {
+        slab = m_fifo.head();
       }
+      if (!slab) {
+        if (!m_spilling) {
+          aj::log(ANDROID_LOG_WARN, LTAG, "Write FIFO is full, spilling to disk.");
+        }
+        m_spilling = true;
+        m_backpressure = BACKPRESSURE_SPILLING;
+        slab = &m_spill_slab;
+      }
+      pthread_mutex_unlock(&m_spill_mutex);
 
-      //aj::log(ANDROID_LOG_DEBUG, LTAG, "End of wakeup, or should I die? %s", (m_kill_writer ? "yes" : "no"));
-    } while (!m_kill_writer);
-
-    pthread_mutex_unlock(&m_fifo_mutex);
-
-    //aj::log(ANDROID_LOG_DEBUG, LTAG, "Writer thread dies.");
-	for (long i=0;i<50; i++){
-		aj::log(ANDROID_LOG_DEBUG, LTAG,".");
-		usleep(5000);
-	}
-    aj::log(ANDROID_LOG_DEBUG, LTAG, "slept.");
-    return NULL;
-  }
+      slab->m_buffer_fill_size = 0;
+      return slab;
+    }
 
+    write_slab_t * slab = m_fifo.head();
+    if (!slab) {
+      aj::log(ANDROID_LOG_WARN, LTAG, "Write FIFO is full, waiting for writer thread.");
+      m_backpressure = BACKPRESSURE_BLOCKED;
 
+      pthread_mutex_lock(&m_producer_mutex);
+      m_producer_waiting = true;
+      while (NULL == (slab = m_fifo.head())) {
+        pthread_cond_wait(&m_producer_condition, &m_producer_mutex);
+      }
+      m_producer_waiting = false;
+      pthread_mutex_unlock(&m_producer_mutex);
+    }
 
-  float getMaxAmplitude()
-  {
-    float result = m_max_amplitude;
-    m_max_amplitude = 0;
-    return result;
+    slab->m_buffer_fill_size = 0;
+    return slab;
   }
 
 
 
-  float getAverageAmplitude()
+  /**
+   * Wakes the JNI thread if it's waiting for a free slab.
+   **/
+  inline void wake_producer()
   {
-    float result = m_average_sum / m_average_count;
-    m_average_sum = 0;
-    m_average_count = 0;
-    return result;
+    // m_fifo.pop() issued a full barrier, so either we see m_producer_waiting
+    // here, or the JNI thread sees the free slab before it goes to sleep.
+    if (!m_producer_waiting) {
+      return;
+    }
+
+    pthread_mutex_lock(&m_producer_mutex);
+    pthread_cond_signal(&m_producer_condition);
+    pthread_mutex_unlock(&m_producer_mutex);
   }
 
 
-private:
+
   /**
-   * Append current write buffer to FIFO, and clear it.
+   * Publish current write slab to the FIFO or spill file, and wake the writer
+   * thread. Returns false if the slab could not be spilled.
    **/
-  inline void flush_to_fifo()
+  inline bool flush_to_fifo()
   {
-    if (!m_write_buffer) {
-      return;
+    if (!m_write_slab) {
+      return true;
     }
 
     //aj::log(ANDROID_LOG_DEBUG, LTAG, "Flushing to FIFO.");
+    bool ok = true;
+    if (m_write_slab->m_buffer_fill_size > 0) {
+      if (m_write_slab == &m_spill_slab) {
+        ok = spill(m_write_slab);
+      }
+      else {
+        __sync_fetch_and_add(&m_queued_samples, m_write_slab->m_buffer_fill_size);
+        m_fifo.push();
 
-    write_fifo_t * next = new write_fifo_t(m_write_buffer,
-        m_write_buffer_offset);
-    m_write_buffer = NULL;
-
-    pthread_mutex_lock(&m_fifo_mutex);
-    if (m_fifo) {
-      write_fifo_t * last = m_fifo->last();
-      last->m_next = next;
-    }
-    else {
-      m_fifo = next;
+        int queued = m_fifo.size();
+        if (queued > m_high_water_mark) {
+          m_high_water_mark = queued;
+        }
+      }
+      m_write_slab = NULL;
     }
-    //aj::log(ANDROID_LOG_DEBUG, LTAG, "FIFO: %p, new entry: %p", m_fifo, next);
-    pthread_mutex_unlock(&m_fifo_mutex);
+
+    // Signal writer to wake up.
+    sem_post(&m_writer_semaphore);
+    return ok;
   }
 
 
 
   /**
-   * Wrapper around templatized copyBuffer that writes to the current write
-   * buffer at the current offset.
+   * Wrapper around templatized copyBuffer that writes count samples to the
+   * current write slab at the current offset.
    **/
-  inline int copyBuffer(char * buffer, int bufsize, int bufsize32)
+  inline void copyBuffer(char * buffer, int count)
   {
-    FLAC__int32 * buf = m_write_buffer + m_write_buffer_offset;
+    FLAC__int32 * buf = m_write_slab->m_buffer + m_write_slab->m_buffer_fill_size;
 
-    //aj::log(ANDROID_LOG_DEBUG, LTAG, "Writing at %p[%d] = %p", m_write_buffer, m_write_buffer_offset, buf);
+    //aj::log(ANDROID_LOG_DEBUG, LTAG, "Writing at %p[%d] = %p", m_write_slab->m_buffer, m_write_slab->m_buffer_fill_size, buf);
     if (8 == m_bits_per_sample) {
-      copyBuffer<int8_t>(buf, buffer, bufsize);
-      m_write_buffer_offset += bufsize32;
-    }
-    else if (16 == m_bits_per_sample) {
-      copyBuffer<int16_t>(buf, buffer, bufsize);
-      m_write_buffer_offset += bufsize32;
+      copyBuffer<int8_t>(buf, buffer, count * sizeof(int8_t));
     }
     else {
-      // XXX should never happen, just exit.
-      return 0;
+      copyBuffer<int16_t>(buf, buffer, count * sizeof(int16_t));
     }
-
-    return bufsize;
+    m_write_slab->m_buffer_fill_size += count;
   }
 
 
@@ -466,8 +1303,8 @@ private:
   /**
    * Copies inbuf to outpuf, assuming that inbuf is really a buffer of
    * sized_sampleT.
-   * As a side effect, m_max_amplitude, m_average_sum and m_average_count are
-   * modified.
+   * As a side effect, m_max_amplitude, m_average_sum, m_average_count and
+   * m_converted_samples are modified.
    **/
   template <typename sized_sampleT>
   void copyBuffer(FLAC__int32 * outbuf, char * inbuf, int inbufsize)
@@ -498,6 +1335,73 @@ private:
         ++m_average_count;
       }
     }
+    m_converted_samples += inbufsize / sizeof(sized_sampleT);
+  }
+
+
+  // FLAC__StreamEncoder callbacks; client_data is the FLACStreamEncoder.
+  static FLAC__StreamEncoderWriteStatus write_callback(
+      FLAC__StreamEncoder const * encoder, FLAC__byte const buffer[],
+      size_t bytes, unsigned samples, unsigned current_frame,
+      void * client_data)
+  {
+    FLACStreamEncoder * self = static_cast<FLACStreamEncoder *>(client_data);
+    if (!self->m_output->write(buffer, bytes)) {
+      return FLAC__STREAM_ENCODER_WRITE_STATUS_FATAL_ERROR;
+    }
+
+    // Frames are written with one call each, metadata with no samples. The
+    // stream is only rewound once encoding is finished, so until then
+    // m_stream_bytes is the write position.
+    if (samples > 0 && self->m_seek_table) {
+      if (0 == current_frame) {
+        self->m_audio_offset = self->m_stream_bytes;
+      }
+      self->m_seek_table->add_frame(
+          static_cast<FLAC__uint64>(current_frame)
+            * FLAC__stream_encoder_get_blocksize(encoder),
+          self->m_stream_bytes - self->m_audio_offset, samples);
+    }
+    self->m_stream_bytes += bytes;
+    self->m_frame_samples += samples;
+
+    return FLAC__STREAM_ENCODER_WRITE_STATUS_OK;
+  }
+
+
+  static FLAC__StreamEncoderSeekStatus seek_callback(
+      FLAC__StreamEncoder const * encoder, FLAC__uint64 absolute_byte_offset,
+      void * client_data)
+  {
+    FLACStreamEncoder * self = static_cast<FLACStreamEncoder *>(client_data);
+    switch (self->m_output->seek(absolute_byte_offset)) {
+      case aj::EncoderOutput::OK:
+        return FLAC__STREAM_ENCODER_SEEK_STATUS_OK;
+
+      case aj::EncoderOutput::UNSUPPORTED:
+        return FLAC__STREAM_ENCODER_SEEK_STATUS_UNSUPPORTED;
+
+      default:
+        return FLAC__STREAM_ENCODER_SEEK_STATUS_ERROR;
+    }
+  }
+
+
+  static FLAC__StreamEncoderTellStatus tell_callback(
+      FLAC__StreamEncoder const * encoder, FLAC__uint64 * absolute_byte_offset,
+      void * client_data)
+  {
+    FLACStreamEncoder * self = static_cast<FLACStreamEncoder *>(client_data);
+    switch (self->m_output->tell(*absolute_byte_offset)) {
+      case aj::EncoderOutput::OK:
+        return FLAC__STREAM_ENCODER_TELL_STATUS_OK;
+
+      case aj::EncoderOutput::UNSUPPORTED:
+        return FLAC__STREAM_ENCODER_TELL_STATUS_UNSUPPORTED;
+
+      default:
+        return FLAC__STREAM_ENCODER_TELL_STATUS_ERROR;
+    }
   }
 
 
@@ -519,32 +1423,72 @@ private:
 
 
   // Configuration values passed to ctor
-  char *  m_outfile;
+  aj::EncoderOutput * m_output;
   int     m_sample_rate;
   int     m_channels;
   int     m_bits_per_sample;
+  encoder_config  m_config;
 
-  // FLAC encoder instance
-  FLAC__StreamEncoder * m_encoder;
+  // FLAC encoder instance, or parallel encoder.
+  FLAC__StreamEncoder *       m_encoder;
+  aj::FrameParallelEncoder *  m_parallel;
+
+  // Seek table, if any, and what's needed to fill it from write_callback.
+  aj::SeekTable *             m_seek_table;
+  FLAC__StreamMetadata *      m_metadata[1];
+  FLAC__uint64                m_stream_bytes;
+  FLAC__uint64                m_audio_offset;
+
+  // Serial encoder: samples in frames written; m_stream_bytes is the end of
+  // the last of them. Both: samples at the last checkpoint.
+  FLAC__uint64                m_frame_samples;
+  FLAC__uint64                m_checkpoint_samples;
 
   // Max amplitude measured
   float   m_max_amplitude;
   float   m_average_sum;
   int     m_average_count;
+  // Samples written so far, over all channels.
+  FLAC__uint64  m_converted_samples;
 
-  // JNI thread's buffer.
-  FLAC__int32 * m_write_buffer;
-  int           m_write_buffer_size;
-  int           m_write_buffer_offset;
+  // JNI thread's current slab; owned by the JNI thread until published.
+  write_slab_t *  m_write_slab;
+  int             m_write_slab_size;
 
   // Write FIFO
-  volatile write_fifo_t * m_fifo;
-  pthread_mutex_t         m_fifo_mutex;
+  write_ring_t    m_fifo;
+
+  // For letting the JNI thread sleep while the write FIFO is full.
+  pthread_mutex_t m_producer_mutex;
+  pthread_cond_t  m_producer_condition;
+  volatile bool   m_producer_waiting;
 
   // Writer thread
   pthread_t       m_writer;
-  pthread_cond_t  m_writer_condition;
+  sem_t           m_writer_semaphore;
+  bool            m_writer_started;
   volatile bool   m_kill_writer;
+
+  // One of the BACKPRESSURE_* constants, for the last write() call.
+  int             m_backpressure;
+
+  // Metrics. Queue statistics are maintained by the JNI thread, the rest by
+  // the writer thread under m_metrics_mutex.
+  volatile int    m_queued_samples;
+  volatile int    m_high_water_mark;
+  pthread_mutex_t m_metrics_mutex;
+  encoder_metrics m_metrics;
+
+  // Spill file. While m_spilling is set, the JNI thread fills m_spill_slab
+  // and appends it to the file instead of using the FIFO. The mutex guards
+  // m_spilling and the write offset.
+  int             m_spill_fd;
+  pthread_mutex_t m_spill_mutex;
+  bool            m_spilling;
+  off_t           m_spill_read_offset;
+  off_t           m_spill_write_offset;
+  write_slab_t    m_spill_slab;
+  FLAC__int32 *   m_spill_read_buffer;
 };
 
 
@@ -572,6 +1516,98 @@ static FLACStreamEncoder * get_encoder(JNIEnv * env, jobject obj)
 }
 
 
+/**
+ * Read an encoder_config from the passed EncoderConfig jobject. If obj is
+ * NULL, defaults are returned.
+ **/
+static encoder_config get_config(JNIEnv * env, jobject obj)
+{
+  encoder_config config;
+  if (NULL == obj) {
+    return config;
+  }
+
+  jclass cls = env->GetObjectClass(obj);
+
+  config.m_compression_level = env->GetIntField(obj,
+      env->GetFieldID(cls, EncoderConfig_mCompressionLevel, "I"));
+  config.m_verify = env->GetBooleanField(obj,
+      env->GetFieldID(cls, EncoderConfig_mVerify, "Z"));
+  config.m_blocksize = env->GetIntField(obj,
+      env->GetFieldID(cls, EncoderConfig_mBlocksize, "I"));
+  config.m_max_lpc_order = env->GetIntField(obj,
+      env->GetFieldID(cls, EncoderConfig_mMaxLPCOrder, "I"));
+  config.m_write_buffer_size = env->GetIntField(obj,
+      env->GetFieldID(cls, EncoderConfig_mWriteBufferSize, "I"));
+  config.m_fifo_depth = env->GetIntField(obj,
+      env->GetFieldID(cls, EncoderConfig_mFifoDepth, "I"));
+  config.m_threads = env->GetIntField(obj,
+      env->GetFieldID(cls, EncoderConfig_mThreads, "I"));
+
+  config.m_seek_interval = env->GetIntField(obj,
+      env->GetFieldID(cls, EncoderConfig_mSeekInterval, "I"));
+  config.m_seek_points = env->GetIntField(obj,
+      env->GetFieldID(cls, EncoderConfig_mSeekPoints, "I"));
+
+  jstring spill_path = static_cast<jstring>(env->GetObjectField(obj,
+      env->GetFieldID(cls, EncoderConfig_mSpillPath, "Ljava/lang/String;")));
+  if (NULL != spill_path) {
+    config.m_spill_path = aj::convert_jstring_path(env, spill_path);
+    env->DeleteLocalRef(spill_path);
+  }
+
+  config.m_checkpoint_interval = env->GetIntField(obj,
+      env->GetFieldID(cls, EncoderConfig_mCheckpointInterval, "I"));
+  jstring checkpoint_path = static_cast<jstring>(env->GetObjectField(obj,
+      env->GetFieldID(cls, EncoderConfig_mCheckpointPath, "Ljava/lang/String;")));
+  if (NULL != checkpoint_path) {
+    config.m_checkpoint_path = aj::convert_jstring_path(env, checkpoint_path);
+    env->DeleteLocalRef(checkpoint_path);
+  }
+
+  env->DeleteLocalRef(cls);
+
+  return config;
+}
+
+
+/**
+ * Copy an encoder_metrics into the passed EncoderMetrics jobject.
+ **/
+static void set_metrics(JNIEnv * env, jobject obj,
+    encoder_metrics const & metrics)
+{
+  jclass cls = env->GetObjectClass(obj);
+
+  env->SetIntField(obj, env->GetFieldID(cls, EncoderMetrics_mQueuedBuffers, "I"),
+      metrics.m_queued_buffers);
+  env->SetLongField(obj, env->GetFieldID(cls, EncoderMetrics_mQueuedBytes, "J"),
+      metrics.m_queued_bytes);
+  env->SetLongField(obj, env->GetFieldID(cls, EncoderMetrics_mSpilledBytes, "J"),
+      metrics.m_spilled_bytes);
+  env->SetIntField(obj, env->GetFieldID(cls, EncoderMetrics_mHighWaterMark, "I"),
+      metrics.m_high_water_mark);
+  env->SetLongField(obj, env->GetFieldID(cls, EncoderMetrics_mChunks, "J"),
+      metrics.m_chunks);
+  env->SetLongField(obj, env->GetFieldID(cls, EncoderMetrics_mEncodeTimeMin, "J"),
+      metrics.m_encode_time_min);
+  env->SetLongField(obj, env->GetFieldID(cls, EncoderMetrics_mEncodeTimeTotal, "J"),
+      metrics.m_encode_time_total);
+  env->SetLongField(obj, env->GetFieldID(cls, EncoderMetrics_mEncodeTimeMax, "J"),
+      metrics.m_encode_time_max);
+  env->SetIntField(obj, env->GetFieldID(cls, EncoderMetrics_mRetries, "I"),
+      metrics.m_retries);
+  env->SetIntField(obj, env->GetFieldID(cls, EncoderMetrics_mFailures, "I"),
+      metrics.m_failures);
+  env->SetLongField(obj, env->GetFieldID(cls, EncoderMetrics_mSamplesWritten, "J"),
+      metrics.m_samples_written);
+  env->SetLongField(obj, env->GetFieldID(cls, EncoderMetrics_mBytesEmitted, "J"),
+      metrics.m_bytes_emitted);
+
+  env->DeleteLocalRef(cls);
+}
+
+
 /**
  * Store FLACStreamEncoder instance in the passed jobject.
  **/
@@ -588,6 +1624,92 @@ static void set_encoder(JNIEnv * env, jobject obj, FLACStreamEncoder * encoder)
 }
 
 
+/**
+ * Create and initialize a FLACStreamEncoder writing to output, and store it
+ * in the passed jobject; throws on errors.
+ **/
+static void init_encoder(JNIEnv * env, jobject obj, aj::EncoderOutput * output,
+    jint sample_rate, jint channels, jint bits_per_sample, jobject config)
+{
+  FLACStreamEncoder * encoder = new FLACStreamEncoder(output, sample_rate,
+      channels, bits_per_sample, get_config(env, config));
+
+  char const * const error = encoder->init();
+  if (NULL != error) {
+    delete encoder;
+
+    aj::throwByName(env, IllegalArgumentException_classname, error);
+    return;
+  }
+
+  set_encoder(env, obj, encoder);
+}
+
+
+
+/**
+ * State handed to release_thread().
+ **/
+struct release_job
+{
+  FLACStreamEncoder * m_encoder;
+  JavaVM *            m_vm;
+  jobject             m_listener; // Global ref, or NULL
+};
+
+
+
+/**
+ * Finishes and deletes the encoder, then tells the listener about it. Runs on
+ * its own thread, or on the JNI thread if that thread could not be created.
+ **/
+static void * release_thread(void * args)
+{
+  release_job * job = static_cast<release_job *>(args);
+
+  // Sinks and listeners need a JNIEnv; attach unless we're on a Java thread
+  // already.
+  JNIEnv * env = NULL;
+  bool attached = false;
+  if (JNI_OK != job->m_vm->GetEnv(reinterpret_cast<void **>(&env), JNI_VERSION_1_4)) {
+    env = NULL;
+    if (JNI_OK == job->m_vm->AttachCurrentThread(&env, NULL)) {
+      attached = true;
+    }
+  }
+
+  bool success = job->m_encoder->finish();
+  delete job->m_encoder;
+
+  if (env && job->m_listener) {
+    jclass cls = env->GetObjectClass(job->m_listener);
+    jmethodID method = env->GetMethodID(cls, ReleaseListener_onReleased,
+        ReleaseListener_onReleased_signature);
+    env->DeleteLocalRef(cls);
+    if (method) {
+      env->CallVoidMethod(job->m_listener, method,
+          static_cast<jboolean>(success));
+    }
+    if (env->ExceptionCheck()) {
+      aj::log(ANDROID_LOG_ERROR, LTAG, "Release listener threw an exception!");
+      env->ExceptionDescribe();
+      env->ExceptionClear();
+    }
+    env->DeleteGlobalRef(job->m_listener);
+  }
+  else if (!env) {
+    aj::log(ANDROID_LOG_ERROR, LTAG, "Could not attach release thread to VM!");
+  }
+
+  if (attached) {
+    job->m_vm->DetachCurrentThread();
+  }
+
+  delete job;
+  return NULL;
+}
+
+
 } // anonymous namespace
 
 
@@ -600,23 +1722,46 @@ extern "C" {
 
 void
 Java_fm_audioboo_jni_FLACStreamEncoder_init(JNIEnv * env, jobject obj,
-    jstring outfile, jint sample_rate, jint channels, jint bits_per_sample)
+    jstring outfile, jint sample_rate, jint channels, jint bits_per_sample,
+    jobject config)
 {
   assert(sizeof(jlong) >= sizeof(FLACStreamEncoder *));
 
-  FLACStreamEncoder * encoder = new FLACStreamEncoder(
-      aj::convert_jstring_path(env, outfile), sample_rate, channels,
-      bits_per_sample);
+  char * path = aj::convert_jstring_path(env, outfile);
+  aj::FileOutput * output = new aj::FileOutput();
+  char const * error = output->init(path);
+  free(path);
+  if (NULL != error) {
+    delete output;
 
-  char const * const error = encoder->init();
+    aj::throwByName(env, IllegalArgumentException_classname, error);
+    return;
+  }
+
+  init_encoder(env, obj, output, sample_rate, channels, bits_per_sample,
+      config);
+}
+
+
+
+void
+Java_fm_audioboo_jni_FLACStreamEncoder_initWithSink(JNIEnv * env, jobject obj,
+    jobject sink, jint sample_rate, jint channels, jint bits_per_sample,
+    jobject config)
+{
+  assert(sizeof(jlong) >= sizeof(FLACStreamEncoder *));
+
+  aj::SinkOutput * output = new aj::SinkOutput();
+  char const * error = output->init(env, sink);
   if (NULL != error) {
-    delete encoder;
+    delete output;
 
     aj::throwByName(env, IllegalArgumentException_classname, error);
     return;
   }
 
-  set_encoder(env, obj, encoder);
+  init_encoder(env, obj, output, sample_rate, channels, bits_per_sample,
+      config);
 }
 
 
@@ -631,6 +1776,47 @@ Java_fm_audioboo_jni_FLACStreamEncoder_deinit(JNIEnv * env, jobject obj)
 
 
 
+void
+Java_fm_audioboo_jni_FLACStreamEncoder_releaseAsyncImpl(JNIEnv * env, jobject obj,
+    jobject listener)
+{
+  FLACStreamEncoder * encoder = get_encoder(env, obj);
+  if (NULL == encoder) {
+    aj::throwByName(env, IllegalArgumentException_classname,
+        "Called without a valid encoder instance!");
+    return;
+  }
+  set_encoder(env, obj, NULL);
+
+  release_job * job = new release_job();
+  job->m_encoder = encoder;
+  job->m_listener = listener ? env->NewGlobalRef(listener) : NULL;
+  if (JNI_OK != env->GetJavaVM(&job->m_vm)) {
+    // Can't happen on a JNI thread; but without a VM, we can't call back.
+    if (job->m_listener) {
+      env->DeleteGlobalRef(job->m_listener);
+    }
+    delete encoder;
+    delete job;
+    return;
+  }
+
+  pthread_attr_t attr;
+  pthread_attr_init(&attr);
+  pthread_attr_setdetachstate(&attr, PTHREAD_CREATE_DETACHED);
+  pthread_t thread;
+  int err = pthread_create(&thread, &attr, release_thread, job);
+  pthread_attr_destroy(&attr);
+
+  if (err) {
+    aj::log(ANDROID_LOG_WARN, LTAG, "Could not start release thread; "
+        "releasing synchronously.");
+    release_thread(job);
+  }
+}
+
+
+
 jint
 Java_fm_audioboo_jni_FLACStreamEncoder_write(JNIEnv * env, jobject obj,
     jobject buffer, jint bufsize)
@@ -654,6 +1840,48 @@ Java_fm_audioboo_jni_FLACStreamEncoder_write(JNIEnv * env, jobject obj,
 
 
 
+jint
+Java_fm_audioboo_jni_FLACStreamEncoder_writeShorts(JNIEnv * env, jobject obj,
+    jshortArray pcm, jint offset, jint count)
+{
+  FLACStreamEncoder * encoder = get_encoder(env, obj);
+
+  if (NULL == encoder) {
+    aj::throwByName(env, IllegalArgumentException_classname,
+        "Called without a valid encoder instance!");
+    return 0;
+  }
+
+  if (16 != encoder->getBitsPerSample()) {
+    aj::throwByName(env, IllegalArgumentException_classname,
+        "Can only write short arrays to a 16 bit encoder!");
+    return 0;
+  }
+
+  array_pcm source(env, pcm, offset * sizeof(jshort));
+  return encoder->write_pcm(source, count * sizeof(jshort)) / sizeof(jshort);
+}
+
+
+
+jint
+Java_fm_audioboo_jni_FLACStreamEncoder_writeBytes(JNIEnv * env, jobject obj,
+    jbyteArray pcm, jint offset, jint bufsize)
+{
+  FLACStreamEncoder * encoder = get_encoder(env, obj);
+
+  if (NULL == encoder) {
+    aj::throwByName(env, IllegalArgumentException_classname,
+        "Called without a valid encoder instance!");
+    return 0;
+  }
+
+  array_pcm source(env, pcm, offset);
+  return encoder->write_pcm(source, bufsize);
+}
+
+
+
 void
 Java_fm_audioboo_jni_FLACStreamEncoder_flush(JNIEnv * env, jobject obj)
 {
@@ -670,24 +1898,33 @@ Java_fm_audioboo_jni_FLACStreamEncoder_flush(JNIEnv * env, jobject obj)
 
 
 
-jfloat
-Java_fm_audioboo_jni_FLACStreamEncoder_getMaxAmplitude(JNIEnv * env, jobject obj)
+void
+Java_fm_audioboo_jni_FLACStreamEncoder_getAmplitudes(JNIEnv * env, jobject obj,
+    jfloatArray amplitudes)
 {
   FLACStreamEncoder * encoder = get_encoder(env, obj);
 
   if (NULL == encoder) {
     aj::throwByName(env, IllegalArgumentException_classname,
         "Called without a valid encoder instance!");
-    return 0;
+    return;
+  }
+
+  if (NULL == amplitudes || env->GetArrayLength(amplitudes) < AMPLITUDE_VALUES) {
+    aj::throwByName(env, IllegalArgumentException_classname,
+        "Amplitude array is too small!");
+    return;
   }
 
-  return encoder->getMaxAmplitude();
+  jfloat values[AMPLITUDE_VALUES];
+  encoder->getAmplitudes(values);
+  env->SetFloatArrayRegion(amplitudes, 0, AMPLITUDE_VALUES, values);
 }
 
 
 
-jfloat
-Java_fm_audioboo_jni_FLACStreamEncoder_getAverageAmplitude(JNIEnv * env, jobject obj)
+jint
+Java_fm_audioboo_jni_FLACStreamEncoder_getBackpressure(JNIEnv * env, jobject obj)
 {
   FLACStreamEncoder * encoder = get_encoder(env, obj);
 
@@ -697,7 +1934,24 @@ Java_fm_audioboo_jni_FLACStreamEncoder_getAverageAmplitude(JNIEnv * env, jobject
     return 0;
   }
 
-  return encoder->getAverageAmplitude();
+  return encoder->getBackpressure();
+}
+
+
+
+void
+Java_fm_audioboo_jni_FLACStreamEncoder_getMetrics(JNIEnv * env, jobject obj,
+    jobject metrics)
+{
+  FLACStreamEncoder * encoder = get_encoder(env, obj);
+
+  if (NULL == encoder) {
+    aj::throwByName(env, IllegalArgumentException_classname,
+        "Called without a valid encoder instance!");
+    return;
+  }
+
+  set_metrics(env, metrics, encoder->getMetrics());
 }
 
 
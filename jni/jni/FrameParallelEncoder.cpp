@@ -0,0 +1,607 @@
+/**
+ * This file is part of AudioBoo, an android program for audio blogging.
+ * Copyright (C) 2011 Audioboo Ltd. All rights reserved.
+ *
+ * Author: Jens Finkhaeuser <jens@finkhaeuser.de>
+ *
+ * $Id$
+ **/
+
+#include "FrameParallelEncoder.h"
+
+#include <stdlib.h>
+#include <string.h>
+#include <unistd.h>
+
+#include "util.h"
+
+// libFLAC exports this, but doesn't declare it in its public headers.
+extern "C" FLAC_API FLAC__bool FLAC__stream_encoder_set_do_md5(
+    FLAC__StreamEncoder * encoder, FLAC__bool value);
+
+namespace audioboo {
+namespace jni {
+
+namespace {
+
+/*****************************************************************************
+ * Constants
+ **/
+static char const * const LTAG                          = "FrameParallelEncoder/native";
+
+// Number of blocks (and therefore frames) encoded per job. Larger jobs mean
+// less synchronization, smaller ones less latency and memory.
+static unsigned const FRAMES_PER_JOB                    = 16;
+
+// Number of jobs per worker thread, so that workers don't have to wait for
+// the writing thread to refill a job.
+static int const JOBS_PER_THREAD                        = 2;
+
+} // anonymous namespace
+
+
+
+/*****************************************************************************
+ * Job; a chunk of PCM and the frames it's encoded to.
+ **/
+struct FrameParallelEncoder::job_t
+{
+  enum state_t
+  {
+    FREE = 0,   // Being filled by the writing thread, or unused.
+    QUEUED,     // Waiting for a worker.
+    ENCODING,   // Owned by a worker.
+    DONE,       // Waiting to be written.
+  };
+
+  // Interleaved input, and number of samples (per channel) in it.
+  FLAC__int32 *   m_pcm;
+  unsigned        m_samples;
+
+  // Encoded frames, back to back, and their sizes.
+  FLAC__byte *    m_output;
+  size_t          m_output_size;
+  size_t          m_output_capacity;
+  unsigned *      m_frame_sizes;
+  unsigned        m_frame_count;
+
+  bool            m_ok;
+  state_t         m_state;
+};
+
+
+
+/*****************************************************************************
+ * Implementation
+ **/
+FrameParallelEncoder::FrameParallelEncoder(int sample_rate, int channels,
+    int bits_per_sample, int compression_level, bool verify, int blocksize,
+    int max_lpc_order, int threads)
+  : m_sample_rate(sample_rate)
+  , m_channels(channels)
+  , m_bits_per_sample(bits_per_sample)
+  , m_compression_level(compression_level)
+  , m_verify(verify)
+  , m_max_lpc_order(max_lpc_order)
+  , m_thread_count(threads)
+  , m_blocksize(blocksize > 0 ? blocksize : 0)
+  , m_job_samples(0)
+  , m_output(NULL)
+  , m_frames_written(0)
+  , m_seek_table(NULL)
+  , m_header_bytes(0)
+  , m_audio_bytes(0)
+  , m_frame_buffer(NULL)
+  , m_frame_buffer_size(0)
+  , m_ok(true)
+  , m_finished(false)
+  , m_jobs(NULL)
+  , m_job_count(0)
+  , m_next_fill(0)
+  , m_next_encode(0)
+  , m_next_write(0)
+  , m_workers(NULL)
+  , m_workers_started(0)
+  , m_kill_workers(false)
+{
+  memset(&m_streaminfo, 0, sizeof(m_streaminfo));
+  FLAC__MD5Init(&m_md5);
+  pthread_mutex_init(&m_mutex, NULL);
+  pthread_cond_init(&m_work_condition, NULL);
+  pthread_cond_init(&m_done_condition, NULL);
+}
+
+
+
+FrameParallelEncoder::~FrameParallelEncoder()
+{
+  pthread_mutex_lock(&m_mutex);
+  m_kill_workers = true;
+  pthread_cond_broadcast(&m_work_condition);
+  pthread_mutex_unlock(&m_mutex);
+
+  for (int i = 0 ; i < m_workers_started ; ++i) {
+    void * retval = NULL;
+    pthread_join(m_workers[i], &retval);
+  }
+  delete [] m_workers;
+
+  pthread_cond_destroy(&m_done_condition);
+  pthread_cond_destroy(&m_work_condition);
+  pthread_mutex_destroy(&m_mutex);
+
+  if (m_jobs) {
+    for (int i = 0 ; i < m_job_count ; ++i) {
+      delete [] m_jobs[i].m_pcm;
+      delete [] m_jobs[i].m_frame_sizes;
+      free(m_jobs[i].m_output);
+    }
+    delete [] m_jobs;
+  }
+  free(m_frame_buffer);
+
+  if (!m_finished) {
+    // Releases the MD5 context's buffer.
+    FLAC__MD5Final(m_streaminfo.m_md5sum, &m_md5);
+  }
+}
+
+
+
+char const * const
+FrameParallelEncoder::init(EncoderOutput * output, SeekTable * seek_table)
+{
+  if (!output) {
+    return "No output given!";
+  }
+  if (m_thread_count < 1) {
+    return "Need at least one encoder thread!";
+  }
+  m_output = output;
+  m_seek_table = seek_table;
+
+  // All frames but the last must have the same blocksize, so if none was
+  // given, we need to find out what the compression level implies.
+  if (!m_blocksize) {
+    FLAC__StreamEncoder * probe = FLAC__stream_encoder_new();
+    if (!probe) {
+      return "Could not create FLAC__StreamEncoder!";
+    }
+    FLAC__stream_encoder_set_compression_level(probe, m_compression_level);
+    if (m_max_lpc_order >= 0) {
+      FLAC__stream_encoder_set_max_lpc_order(probe, m_max_lpc_order);
+    }
+    m_blocksize = FLAC__stream_encoder_get_blocksize(probe);
+    if (!m_blocksize) {
+      // libFLAC only picks a blocksize when it's initialized, based on
+      // whether LPC is used.
+      m_blocksize = FLAC__stream_encoder_get_max_lpc_order(probe) ? 4096 : 1152;
+    }
+    FLAC__stream_encoder_delete(probe);
+  }
+  m_job_samples = m_blocksize * FRAMES_PER_JOB;
+
+  // Allocate jobs.
+  m_job_count = m_thread_count * JOBS_PER_THREAD;
+  m_jobs = new job_t[m_job_count];
+  for (int i = 0 ; i < m_job_count ; ++i) {
+    job_t & job = m_jobs[i];
+    job.m_pcm = new FLAC__int32[m_job_samples * m_channels];
+    job.m_samples = 0;
+    job.m_output = NULL;
+    job.m_output_size = 0;
+    job.m_output_capacity = 0;
+    job.m_frame_sizes = new unsigned[FRAMES_PER_JOB];
+    job.m_frame_count = 0;
+    job.m_ok = true;
+    job.m_state = job_t::FREE;
+  }
+
+  // Write the stream header; STREAMINFO and the seek table get patched in
+  // finish().
+  m_streaminfo.m_min_blocksize = m_blocksize;
+  m_streaminfo.m_max_blocksize = m_blocksize;
+  m_streaminfo.m_sample_rate = m_sample_rate;
+  m_streaminfo.m_channels = m_channels;
+  m_streaminfo.m_bits_per_sample = m_bits_per_sample;
+
+  FLAC__byte header[STREAMINFO_OFFSET + STREAMINFO_LENGTH];
+  pack_stream_header(m_streaminfo, !m_seek_table, header);
+  if (!m_output->write(header, sizeof(header))) {
+    return "Could not write stream header!";
+  }
+  m_header_bytes = sizeof(header);
+
+  if (m_seek_table) {
+    unsigned length = METADATA_HEADER_LENGTH + m_seek_table->length();
+    FLAC__byte * block = new FLAC__byte[length];
+    pack_metadata_header(FLAC__METADATA_TYPE_SEEKTABLE, true,
+        m_seek_table->length(), block);
+    m_seek_table->pack(block + METADATA_HEADER_LENGTH);
+    bool ok = m_output->write(block, length);
+    delete [] block;
+    if (!ok) {
+      return "Could not write seek table!";
+    }
+    m_header_bytes += length;
+  }
+
+  // Start workers.
+  m_workers = new pthread_t[m_thread_count];
+  for ( ; m_workers_started < m_thread_count ; ++m_workers_started) {
+    int err = pthread_create(&m_workers[m_workers_started], NULL,
+        &FrameParallelEncoder::trampoline_func, this);
+    if (err) {
+      return "Could not start encoder thread!";
+    }
+  }
+
+  log(ANDROID_LOG_DEBUG, LTAG, "Encoding with %d threads, %d samples per job.",
+      m_thread_count, m_job_samples);
+  return NULL;
+}
+
+
+
+bool
+FrameParallelEncoder::process(FLAC__int32 const * buffer, unsigned samples)
+{
+  while (samples > 0) {
+    job_t * job = &m_jobs[m_next_fill % m_job_count];
+
+    // The job we want to fill may still hold an older chunk; that chunk is
+    // necessarily the oldest one not yet written, so write it out.
+    pthread_mutex_lock(&m_mutex);
+    bool busy = (job_t::FREE != job->m_state);
+    pthread_mutex_unlock(&m_mutex);
+    if (busy) {
+      write_oldest_job(true);
+      continue;
+    }
+
+    unsigned count = m_job_samples - job->m_samples;
+    if (count > samples) {
+      count = samples;
+    }
+
+    memcpy(job->m_pcm + job->m_samples * m_channels, buffer,
+        count * m_channels * sizeof(FLAC__int32));
+
+    // The signature is over the interleaved samples, so treating the buffer
+    // as a single channel yields the same result.
+    FLAC__int32 const * signal[1] = { buffer };
+    FLAC__MD5Accumulate(&m_md5, signal, 1, count * m_channels,
+        m_bits_per_sample / 8);
+
+    job->m_samples += count;
+    buffer += count * m_channels;
+    samples -= count;
+
+    if (job->m_samples >= m_job_samples) {
+      queue_current_job();
+
+      // Write whatever is already done without waiting.
+      while (write_oldest_job(false)) {
+      }
+    }
+  }
+
+  return m_ok;
+}
+
+
+
+bool
+FrameParallelEncoder::finish()
+{
+  if (m_finished) {
+    return m_ok;
+  }
+
+  // Queue the last, partial job.
+  job_t * job = &m_jobs[m_next_fill % m_job_count];
+  pthread_mutex_lock(&m_mutex);
+  bool pending = (job_t::FREE == job->m_state && job->m_samples > 0);
+  pthread_mutex_unlock(&m_mutex);
+  if (pending) {
+    queue_current_job();
+  }
+
+  while (write_oldest_job(true)) {
+  }
+
+  // Patch STREAMINFO. If any job failed, the signature is meaningless.
+  m_finished = true;
+  FLAC__MD5Final(m_streaminfo.m_md5sum, &m_md5);
+  if (!m_ok) {
+    memset(m_streaminfo.m_md5sum, 0, sizeof(m_streaminfo.m_md5sum));
+  }
+
+  FLAC__uint64 end = 0;
+  EncoderOutput::status_t status = m_output->tell(end);
+  if (EncoderOutput::UNSUPPORTED == status) {
+    log(ANDROID_LOG_WARN, LTAG, "Output can't seek, STREAMINFO not updated.");
+    return m_ok;
+  }
+
+  FLAC__byte info[STREAMINFO_LENGTH];
+  pack_streaminfo(m_streaminfo, info);
+  if (EncoderOutput::OK != status
+      || EncoderOutput::OK != m_output->seek(STREAMINFO_OFFSET)
+      || !m_output->write(info, sizeof(info)))
+  {
+    log(ANDROID_LOG_ERROR, LTAG, "Could not update STREAMINFO!");
+    m_ok = false;
+  }
+
+  // The seek table immediately follows STREAMINFO.
+  if (m_ok && m_seek_table) {
+    FLAC__byte * table = new FLAC__byte[m_seek_table->length()];
+    m_seek_table->pack(table);
+    if (EncoderOutput::OK != m_output->seek(
+          STREAMINFO_OFFSET + STREAMINFO_LENGTH + METADATA_HEADER_LENGTH)
+        || !m_output->write(table, m_seek_table->length()))
+    {
+      log(ANDROID_LOG_ERROR, LTAG, "Could not update seek table!");
+      m_ok = false;
+    }
+    delete [] table;
+  }
+
+  if (EncoderOutput::OK == status
+      && EncoderOutput::OK != m_output->seek(end))
+  {
+    m_ok = false;
+  }
+
+  return m_ok;
+}
+
+
+
+bool
+FrameParallelEncoder::written(FLAC__uint64 & samples,
+    FLAC__uint64 & offset) const
+{
+  // Jobs are written out completely or not at all, between calls to
+  // process().
+  samples = m_streaminfo.m_total_samples;
+  offset = m_header_bytes + m_audio_bytes;
+  return m_ok;
+}
+
+
+
+void *
+FrameParallelEncoder::trampoline_func(void * args)
+{
+  FrameParallelEncoder * encoder = static_cast<FrameParallelEncoder *>(args);
+  return encoder->worker_thread();
+}
+
+
+
+FLAC__StreamEncoderWriteStatus
+FrameParallelEncoder::write_callback(FLAC__StreamEncoder const * encoder,
+    FLAC__byte const buffer[], size_t bytes, unsigned samples,
+    unsigned current_frame, void * client_data)
+{
+  // Each worker encoder writes its own stream header; we only want frames.
+  if (0 == samples) {
+    return FLAC__STREAM_ENCODER_WRITE_STATUS_OK;
+  }
+
+  job_t * job = static_cast<job_t *>(client_data);
+  if (job->m_frame_count >= FRAMES_PER_JOB) {
+    return FLAC__STREAM_ENCODER_WRITE_STATUS_FATAL_ERROR;
+  }
+
+  // Output buffers only ever grow, so after the first few jobs there are
+  // no more allocations here.
+  if (job->m_output_size + bytes > job->m_output_capacity) {
+    size_t capacity = 2 * (job->m_output_size + bytes);
+    FLAC__byte * output = static_cast<FLAC__byte *>(realloc(job->m_output,
+          capacity));
+    if (!output) {
+      return FLAC__STREAM_ENCODER_WRITE_STATUS_FATAL_ERROR;
+    }
+    job->m_output = output;
+    job->m_output_capacity = capacity;
+  }
+
+  memcpy(job->m_output + job->m_output_size, buffer, bytes);
+  job->m_output_size += bytes;
+  job->m_frame_sizes[job->m_frame_count++] = bytes;
+
+  return FLAC__STREAM_ENCODER_WRITE_STATUS_OK;
+}
+
+
+
+void *
+FrameParallelEncoder::worker_thread()
+{
+  FLAC__StreamEncoder * encoder = FLAC__stream_encoder_new();
+
+  pthread_mutex_lock(&m_mutex);
+  while (true) {
+    while (!m_kill_workers && m_next_encode == m_next_fill) {
+      pthread_cond_wait(&m_work_condition, &m_mutex);
+    }
+    if (m_next_encode == m_next_fill) {
+      // Killed, and nothing left to do.
+      break;
+    }
+
+    job_t * job = &m_jobs[m_next_encode++ % m_job_count];
+    job->m_state = job_t::ENCODING;
+    pthread_mutex_unlock(&m_mutex);
+
+    job->m_ok = encoder && encode_job(encoder, job);
+
+    pthread_mutex_lock(&m_mutex);
+    job->m_state = job_t::DONE;
+    pthread_cond_broadcast(&m_done_condition);
+  }
+  pthread_mutex_unlock(&m_mutex);
+
+  if (encoder) {
+    FLAC__stream_encoder_delete(encoder);
+  }
+  return NULL;
+}
+
+
+
+bool
+FrameParallelEncoder::configure(FLAC__StreamEncoder * encoder)
+{
+  // FLAC__stream_encoder_finish() resets everything, so this is needed for
+  // every job.
+  FLAC__bool ok = true;
+  ok &= FLAC__stream_encoder_set_sample_rate(encoder, m_sample_rate);
+  ok &= FLAC__stream_encoder_set_channels(encoder, m_channels);
+  ok &= FLAC__stream_encoder_set_bits_per_sample(encoder, m_bits_per_sample);
+  ok &= FLAC__stream_encoder_set_verify(encoder, m_verify);
+  ok &= FLAC__stream_encoder_set_compression_level(encoder, m_compression_level);
+  ok &= FLAC__stream_encoder_set_blocksize(encoder, m_blocksize);
+  if (m_max_lpc_order >= 0) {
+    ok &= FLAC__stream_encoder_set_max_lpc_order(encoder, m_max_lpc_order);
+  }
+  // We compute the signature over the whole stream ourselves.
+  ok &= FLAC__stream_encoder_set_do_md5(encoder, false);
+  return ok;
+}
+
+
+
+bool
+FrameParallelEncoder::encode_job(FLAC__StreamEncoder * encoder, job_t * job)
+{
+  job->m_output_size = 0;
+  job->m_frame_count = 0;
+
+  if (!configure(encoder)) {
+    return false;
+  }
+
+  FLAC__StreamEncoderInitStatus init_status = FLAC__stream_encoder_init_stream(
+      encoder, &FrameParallelEncoder::write_callback, NULL, NULL, NULL, job);
+  if (FLAC__STREAM_ENCODER_INIT_STATUS_OK != init_status) {
+    return false;
+  }
+
+  FLAC__bool ok = FLAC__stream_encoder_process_interleaved(encoder, job->m_pcm,
+      job->m_samples);
+
+  // Encodes the remaining block; also reports verification failures.
+  ok &= FLAC__stream_encoder_finish(encoder);
+  return ok;
+}
+
+
+
+void
+FrameParallelEncoder::queue_current_job()
+{
+  pthread_mutex_lock(&m_mutex);
+  m_jobs[m_next_fill % m_job_count].m_state = job_t::QUEUED;
+  ++m_next_fill;
+  pthread_cond_signal(&m_work_condition);
+  pthread_mutex_unlock(&m_mutex);
+}
+
+
+
+bool
+FrameParallelEncoder::write_oldest_job(bool wait)
+{
+  if (m_next_write == m_next_fill) {
+    // Nothing queued.
+    return false;
+  }
+
+  job_t * job = &m_jobs[m_next_write % m_job_count];
+
+  pthread_mutex_lock(&m_mutex);
+  while (job_t::DONE != job->m_state) {
+    if (!wait) {
+      pthread_mutex_unlock(&m_mutex);
+      return false;
+    }
+    pthread_cond_wait(&m_done_condition, &m_mutex);
+  }
+  pthread_mutex_unlock(&m_mutex);
+
+  if (!write_job(job)) {
+    m_ok = false;
+  }
+
+  pthread_mutex_lock(&m_mutex);
+  job->m_samples = 0;
+  job->m_state = job_t::FREE;
+  pthread_mutex_unlock(&m_mutex);
+
+  ++m_next_write;
+  return true;
+}
+
+
+
+bool
+FrameParallelEncoder::write_job(job_t * job)
+{
+  if (!job->m_ok) {
+    log(ANDROID_LOG_ERROR, LTAG, "Encoding %d samples failed, dropping them!",
+        job->m_samples);
+    return false;
+  }
+
+  FLAC__byte const * frame = job->m_output;
+  unsigned remaining = job->m_samples;
+  for (unsigned i = 0 ; i < job->m_frame_count ; ++i) {
+    size_t size = job->m_frame_sizes[i];
+    unsigned frame_samples = remaining < m_blocksize ? remaining : m_blocksize;
+    remaining -= frame_samples;
+
+    if (size + FRAME_HEADER_MAX_LENGTH > m_frame_buffer_size) {
+      size_t new_size = 2 * (size + FRAME_HEADER_MAX_LENGTH);
+      FLAC__byte * buf = static_cast<FLAC__byte *>(realloc(m_frame_buffer,
+            new_size));
+      if (!buf) {
+        return false;
+      }
+      m_frame_buffer = buf;
+      m_frame_buffer_size = new_size;
+    }
+
+    // Workers number their frames from zero.
+    size_t out_size = renumber_frame(frame, size, m_frames_written, false,
+        m_frame_buffer);
+    if (!out_size || !m_output->write(m_frame_buffer, out_size)) {
+      log(ANDROID_LOG_ERROR, LTAG, "Could not write frame %llu!", m_frames_written);
+      return false;
+    }
+
+    if (m_seek_table) {
+      m_seek_table->add_frame(m_frames_written * m_blocksize, m_audio_bytes,
+          frame_samples);
+    }
+    m_audio_bytes += out_size;
+
+    if (!m_streaminfo.m_min_framesize || out_size < m_streaminfo.m_min_framesize) {
+      m_streaminfo.m_min_framesize = out_size;
+    }
+    if (out_size > m_streaminfo.m_max_framesize) {
+      m_streaminfo.m_max_framesize = out_size;
+    }
+
+    ++m_frames_written;
+    frame += size;
+  }
+
+  m_streaminfo.m_total_samples += job->m_samples;
+  return true;
+}
+
+}} // namespace audioboo::jni
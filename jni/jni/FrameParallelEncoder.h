@@ -0,0 +1,150 @@
+/**
+ * This file is part of AudioBoo, an android program for audio blogging.
+ * Copyright (C) 2011 Audioboo Ltd. All rights reserved.
+ *
+ * Author: Jens Finkhaeuser <jens@finkhaeuser.de>
+ *
+ * $Id$
+ **/
+
+#ifndef AUDIOBOO_JNI_FRAME_PARALLEL_ENCODER_H
+#define AUDIOBOO_JNI_FRAME_PARALLEL_ENCODER_H
+
+#include <pthread.h>
+
+#include "FLAC/stream_encoder.h"
+// libFLAC's private headers lack C++ guards.
+extern "C" {
+#include "private/md5.h"
+}
+
+#include "flac_frames.h"
+#include "EncoderOutput.h"
+#include "SeekTable.h"
+
+namespace audioboo {
+namespace jni {
+
+/*****************************************************************************
+ * Encodes PCM into a FLAC stream using several threads.
+ *
+ * FLAC frames are independent of each other, so the PCM stream is cut into
+ * jobs of a fixed number of blocks, and each job is encoded by a worker
+ * thread with its own FLAC__StreamEncoder. The thread calling process()
+ * writes finished jobs out in order, renumbering their frames so that they
+ * form a single stream, and patches STREAMINFO (including the MD5 signature
+ * it computes over the input) in finish().
+ *
+ * process() and finish() must be called from the same thread.
+ **/
+class FrameParallelEncoder
+{
+public:
+  FrameParallelEncoder(int sample_rate, int channels, int bits_per_sample,
+      int compression_level, bool verify, int blocksize, int max_lpc_order,
+      int threads);
+
+  ~FrameParallelEncoder();
+
+  /**
+   * Starts worker threads and writes the stream header to output. If output
+   * can't seek, STREAMINFO is left without sizes and MD5 signature. If
+   * seek_table is given, it's filled in while frames are written, and
+   * written out after STREAMINFO. Does not take ownership of either.
+   * Returns NULL on success, else an error message.
+   **/
+  char const * const init(EncoderOutput * output, SeekTable * seek_table);
+
+  /**
+   * Encodes samples (per channel) of interleaved PCM from buffer. May block
+   * while all jobs are busy. Returns false on errors.
+   **/
+  bool process(FLAC__int32 const * buffer, unsigned samples);
+
+  /**
+   * Encodes remaining samples, waits for all jobs, and finalizes STREAMINFO.
+   * Returns false on errors.
+   **/
+  bool finish();
+
+  /**
+   * Reports the number of samples (per channel) in frames written to the
+   * output so far, and the offset just past the last of those frames.
+   * Returns false if the output is known to be broken.
+   **/
+  bool written(FLAC__uint64 & samples, FLAC__uint64 & offset) const;
+
+  /**
+   * The blocksize used for all frames but the last.
+   **/
+  unsigned blocksize() const
+  {
+    return m_blocksize;
+  }
+
+private:
+  struct job_t;
+
+  // Thread trampoline
+  static void * trampoline_func(void * args);
+
+  // Write callback for the worker encoders; client_data is the job.
+  static FLAC__StreamEncoderWriteStatus write_callback(
+      FLAC__StreamEncoder const * encoder, FLAC__byte const buffer[],
+      size_t bytes, unsigned samples, unsigned current_frame,
+      void * client_data);
+
+  void * worker_thread();
+
+  bool configure(FLAC__StreamEncoder * encoder);
+  bool encode_job(FLAC__StreamEncoder * encoder, job_t * job);
+
+  void queue_current_job();
+  bool write_job(job_t * job);
+  bool write_oldest_job(bool wait);
+
+  // Configuration values passed to ctor
+  int     m_sample_rate;
+  int     m_channels;
+  int     m_bits_per_sample;
+  int     m_compression_level;
+  bool    m_verify;
+  int     m_max_lpc_order;
+  int     m_thread_count;
+
+  unsigned  m_blocksize;
+  unsigned  m_job_samples;
+
+  // Output
+  EncoderOutput * m_output;
+  streaminfo_t  m_streaminfo;
+  FLAC__MD5Context  m_md5;
+  FLAC__uint64  m_frames_written;
+  SeekTable *   m_seek_table;
+  FLAC__uint64  m_header_bytes;
+  FLAC__uint64  m_audio_bytes;
+  FLAC__byte *  m_frame_buffer;
+  size_t        m_frame_buffer_size;
+  bool          m_ok;
+  bool          m_finished;
+
+  // Jobs, used round-robin. Sequence numbers count up forever; the job for
+  // a sequence number is m_jobs[seq % m_job_count].
+  job_t *       m_jobs;
+  int           m_job_count;
+  unsigned      m_next_fill;
+  unsigned      m_next_encode;
+  unsigned      m_next_write;
+
+  // Worker threads
+  pthread_t *     m_workers;
+  int             m_workers_started;
+  pthread_mutex_t m_mutex;
+  pthread_cond_t  m_work_condition;
+  pthread_cond_t  m_done_condition;
+  bool            m_kill_workers;
+};
+
+}} // namespace audioboo::jni
+
+#endif // guard
@@ -0,0 +1,188 @@
+/**
+ * This file is part of AudioBoo, an android program for audio blogging.
+ * Copyright (C) 2011 Audioboo Ltd. All rights reserved.
+ *
+ * Author: Jens Finkhaeuser <jens@finkhaeuser.de>
+ *
+ * $Id$
+ **/
+
+#include "SeekTable.h"
+
+#include "FLAC/metadata.h"
+
+namespace audioboo {
+namespace jni {
+
+namespace {
+
+/**
+ * Writes value to out as a big endian number of the given byte width.
+ **/
+inline void pack_number(FLAC__uint64 value, unsigned bytes, FLAC__byte * out)
+{
+  for (unsigned i = 0 ; i < bytes ; ++i) {
+    out[i] = static_cast<FLAC__byte>((value >> (8 * (bytes - i - 1))) & 0xFF);
+  }
+}
+
+
+/**
+ * Reads a big endian number of the given byte width from in.
+ **/
+inline FLAC__uint64 unpack_number(FLAC__byte const * in, unsigned bytes)
+{
+  FLAC__uint64 value = 0;
+  for (unsigned i = 0 ; i < bytes ; ++i) {
+    value = (value << 8) | in[i];
+  }
+  return value;
+}
+
+
+inline void make_placeholder(FLAC__StreamMetadata_SeekPoint & point)
+{
+  point.sample_number = FLAC__STREAM_METADATA_SEEKPOINT_PLACEHOLDER;
+  point.stream_offset = 0;
+  point.frame_samples = 0;
+}
+
+} // anonymous namespace
+
+
+
+SeekTable::SeekTable(unsigned interval, unsigned points)
+  : m_metadata(NULL)
+  , m_interval(interval)
+  , m_points(points)
+  , m_used(0)
+{
+}
+
+
+
+SeekTable::~SeekTable()
+{
+  if (m_metadata) {
+    FLAC__metadata_object_delete(m_metadata);
+  }
+}
+
+
+
+char const * const
+SeekTable::init()
+{
+  if (!m_interval || !m_points) {
+    return "Seek table needs a positive interval and number of points!";
+  }
+
+  m_metadata = FLAC__metadata_object_new(FLAC__METADATA_TYPE_SEEKTABLE);
+  if (!m_metadata) {
+    return "Could not create seek table!";
+  }
+  if (!FLAC__metadata_object_seektable_template_append_placeholders(m_metadata,
+        m_points))
+  {
+    return "Could not reserve seek points!";
+  }
+  return NULL;
+}
+
+
+
+void
+SeekTable::add_frame(FLAC__uint64 sample, FLAC__uint64 offset,
+    unsigned blocksize)
+{
+  // Only the first frame to reach the next target sample is recorded.
+  if (sample + blocksize <= m_used * m_interval) {
+    return;
+  }
+
+  if (m_used >= m_points) {
+    thin();
+    if (sample + blocksize <= m_used * m_interval) {
+      return;
+    }
+  }
+
+  FLAC__StreamMetadata_SeekPoint & point
+    = m_metadata->data.seek_table.points[m_used++];
+  point.sample_number = sample;
+  point.stream_offset = offset;
+  point.frame_samples = blocksize;
+}
+
+
+
+void
+SeekTable::restore(FLAC__byte const * in)
+{
+  FLAC__StreamMetadata_SeekPoint * points = m_metadata->data.seek_table.points;
+  m_used = 0;
+  for (unsigned i = 0 ; i < m_points ; ++i) {
+    FLAC__uint64 sample = unpack_number(in, 8);
+    if (FLAC__STREAM_METADATA_SEEKPOINT_PLACEHOLDER == sample) {
+      break;
+    }
+    points[i].sample_number = sample;
+    points[i].stream_offset = unpack_number(in + 8, 8);
+    points[i].frame_samples = unpack_number(in + 16, 2);
+    in += FLAC__STREAM_METADATA_SEEKPOINT_LENGTH;
+    ++m_used;
+  }
+
+  // Point 1 is the first frame to reach the interval the table had reached,
+  // which is the initial interval doubled zero or more times.
+  if (m_used > 1) {
+    while (m_interval < points[1].sample_number) {
+      m_interval *= 2;
+    }
+  }
+}
+
+
+
+unsigned
+SeekTable::length() const
+{
+  return m_points * FLAC__STREAM_METADATA_SEEKPOINT_LENGTH;
+}
+
+
+
+void
+SeekTable::pack(FLAC__byte * out) const
+{
+  FLAC__StreamMetadata_SeekPoint const * points
+    = m_metadata->data.seek_table.points;
+  for (unsigned i = 0 ; i < m_points ; ++i) {
+    pack_number(points[i].sample_number, 8, out);
+    pack_number(points[i].stream_offset, 8, out + 8);
+    pack_number(points[i].frame_samples, 2, out + 16);
+    out += FLAC__STREAM_METADATA_SEEKPOINT_LENGTH;
+  }
+}
+
+
+
+void
+SeekTable::thin()
+{
+  // Point i was recorded for sample i * m_interval, so keeping the even
+  // points leaves point i at i * (2 * m_interval).
+  FLAC__StreamMetadata_SeekPoint * points = m_metadata->data.seek_table.points;
+  unsigned kept = (m_used + 1) / 2;
+  for (unsigned i = 1 ; i < kept ; ++i) {
+    points[i] = points[2 * i];
+  }
+  for (unsigned i = kept ; i < m_used ; ++i) {
+    make_placeholder(points[i]);
+  }
+
+  m_used = kept;
+  m_interval *= 2;
+}
+
+}} // namespace audioboo::jni
@@ -0,0 +1,80 @@
+/**
+ * This file is part of AudioBoo, an android program for audio blogging.
+ * Copyright (C) 2011 Audioboo Ltd. All rights reserved.
+ *
+ * Author: Jens Finkhaeuser <jens@finkhaeuser.de>
+ *
+ * $Id$
+ **/
+
+#ifndef AUDIOBOO_JNI_SEEK_TABLE_H
+#define AUDIOBOO_JNI_SEEK_TABLE_H
+
+#include "FLAC/format.h"
+
+namespace audioboo {
+namespace jni {
+
+/*****************************************************************************
+ * Builds a SEEKTABLE while encoding a stream of unknown length.
+ *
+ * The table has a fixed number of points, reserved as placeholders up front.
+ * Points are filled in at every interval samples as frames are written. When
+ * the table is full, every other point is dropped and the interval doubled,
+ * so the table always spans the whole stream.
+ **/
+class SeekTable
+{
+public:
+  /**
+   * interval is in samples (per channel).
+   **/
+  SeekTable(unsigned interval, unsigned points);
+  ~SeekTable();
+
+  /**
+   * Returns NULL on success, else an error message.
+   **/
+  char const * const init();
+
+  /**
+   * The SEEKTABLE metadata object, suitable for passing to libFLAC. Points
+   * that are not filled in yet are placeholders.
+   **/
+  FLAC__StreamMetadata * metadata()
+  {
+    return m_metadata;
+  }
+
+  /**
+   * Records a frame starting at the given sample, offset bytes after the
+   * first frame, if it's the next seek point.
+   **/
+  void add_frame(FLAC__uint64 sample, FLAC__uint64 offset, unsigned blocksize);
+
+  /**
+   * Loads the points of a table previously serialized by pack(), with the
+   * same number of points, so that frames can be added to a stream written
+   * earlier. Must be called after init(), before any add_frame().
+   **/
+  void restore(FLAC__byte const * in);
+
+  /**
+   * Length of the SEEKTABLE block body, and serialization of it into out,
+   * which must hold length() bytes.
+   **/
+  unsigned length() const;
+  void pack(FLAC__byte * out) const;
+
+private:
+  void thin();
+
+  FLAC__StreamMetadata *  m_metadata;
+  FLAC__uint64            m_interval;
+  unsigned                m_points;
+  unsigned                m_used;
+};
+
+}} // namespace audioboo::jni
+
+#endif // guard
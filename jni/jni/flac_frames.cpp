@@ -0,0 +1,285 @@
+/**
+ * This file is part of AudioBoo, an android program for audio blogging.
+ * Copyright (C) 2011 Audioboo Ltd. All rights reserved.
+ *
+ * Author: Jens Finkhaeuser <jens@finkhaeuser.de>
+ *
+ * $Id$
+ **/
+
+#include "flac_frames.h"
+
+#include <string.h>
+
+// libFLAC's private headers lack C++ guards.
+extern "C" {
+#include "private/crc.h"
+}
+
+namespace audioboo {
+namespace jni {
+
+namespace {
+
+/**
+ * Returns the length of the UTF-8 style coded number starting with the given
+ * byte, or 0 if the byte cannot start such a number.
+ **/
+inline unsigned coded_number_length(FLAC__byte first)
+{
+  if (!(first & 0x80)) {
+    return 1;
+  }
+  if (0xC0 == (first & 0xE0)) {
+    return 2;
+  }
+  if (0xE0 == (first & 0xF0)) {
+    return 3;
+  }
+  if (0xF0 == (first & 0xF8)) {
+    return 4;
+  }
+  if (0xF8 == (first & 0xFC)) {
+    return 5;
+  }
+  if (0xFC == (first & 0xFE)) {
+    return 6;
+  }
+  if (0xFE == first) {
+    return 7;
+  }
+  return 0;
+}
+
+
+
+/**
+ * Writes number in FLAC's extended UTF-8 coding (up to 36 bits) to out;
+ * returns the number of bytes written.
+ **/
+unsigned pack_coded_number(FLAC__uint64 number, FLAC__byte * out)
+{
+  static FLAC__byte const prefixes[] = { 0x00, 0x00, 0xC0, 0xE0, 0xF0, 0xF8, 0xFC, 0xFE };
+
+  unsigned length = 7;
+  if (number < 0x80) {
+    length = 1;
+  }
+  else if (number < 0x800) {
+    length = 2;
+  }
+  else if (number < 0x10000) {
+    length = 3;
+  }
+  else if (number < 0x200000) {
+    length = 4;
+  }
+  else if (number < 0x4000000) {
+    length = 5;
+  }
+  else if (number < 0x80000000) {
+    length = 6;
+  }
+
+  out[0] = prefixes[length] | static_cast<FLAC__byte>(number >> (6 * (length - 1)));
+  for (unsigned i = 1 ; i < length ; ++i) {
+    out[i] = 0x80 | static_cast<FLAC__byte>((number >> (6 * (length - 1 - i))) & 0x3F);
+  }
+  return length;
+}
+
+} // anonymous namespace
+
+
+
+void pack_stream_header(streaminfo_t const & info, bool is_last_metadata,
+    FLAC__byte * out)
+{
+  memcpy(out, "fLaC", 4);
+  pack_metadata_header(FLAC__METADATA_TYPE_STREAMINFO, is_last_metadata,
+      STREAMINFO_LENGTH, out + 4);
+  pack_streaminfo(info, out + STREAMINFO_OFFSET);
+}
+
+
+
+void pack_streaminfo(streaminfo_t const & info, FLAC__byte * out)
+{
+  out[0] = (info.m_min_blocksize >> 8) & 0xFF;
+  out[1] = info.m_min_blocksize & 0xFF;
+  out[2] = (info.m_max_blocksize >> 8) & 0xFF;
+  out[3] = info.m_max_blocksize & 0xFF;
+  out[4] = (info.m_min_framesize >> 16) & 0xFF;
+  out[5] = (info.m_min_framesize >> 8) & 0xFF;
+  out[6] = info.m_min_framesize & 0xFF;
+  out[7] = (info.m_max_framesize >> 16) & 0xFF;
+  out[8] = (info.m_max_framesize >> 8) & 0xFF;
+  out[9] = info.m_max_framesize & 0xFF;
+  out[10] = (info.m_sample_rate >> 12) & 0xFF;
+  out[11] = (info.m_sample_rate >> 4) & 0xFF;
+  out[12] = ((info.m_sample_rate & 0x0F) << 4)
+    | (((info.m_channels - 1) & 0x07) << 1)
+    | (((info.m_bits_per_sample - 1) >> 4) & 0x01);
+  out[13] = (((info.m_bits_per_sample - 1) & 0x0F) << 4)
+    | static_cast<FLAC__byte>((info.m_total_samples >> 32) & 0x0F);
+  out[14] = static_cast<FLAC__byte>((info.m_total_samples >> 24) & 0xFF);
+  out[15] = static_cast<FLAC__byte>((info.m_total_samples >> 16) & 0xFF);
+  out[16] = static_cast<FLAC__byte>((info.m_total_samples >> 8) & 0xFF);
+  out[17] = static_cast<FLAC__byte>(info.m_total_samples & 0xFF);
+  memcpy(out + 18, info.m_md5sum, 16);
+}
+
+
+
+void unpack_streaminfo(FLAC__byte const * in, streaminfo_t & info)
+{
+  info.m_min_blocksize = (in[0] << 8) | in[1];
+  info.m_max_blocksize = (in[2] << 8) | in[3];
+  info.m_min_framesize = (in[4] << 16) | (in[5] << 8) | in[6];
+  info.m_max_framesize = (in[7] << 16) | (in[8] << 8) | in[9];
+  info.m_sample_rate = (in[10] << 12) | (in[11] << 4) | (in[12] >> 4);
+  info.m_channels = ((in[12] >> 1) & 0x07) + 1;
+  info.m_bits_per_sample = (((in[12] & 0x01) << 4) | (in[13] >> 4)) + 1;
+  info.m_total_samples = (static_cast<FLAC__uint64>(in[13] & 0x0F) << 32)
+    | (static_cast<FLAC__uint64>(in[14]) << 24)
+    | (in[15] << 16) | (in[16] << 8) | in[17];
+  memcpy(info.m_md5sum, in + 18, 16);
+}
+
+
+
+void pack_metadata_header(unsigned type, bool is_last, unsigned length,
+    FLAC__byte * out)
+{
+  out[0] = (is_last ? 0x80 : 0x00) | (type & 0x7F);
+  out[1] = (length >> 16) & 0xFF;
+  out[2] = (length >> 8) & 0xFF;
+  out[3] = length & 0xFF;
+}
+
+
+
+bool parse_frame_header(FLAC__byte const * buf, size_t size,
+    frame_header_t & header)
+{
+  if (size < 6) {
+    return false;
+  }
+
+  // Sync code, reserved bit and blocking strategy.
+  if (0xFF != buf[0] || 0xF8 != (buf[1] & 0xFE)) {
+    return false;
+  }
+  header.m_variable_blocksize = (buf[1] & 0x01);
+
+  // Reserved blocksize/sample rate/channel/sample size values.
+  unsigned blocksize_code = buf[2] >> 4;
+  unsigned sample_rate_code = buf[2] & 0x0F;
+  if (0 == blocksize_code || 0x0F == sample_rate_code) {
+    return false;
+  }
+  unsigned sample_size_code = (buf[3] >> 1) & 0x07;
+  if ((buf[3] >> 4) > 10 || 3 == sample_size_code || 7 == sample_size_code
+      || (buf[3] & 0x01))
+  {
+    return false;
+  }
+
+  // Frame or sample number
+  unsigned pos = 4;
+  unsigned length = coded_number_length(buf[pos]);
+  if (0 == length || pos + length > size) {
+    return false;
+  }
+  header.m_number = buf[pos] & (0xFF >> (1 == length ? 1 : length + 1));
+  for (unsigned i = 1 ; i < length ; ++i) {
+    if (0x80 != (buf[pos + i] & 0xC0)) {
+      return false;
+    }
+    header.m_number = (header.m_number << 6) | (buf[pos + i] & 0x3F);
+  }
+  pos += length;
+
+  // Blocksize, possibly stored at the end of the header.
+  if (1 == blocksize_code) {
+    header.m_blocksize = 192;
+  }
+  else if (blocksize_code <= 5) {
+    header.m_blocksize = 576 << (blocksize_code - 2);
+  }
+  else if (6 == blocksize_code) {
+    if (pos + 1 > size) {
+      return false;
+    }
+    header.m_blocksize = buf[pos] + 1;
+    pos += 1;
+  }
+  else if (7 == blocksize_code) {
+    if (pos + 2 > size) {
+      return false;
+    }
+    header.m_blocksize = ((buf[pos] << 8) | buf[pos + 1]) + 1;
+    pos += 2;
+  }
+  else {
+    header.m_blocksize = 256 << (blocksize_code - 8);
+  }
+
+  // Sample rate, possibly stored at the end of the header.
+  if (12 == sample_rate_code) {
+    pos += 1;
+  }
+  else if (13 == sample_rate_code || 14 == sample_rate_code) {
+    pos += 2;
+  }
+
+  // CRC-8 over everything so far.
+  if (pos + 1 > size || FLAC__crc8(buf, pos) != buf[pos]) {
+    return false;
+  }
+  header.m_length = pos + 1;
+
+  return true;
+}
+
+
+
+size_t renumber_frame(FLAC__byte const * frame, size_t size,
+    FLAC__uint64 number, bool variable_blocksize, FLAC__byte * out)
+{
+  frame_header_t header;
+  if (!parse_frame_header(frame, size, header)
+      || size < header.m_length + FRAME_FOOTER_LENGTH)
+  {
+    return 0;
+  }
+
+  // Fixed part of the header; only the blocking strategy may change.
+  out[0] = 0xFF;
+  out[1] = 0xF8 | (variable_blocksize ? 0x01 : 0x00);
+  out[2] = frame[2];
+  out[3] = frame[3];
+  size_t pos = 4 + pack_coded_number(number, out + 4);
+
+  // Blocksize and sample rate bytes follow the number unchanged.
+  unsigned old_end = 4 + coded_number_length(frame[4]);
+  unsigned extra = header.m_length - 1 - old_end;
+  memcpy(out + pos, frame + old_end, extra);
+  pos += extra;
+
+  out[pos] = FLAC__crc8(out, pos);
+  ++pos;
+
+  // Subframes are copied verbatim, then the whole frame gets a new CRC-16.
+  size_t body = size - header.m_length - FRAME_FOOTER_LENGTH;
+  memcpy(out + pos, frame + header.m_length, body);
+  pos += body;
+
+  unsigned crc = FLAC__crc16(out, pos);
+  out[pos++] = (crc >> 8) & 0xFF;
+  out[pos++] = crc & 0xFF;
+
+  return pos;
+}
+
+}} // namespace audioboo::jni
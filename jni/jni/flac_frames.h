@@ -0,0 +1,111 @@
+/**
+ * This file is part of AudioBoo, an android program for audio blogging.
+ * Copyright (C) 2011 Audioboo Ltd. All rights reserved.
+ *
+ * Author: Jens Finkhaeuser <jens@finkhaeuser.de>
+ *
+ * $Id$
+ **/
+
+#ifndef AUDIOBOO_JNI_FLAC_FRAMES_H
+#define AUDIOBOO_JNI_FLAC_FRAMES_H
+
+#include <stddef.h>
+
+#include "FLAC/format.h"
+
+namespace audioboo {
+namespace jni {
+
+/*****************************************************************************
+ * Helpers for moving encoded FLAC frames around without decoding them. Only
+ * the frame header is interpreted; subframes are copied as opaque bytes.
+ **/
+
+enum {
+  // Length of a metadata block header, and of the STREAMINFO block body.
+  METADATA_HEADER_LENGTH  = 4,
+  STREAMINFO_LENGTH       = 34,
+
+  // Offset of the STREAMINFO body in a native FLAC stream ("fLaC" + header)
+  STREAMINFO_OFFSET       = 4 + METADATA_HEADER_LENGTH,
+
+  // Upper bound for the size of a frame header, including CRC-8
+  FRAME_HEADER_MAX_LENGTH = 16,
+
+  // Length of the CRC-16 frame footer
+  FRAME_FOOTER_LENGTH     = 2,
+};
+
+
+/**
+ * STREAMINFO contents
+ **/
+struct streaminfo_t
+{
+  unsigned      m_min_blocksize;
+  unsigned      m_max_blocksize;
+  unsigned      m_min_framesize;
+  unsigned      m_max_framesize;
+  unsigned      m_sample_rate;
+  unsigned      m_channels;
+  unsigned      m_bits_per_sample;
+  FLAC__uint64  m_total_samples;
+  FLAC__byte    m_md5sum[16];
+};
+
+
+/**
+ * Interesting parts of a frame header.
+ **/
+struct frame_header_t
+{
+  unsigned      m_length;             // Header length including CRC-8
+  bool          m_variable_blocksize;
+  FLAC__uint64  m_number;             // Frame or sample number
+  unsigned      m_blocksize;          // Samples per channel in this frame
+};
+
+
+/**
+ * Writes the stream marker and a STREAMINFO block to out, which must hold
+ * STREAMINFO_OFFSET + STREAMINFO_LENGTH bytes.
+ **/
+void pack_stream_header(streaminfo_t const & info, bool is_last_metadata,
+    FLAC__byte * out);
+
+/**
+ * Serialize/deserialize a STREAMINFO body of STREAMINFO_LENGTH bytes.
+ **/
+void pack_streaminfo(streaminfo_t const & info, FLAC__byte * out);
+void unpack_streaminfo(FLAC__byte const * in, streaminfo_t & info);
+
+/**
+ * Writes a METADATA_HEADER_LENGTH byte metadata block header to out.
+ **/
+void pack_metadata_header(unsigned type, bool is_last, unsigned length,
+    FLAC__byte * out);
+
+/**
+ * Parses the frame header at the start of buf. Returns false if buf does not
+ * start with a valid frame header (bad sync code, reserved values, or CRC-8
+ * mismatch).
+ **/
+bool parse_frame_header(FLAC__byte const * buf, size_t size,
+    frame_header_t & header);
+
+/**
+ * Copies the frame in frame[0..size) to out, with the frame number replaced
+ * by number. If variable_blocksize is true, the header is rewritten for a
+ * variable blocksize stream, and number must be the frame's first sample
+ * number instead. Header CRC-8 and frame CRC-16 are recomputed.
+ *
+ * out must hold at least size + FRAME_HEADER_MAX_LENGTH bytes. Returns the
+ * size of the rewritten frame, or 0 if frame could not be parsed.
+ **/
+size_t renumber_frame(FLAC__byte const * frame, size_t size,
+    FLAC__uint64 number, bool variable_blocksize, FLAC__byte * out);
+
+}} // namespace audioboo::jni
+
+#endif // guard
@@ -23,15 +23,14 @@ import java.io.ObjectOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 
-import java.nio.ByteBuffer;
-
 import java.util.Date;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Comparator;
 import java.util.Locale;
 
-import fm.audioboo.jni.FLACStreamEncoder;
-import fm.audioboo.jni.FLACStreamDecoder;
+import fm.audioboo.jni.FLACConcatenator;
+import fm.audioboo.jni.PeakSummary;
 
 import fm.audioboo.data.BooData;
 import fm.audioboo.data.BooLocation;
@@ -55,6 +54,7 @@ public class Boo
 
 
 
+
   /***************************************************************************
    * Public constants
    **/
@@ -96,6 +96,8 @@ public class Boo
   // Image file name
   public static final String IMAGE_FILE = "image.png";
   public static final String TEMP_IMAGE_FILE = "image.png";
+  // Waveform summary file name
+  public static final String PEAKS_FILE = "waveform" + PeakSummary.EXTENSION;
 
 
 
@@ -105,6 +107,13 @@ public class Boo
   public BooData                mData = null;
 
 
+  /***************************************************************************
+   * Private data
+   **/
+  // Transcoder used by a running flattenAudio(), if any.
+  private volatile FLACTranscoder mTranscoder;
+
+
   /***************************************************************************
    * Implementation
    **/
@@ -282,7 +291,7 @@ public class Boo
     BooData.Recording rec = null;
     if (0 != mData.mRecordings.size()) {
       BooData.Recording r = mData.mRecordings.get(mData.mRecordings.size() - 1);
-      if (0 == r.mDuration) {
+      if (r.isEmpty()) {
         rec = r;
       }
     }
@@ -323,6 +332,57 @@ public class Boo
 
 
 
+  /**
+   * Returns the file names of this Boo's recordings, in order, or null if
+   * there are none. Empty recordings, i.e. the one a recorder may be writing
+   * to, are left out.
+   **/
+  public String[] getRecordingFilenames()
+  {
+    if (null == mData || null == mData.mRecordings) {
+      return null;
+    }
+
+    LinkedList<BooData.Recording> recordings = new LinkedList<BooData.Recording>();
+    for (BooData.Recording rec : mData.mRecordings) {
+      if (!rec.isEmpty()) {
+        recordings.add(rec);
+      }
+    }
+    if (recordings.isEmpty()) {
+      return null;
+    }
+    return getFilenames(recordings);
+  }
+
+
+
+  /**
+   * Returns the waveform summary of this Boo's recordings, or null if there
+   * are none. The summary is cached in the data dir, and only regenerated
+   * after recordings change. XXX Warning, this function may block.
+   **/
+  public PeakSummary getPeakSummary()
+  {
+    // Leaves out the empty recording a standby recorder may be writing to;
+    // stamping it would invalidate the cache whenever it's touched.
+    String[] files = getRecordingFilenames();
+    if (null == files) {
+      return null;
+    }
+
+    try {
+      return PeakSummary.get(files,
+          Globals.get().getBooManager().getPeaksFilename(this),
+          PeakSummary.DEFAULT_BUCKET_SIZE);
+    } catch (IOException ex) {
+      Log.e(LTAG, "Could not get peak summary: " + ex.getMessage());
+      return null;
+    }
+  }
+
+
+
   public boolean isLocal()
   {
     if (null == mData) {
@@ -408,91 +468,142 @@ public class Boo
 
   // Flattens the list of audio files as returned by BooManager.getAudioFiles()
   // into a single flac file. XXX Warning, this function blocks.
+  //
+  // The recordings the flattened file holds are marked (see
+  // BooData.Recording.isFlattened()), so that later recordings can be
+  // appended to it instead of rebuilding it. A single recording serves as
+  // its own flattened file.
   public void flattenAudio()
+  {
+    flattenAudio(null);
+  }
+
+
+
+  /**
+   * As flattenAudio() above. If the recordings need to be transcoded, that's
+   * reported to listener, and can be aborted with cancelFlatten(); the Boo
+   * is left without flattened audio then.
+   **/
+  public void flattenAudio(FLACTranscoder.ProgressListener listener)
   {
     // Log.d(LTAG, "flattenAudio: " + this);
-    // First, check if audio is already flattened. If that's the case, we don't
-    // want to flatten everything again.
+    String flattened = null;
     if (null != mData.mHighMP3Url) {
-      String filename = mData.mHighMP3Url.getPath();
-      File high_f = new File(filename);
-      if (!high_f.exists()) {
-        mData.mHighMP3Url = null;
-      }
-      else {
-        long latest = 0;
-        for (BooData.Recording rec : mData.mRecordings) {
-          File f = new File(rec.mFilename);
-          long d = f.lastModified();
-          if (d > latest) {
-            latest = d;
-          }
-        }
-
-        if (high_f.lastModified() > latest) {
-          // This boo seems to be flattened already.
-          return;
-        }
-        else {
-          // This boo was flattened, but new recordings were made
-          // afterwards. Delete the previously flattened file.
-          high_f.delete();
-          mData.mHighMP3Url = null;
-        }
+      flattened = mData.mHighMP3Url.getPath();
+      if (!new File(flattened).exists()) {
+        flattened = null;
       }
     }
 
-    // If we reached here, then we need to flatten the Boo again.
-    String target = Globals.get().getBooManager().getNewRecordingFilename(this);
-
-    // Flatten the audio files.
-    FLACStreamEncoder encoder = null;
-
+    LinkedList<BooData.Recording> recordings = new LinkedList<BooData.Recording>();
+    boolean rebuild = (null == flattened) || isRecording(flattened);
     for (BooData.Recording rec : mData.mRecordings) {
-      Log.d(LTAG, "Using recording: " + rec);
-      FLACStreamDecoder decoder = null;
-      try {
-        decoder = new FLACStreamDecoder(rec.mFilename);
-      } catch (IllegalArgumentException ex) {
-        Log.e(LTAG, "Could not open recording file, skipping.");
+      if (rec.isEmpty()) {
         continue;
       }
+      if (new File(rec.mFilename).exists()) {
+        recordings.add(rec);
+      }
+      else if (0 != rec.mFlattenedSize) {
+        // The flattened file holds audio that's gone now.
+        rebuild = true;
+      }
+    }
+    if (recordings.isEmpty()) {
+      Log.w(LTAG, "No recordings to flatten.");
+      return;
+    }
 
-      int bufsize = decoder.minBufferSize();
-      //Log.d(LTAG, "bufsize is: " + bufsize);
-      ByteBuffer buffer = ByteBuffer.allocateDirect(bufsize);
+    if (1 == recordings.size()) {
+      String filename = recordings.getFirst().mFilename;
+      if (!filename.equals(flattened)) {
+        deleteFlattened(flattened);
+        setFlattened(filename, recordings);
+      }
+      return;
+    }
 
-      while (true) {
-        int read = decoder.read(buffer, bufsize);
-        if (read <= 0) {
+    // The flattened file must hold a leading run of the recordings, in
+    // order; anything else means it has to be rebuilt.
+    int contained = 0;
+    if (!rebuild) {
+      while (contained < recordings.size()
+          && recordings.get(contained).isFlattened())
+      {
+        ++contained;
+      }
+      for (BooData.Recording rec : recordings.subList(contained, recordings.size())) {
+        if (0 != rec.mFlattenedSize) {
+          contained = 0;
           break;
         }
-        Log.d(LTAG, "read: " + read);
+      }
+    }
 
+    if (contained == recordings.size()) {
+      // This boo is flattened already.
+      return;
+    }
 
-        if (null == encoder) {
-          // Assume that all recordings share the format of the first recording.
-          encoder = new FLACStreamEncoder(target, decoder.sampleRate(),
-              decoder.channels(), decoder.bitsPerSample());
-        }
+    if (contained > 0) {
+      String[] files = getFilenames(recordings.subList(contained,
+            recordings.size()));
+      if (FLACConcatenator.append(files, flattened)) {
+        setFlattened(flattened, recordings);
+        return;
+      }
+      Log.d(LTAG, "Could not append to flattened audio, rebuilding it.");
+    }
+
+    // If we reached here, then we need to flatten the Boo again.
+    deleteFlattened(flattened);
+    String target = Globals.get().getBooManager().getNewRecordingFilename(this);
 
-        encoder.write(buffer, read);
+    // Recordings normally share their format, so their encoded frames can
+    // just be joined; otherwise, decode and re-encode them.
+    String[] files = getFilenames(recordings);
+    if (!FLACConcatenator.concatenate(files, target)) {
+      Log.d(LTAG, "Could not concatenate recordings, transcoding.");
+      FLACTranscoder transcoder = new FLACTranscoder(files, target);
+      mTranscoder = transcoder;
+      boolean transcoded = transcoder.transcode(listener);
+      mTranscoder = null;
+      if (!transcoded) {
+        Log.w(LTAG, "Could not transcode recordings.");
+        return;
       }
+    }
 
-	  if (null != encoder) {
-      	encoder.flush();
-	  }
-      decoder.release();
-      decoder = null;
+    setFlattened(target, recordings);
+  }
+
+
+
+  /**
+   * Aborts transcoding recordings in a running flattenAudio().
+   **/
+  public void cancelFlatten()
+  {
+    FLACTranscoder transcoder = mTranscoder;
+    if (null != transcoder) {
+      transcoder.cancel();
     }
+  }
 
-    if (null != encoder) {
-      encoder.release();
+
+
+  /**
+   * Sets the Boo's flattened file, marks the given recordings as the ones it
+   * holds, and persists that.
+   **/
+  private void setFlattened(String filename, List<BooData.Recording> recordings)
+  {
+    for (BooData.Recording rec : mData.mRecordings) {
+      rec.setFlattened(recordings.contains(rec));
     }
-    encoder = null;
 
-    // Next, set the high mp3 Uri for the Boo to be the target path.
-    mData.mHighMP3Url = Uri.parse(String.format(Locale.US, "file://%s", target));
+    mData.mHighMP3Url = Uri.parse(String.format(Locale.US, "file://%s", filename));
     //Log.d(LTAG, "Flattened to: " + mData.mHighMP3Url);
 
     // Right, persist this flattened URL
@@ -501,6 +612,44 @@ public class Boo
 
 
 
+  /**
+   * Deletes a previously flattened file, unless it's one of the recordings.
+   **/
+  private void deleteFlattened(String filename)
+  {
+    if (null == filename || isRecording(filename)) {
+      return;
+    }
+    new File(filename).delete();
+    mData.mHighMP3Url = null;
+  }
+
+
+
+  private boolean isRecording(String filename)
+  {
+    for (BooData.Recording rec : mData.mRecordings) {
+      if (filename.equals(rec.mFilename)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+
+
+  private static String[] getFilenames(List<BooData.Recording> recordings)
+  {
+    String[] files = new String[recordings.size()];
+    int i = 0;
+    for (BooData.Recording rec : recordings) {
+      files[i++] = rec.mFilename;
+    }
+    return files;
+  }
+
+
+
   /**
    * Returns upload progress as a percentage, or a negative value if this
    * Boo is not being uploaded.
@@ -24,6 +24,9 @@ import java.util.Locale;
 
 import android.util.Log;
 
+import fm.audioboo.data.BooData;
+import fm.audioboo.jni.EncoderCheckpoint;
+
 /**
  * Like a file manager, except for Boos.
  *
@@ -226,6 +229,17 @@ public class BooManager
 
 
 
+  public String getPeaksFilename(Boo boo)
+  {
+    String data_dir = ensureDataDir(boo);
+    if (null == data_dir) {
+      return null;
+    }
+    return data_dir + File.separator + Boo.PEAKS_FILE;
+  }
+
+
+
 
   public String getNewRecordingFilename(Boo boo)
   {
@@ -309,6 +323,7 @@ public class BooManager
           Log.w(LTAG, "Could not construct Boo from '" + f + "'.");
           continue;
         }
+        recoverRecordings(b);
 
         if (null == b.mData.mUploadInfo) {
           if (b.mData.mIsMessage) {
@@ -356,6 +371,45 @@ public class BooManager
 
 
 
+  /**
+   * Repairs recordings left behind by a recorder that was killed before it
+   * could finish them, and fills in their duration if it wasn't saved.
+   **/
+  private void recoverRecordings(Boo boo)
+  {
+    if (null == boo.mData.mRecordings) {
+      return;
+    }
+
+    boolean changed = false;
+    for (BooData.Recording rec : boo.mData.mRecordings) {
+      if (null == rec.mFilename || !EncoderCheckpoint.exists(rec.mFilename)) {
+        continue;
+      }
+
+      try {
+        double duration = EncoderCheckpoint.recover(rec.mFilename);
+        if (duration < 0) {
+          continue;
+        }
+        Log.i(LTAG, "Recovered " + duration + " seconds of '" + rec.mFilename + "'.");
+
+        if (0 == rec.mDuration) {
+          rec.mDuration = duration;
+          changed = true;
+        }
+      } catch (java.io.IOException ex) {
+        Log.e(LTAG, "Could not recover '" + rec.mFilename + "': " + ex.getMessage());
+      }
+    }
+
+    if (changed) {
+      boo.writeToFile();
+    }
+  }
+
+
+
   private String ensureDataDir(Boo boo)
   {
     Log.d(LTAG, "Ensuring Data dir: " + boo.toString());
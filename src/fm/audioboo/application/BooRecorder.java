@@ -25,16 +25,20 @@ import fm.audioboo.data.BooData;
  *
  * BooRecorder is a leaky abstraction of FLACRecorder; FLACRecorder's message
  * codes are re-used and so is FLACRecorder.Amplitudes.
+ *
+ * After prepare(), a recorder for the next recording is kept set up, so
+ * start() begins capturing right away.
  **/
 public class BooRecorder
 {
   /***************************************************************************
    * Public constants
    **/
-  // Message ID for end of recording; at this point stats are finalized.
+  // Message ID for end of recording; at this point stats are finalized, and
+  // the recorded file is complete.
   // XXX Note that the message ID must be at least one higher than the highest
   // FLACRecorder message ID.
-  public static final int MSG_END_OF_RECORDING  = FLACRecorder.MSG_AMPLITUDES + 1;
+  public static final int MSG_END_OF_RECORDING  = FLACRecorder.MSG_BACKPRESSURE + 1;
 
 
   /***************************************************************************
@@ -43,6 +47,88 @@ public class BooRecorder
   // Log ID
   private static final String LTAG  = "BooRecorder";
 
+  // No error held back by a RecorderCallback.
+  private static final int NO_ERROR = -1;
+
+
+  /***************************************************************************
+   * Handles the messages of one FLACRecorder. Each recorder gets a callback
+   * of its own, so that messages from recorders that were stopped already
+   * can be told apart from the current one's.
+   **/
+  private class RecorderCallback implements Handler.Callback
+  {
+    // True once start() was called for the recorder; until then, it's only
+    // on standby, and has nothing to report.
+    public boolean  mStarted;
+    // True once the recorder sent MSG_OK.
+    public boolean  mFinished;
+    // First error the recorder reported while on standby, and its payload.
+    public int      mError = NO_ERROR;
+    public Object   mErrorObject;
+
+
+    public boolean handleMessage(Message m)
+    {
+      switch (m.what) {
+        case FLACRecorder.MSG_AMPLITUDES:
+          // Stats for stopped recorders are final already; see stop().
+          if (this != mCallback) {
+            return true;
+          }
+
+          // Keep the recorder's amplitudes in mLastAmplitudes; we'll use
+          // that when we restart recording to calculate the position
+          // within the Boo.
+          ((FLACRecorder) m.obj).getAmplitudes(mLastAmplitudes);
+
+          FLACRecorder.Amplitudes amp = mReportedAmplitudes;
+          amp.set(mLastAmplitudes);
+          if (null != mAmplitudes) {
+            amp.mPosition += mAmplitudes.mPosition;
+          }
+          mUpchainHandler.obtainMessage(FLACRecorder.MSG_AMPLITUDES,
+              amp).sendToTarget();
+          return true;
+
+
+        case FLACRecorder.MSG_OK:
+          // The recorder finishes its file in the background; only now is
+          // the recording really over. Recorders that were never started
+          // didn't record anything.
+          mFinished = true;
+          if (mStarted) {
+            mUpchainHandler.obtainMessage(MSG_END_OF_RECORDING).sendToTarget();
+          }
+
+          // stop() set the recording's duration before this recorder could
+          // finish, so the next recording goes to a new file.
+          if (mStandby && null == mRecorder) {
+            prime();
+          }
+          return true;
+
+
+        case FLACRecorder.MSG_BACKPRESSURE:
+          mUpchainHandler.obtainMessage(m.what, m.arg1, 0).sendToTarget();
+          return true;
+
+
+        default:
+          // Errors; those of a recorder on standby are held back until it's
+          // started, see start().
+          if (!mStarted) {
+            if (NO_ERROR == mError) {
+              mError = m.what;
+              mErrorObject = m.obj;
+            }
+            return true;
+          }
+          mUpchainHandler.obtainMessage(m.what, m.obj).sendToTarget();
+          return true;
+      }
+    }
+  }
 
 
   /***************************************************************************
@@ -57,15 +143,21 @@ public class BooRecorder
 
   // Handler for messages sent by BooRecorder
   private Handler                 mUpchainHandler;
-  // Internal handler to hand to FLACRecorder.
-  private Handler                 mInternalHandler;
 
-  // For recording FLAC files.
+  // For recording FLAC files, and handling its messages.
   private FLACRecorder            mRecorder;
+  private RecorderCallback        mCallback;
+
+  // Keep a recorder set up for the next recording; see prepare(). mPrimed is
+  // true while mRecorder is set up, but hasn't been started.
+  private boolean                 mStandby;
+  private boolean                 mPrimed;
 
   // Overall recording metadata
   private FLACRecorder.Amplitudes mAmplitudes;
-  private FLACRecorder.Amplitudes mLastAmplitudes;
+  private FLACRecorder.Amplitudes mLastAmplitudes = new FLACRecorder.Amplitudes();
+  // Passed on with MSG_AMPLITUDES; reused for every message.
+  private FLACRecorder.Amplitudes mReportedAmplitudes = new FLACRecorder.Amplitudes();
 
 
   /***************************************************************************
@@ -76,52 +168,6 @@ public class BooRecorder
     mContext = new WeakReference<Context>(context);
     mBoo = boo;
     mUpchainHandler = handler;
-    mInternalHandler = new Handler(new Handler.Callback()
-    {
-      public boolean handleMessage(Message m)
-      {
-        switch (m.what) {
-          case FLACRecorder.MSG_AMPLITUDES:
-            FLACRecorder.Amplitudes amp = (FLACRecorder.Amplitudes) m.obj;
-
-            // Create a copy of the amplitude in mLastAmplitudes; we'll use
-            // that when we restart recording to calculate the position
-            // within the Boo.
-            mLastAmplitudes = new FLACRecorder.Amplitudes(amp);
-
-            if (null != mAmplitudes) {
-              amp.mPosition += mAmplitudes.mPosition;
-            }
-            mUpchainHandler.obtainMessage(FLACRecorder.MSG_AMPLITUDES,
-                amp).sendToTarget();
-            return true;
-
-
-          case MSG_END_OF_RECORDING:
-            // Update stats - at this point, mLastAmp should really be the last set
-            // of amplitudes we got from the recorder.
-            if (null == mAmplitudes) {
-              mAmplitudes = mLastAmplitudes;
-            }
-            else {
-              mAmplitudes.accumulate(mLastAmplitudes);
-            }
-
-            if (null != mRecording && null != mLastAmplitudes) {
-              mRecording.mDuration = mLastAmplitudes.mPosition / 1000.0;
-              mRecording = null;
-            }
-
-            mUpchainHandler.obtainMessage(MSG_END_OF_RECORDING).sendToTarget();
-            return true;
-
-
-          default:
-            mUpchainHandler.obtainMessage(m.what, m.obj).sendToTarget();
-            return true;
-        }
-      }
-    });
   }
 
 
@@ -129,24 +175,60 @@ public class BooRecorder
   public void start()
   {
     // Every time we start recording, we create a new recorder instance, and
-    // record to a new file.
+    // record to a new file; unless prepare() set one up already.
     // That means if there's still a recorder instance running (shouldn't
     // happen!), we'll kill it.
-    if (null != mRecorder) {
+    if (null != mRecorder && !mPrimed) {
       stop();
     }
-
-    // Add a new recording to the Boo.
-    mRecording = mBoo.getLastEmptyRecording();
+    if (null == mRecorder) {
+      prime();
+    }
 
     // Start recording!
-    mRecorder = new FLACRecorder(mRecording.mFilename, mInternalHandler);
-    mRecorder.start();
+    mPrimed = false;
+    mCallback.mStarted = true;
+    if (NO_ERROR != mCallback.mError) {
+      // Setting up the recorder failed while it was on standby.
+      mUpchainHandler.obtainMessage(mCallback.mError,
+          mCallback.mErrorObject).sendToTarget();
+      if (mCallback.mFinished) {
+        mUpchainHandler.obtainMessage(MSG_END_OF_RECORDING).sendToTarget();
+      }
+      return;
+    }
     mRecorder.resumeRecording();
   }
 
 
 
+  /**
+   * Sets up a recorder for the next recording ahead of time, and again after
+   * each recording, until release() is called.
+   **/
+  public void prepare()
+  {
+    mStandby = true;
+    if (null == mRecorder) {
+      prime();
+    }
+  }
+
+
+
+  /**
+   * Stops keeping a recorder ready; a recording in progress is not affected.
+   **/
+  public void release()
+  {
+    mStandby = false;
+    if (mPrimed) {
+      stop();
+    }
+  }
+
+
+
   public void stop()
   {
     if (null == mRecorder) {
@@ -155,19 +237,45 @@ public class BooRecorder
     }
 
     // Pause recording & kill recorder
-    mRecorder.pauseRecording();
-    mRecorder.mShouldRun = false;
-    mRecorder.interrupt();
+    FLACRecorder recorder = mRecorder;
+    recorder.pauseRecording();
+    recorder.stopRecording();
     try {
-      mRecorder.join();
+      recorder.join();
     } catch (InterruptedException ex) {
       // pass
     }
     mRecorder = null;
+    mCallback = null;
 
-    // Post an end-of-recording message; that'll update stats.
-    mInternalHandler.obtainMessage(MSG_END_OF_RECORDING).sendToTarget();
+    if (mPrimed) {
+      // Nothing was recorded; the recorder deleted its file.
+      mPrimed = false;
+      mRecording = null;
+      return;
+    }
+
+    // Update stats. The recorder's final amplitudes are in once its thread
+    // ended, and the recording's duration must be set before it sends MSG_OK;
+    // see RecorderCallback.
+    recorder.getAmplitudes(mLastAmplitudes);
+    if (0 == mLastAmplitudes.mPosition) {
+      // Nothing was recorded, e.g. because the recorder failed; the
+      // recording stays empty, and is reused.
+      mRecording = null;
+      return;
+    }
+    if (null == mAmplitudes) {
+      mAmplitudes = new FLACRecorder.Amplitudes(mLastAmplitudes);
+    }
+    else {
+      mAmplitudes.accumulate(mLastAmplitudes);
+    }
 
+    if (null != mRecording) {
+      mRecording.mDuration = mLastAmplitudes.mPosition / 1000.0;
+      mRecording = null;
+    }
   }
 
 
@@ -196,4 +304,20 @@ public class BooRecorder
   {
     return mAmplitudes;
   }
+
+
+
+  /**
+   * Sets up a recorder for the Boo's next recording, without starting it.
+   **/
+  private void prime()
+  {
+    // Add a new recording to the Boo.
+    mRecording = mBoo.getLastEmptyRecording();
+
+    mCallback = new RecorderCallback();
+    mRecorder = new FLACRecorder(mRecording.mFilename, new Handler(mCallback));
+    mRecorder.start();
+    mPrimed = true;
+  }
 }
@@ -21,14 +21,12 @@ import android.media.AudioManager;
 
 import java.io.File;
 
-import fm.audioboo.jni.FLACStreamDecoder;
-
 import java.nio.ByteBuffer;
 
 import android.util.Log;
 
 /**
- * Plays FLAC audio files.
+ * Plays FLAC audio files, or a FLACPlaylist of them.
  **/
 public class FLACPlayer extends Thread
 {
@@ -42,6 +40,9 @@ public class FLACPlayer extends Thread
   // this can be arbitrarily large.
   private static final int PAUSED_SLEEP_TIME  = 10 * 60 * 1000;
 
+  // How far ahead of playback to decode, in msec.
+  private static final int RING_DEPTH         = 400;
+
 
   /***************************************************************************
    * Public data
@@ -67,11 +68,16 @@ public class FLACPlayer extends Thread
   private Context           mContext;
 
   // Stream decoder.
-  private FLACStreamDecoder mDecoder;
+  private FLACPlaylist      mDecoder;
 
   // Audio track
   private AudioTrack        mAudioTrack;
 
+  // Decoded PCM waiting to be played, and the thread filling it.
+  private volatile PCMRing  mRing;
+  private Thread            mDecoderThread;
+  private int               mBytesPerSecond;
+
   // File path for the output file.
   private String            mPath;
 
@@ -100,6 +106,21 @@ public class FLACPlayer extends Thread
 
 
 
+  /**
+   * Plays the files in the playlist back to back; the player takes ownership
+   * of the playlist.
+   **/
+  public FLACPlayer(Context context, FLACPlaylist playlist)
+  {
+    mContext = context;
+    mDecoder = playlist;
+
+    mShouldRun = true;
+    mPaused = true;
+  }
+
+
+
   public void pausePlayback()
   {
     mPaused = true;
@@ -138,17 +159,44 @@ public class FLACPlayer extends Thread
 
 
 
+  /**
+   * Returns how much audio is decoded ahead of playback, in msec.
+   **/
+  public long getBufferedMillis()
+  {
+    PCMRing ring = mRing;
+    if (null == ring || 0 == mBytesPerSecond) {
+      return 0;
+    }
+    return 1000L * ring.filled() * ring.slabSize() / mBytesPerSecond;
+  }
+
+
+
+  /**
+   * Returns how often playback had to wait for the decoder.
+   **/
+  public int getUnderruns()
+  {
+    PCMRing ring = mRing;
+    return (null == ring) ? 0 : ring.underruns();
+  }
+
+
+
   public void run()
   {
-    // Try to initialize the decoder.
-    try {
-      mDecoder = new FLACStreamDecoder(mPath);
-    } catch (IllegalArgumentException ex) {
-      Log.e(LTAG, "Error: " + ex);
-      if (null != mListener) {
-        mListener.onError();
+    // Try to initialize the decoder, unless we were given a playlist.
+    if (null == mDecoder) {
+      try {
+        mDecoder = new FLACPlaylist(new String[] { mPath });
+      } catch (IllegalArgumentException ex) {
+        Log.e(LTAG, "Error: " + ex);
+        if (null != mListener) {
+          mListener.onError();
+        }
+        return;
       }
-      return;
     }
 
     // Map channel config & format
@@ -162,14 +210,22 @@ public class FLACPlayer extends Thread
         format);
     int bufsize = Math.max(playback_bufsize, decoder_bufsize);
 
+    // Decode RING_DEPTH msec ahead, in chunks of bufsize.
+    mBytesPerSecond = sampleRate * mDecoder.channels()
+      * (mDecoder.bitsPerSample() / 8);
+    int slabs = Math.max(2,
+        (int) Math.ceil(RING_DEPTH / 1000.0 * mBytesPerSecond / bufsize));
+
     // Create AudioTrack.
     try {
       mAudioTrack = new AudioTrack(AudioManager.STREAM_MUSIC, sampleRate,
           channelConfig, format, bufsize, AudioTrack.MODE_STREAM);
       mAudioTrack.play();
 
-      ByteBuffer buffer = ByteBuffer.allocateDirect(bufsize);
-      byte[] tmpbuf = new byte[bufsize];
+      mRing = new PCMRing(slabs, bufsize);
+      mDecoderThread = new DecoderThread();
+      mDecoderThread.start();
+
       while (mShouldRun) {
         try {
           // If we're paused, just sleep the thread
@@ -178,27 +234,26 @@ public class FLACPlayer extends Thread
             continue;
           }
 
-          // Seek, if required.
+          // Seek, if required. The decoder thread picks that up.
           long seekPos = mSeekPos;
           if (seekPos > 0) {
             int sample = (int) (seekPos / 1000f * sampleRate);
-            mDecoder.seekTo(sample);
+            mRing.seek(sample);
             mSeekPos = -1;
           }
 
           // Otherwise, play back a chunk.
-          int read = mDecoder.read(buffer, bufsize);
-          if (read <= 0) {
+          int index = mRing.beginTake();
+          if (index < 0) {
             // We're done with playing back!
             break;
           }
 
-          buffer.rewind();
-          buffer.get(tmpbuf, 0, read);
-          mAudioTrack.write(tmpbuf, 0, read);
+          mAudioTrack.write(mRing.slab(index), 0, mRing.size(index));
 
           // Also record the current playback position.
-          mPlayPos = (long) (mDecoder.position() * 1000f / sampleRate);
+          mPlayPos = (long) (mRing.position(index) * 1000f / sampleRate);
+          mRing.endTake();
         } catch (InterruptedException ex) {
           // We'll pass through to the next iteration. If mShouldRun has
           // been set to false, the thread will terminate. If mPause has
@@ -206,6 +261,10 @@ public class FLACPlayer extends Thread
         }
       }
 
+      stopDecoderThread();
+      Log.d(LTAG, "Playback ring: " + mRing.slabs() + " x " + bufsize
+          + " bytes, " + mRing.underruns() + " underruns.");
+
       mAudioTrack.stop();
       mAudioTrack.release();
       mAudioTrack = null;
@@ -227,6 +286,66 @@ public class FLACPlayer extends Thread
 
 
 
+  /**
+   * Decodes into mRing until the ring is closed.
+   **/
+  private class DecoderThread extends Thread
+  {
+    public void run()
+    {
+      ByteBuffer buffer = ByteBuffer.allocateDirect(mRing.slabSize());
+      PCMRing.Seek seek = new PCMRing.Seek();
+      try {
+        while (true) {
+          mRing.takeSeek(seek);
+          int generation = seek.mGeneration;
+          if (seek.mSample >= 0) {
+            mDecoder.seekTo(seek.mSample);
+          }
+
+          int index = mRing.beginPut();
+          if (index < 0) {
+            break;
+          }
+
+          int read = mDecoder.read(buffer, mRing.slabSize());
+          if (read <= 0) {
+            // Wait around in case playback seeks back.
+            if (mRing.endOfStream(generation) && !mRing.awaitSeek()) {
+              break;
+            }
+            continue;
+          }
+
+          buffer.rewind();
+          buffer.get(mRing.slab(index), 0, read);
+          mRing.commitPut(generation, read, mDecoder.position());
+        }
+      } catch (InterruptedException ex) {
+        // Only happens when we're being stopped.
+      }
+    }
+  }
+
+
+
+  private void stopDecoderThread()
+  {
+    mRing.close();
+    mDecoderThread.interrupt();
+    while (true) {
+      try {
+        mDecoderThread.join();
+        break;
+      } catch (InterruptedException ex) {
+        // pass
+      }
+    }
+    mDecoderThread = null;
+  }
+
+
+
   private int mapChannelConfig(int channels)
   {
     switch (channels) {
@@ -0,0 +1,267 @@
+/**
+ * This file is part of Audioboo, an android program for audio blogging.
+ * Copyright (C) 2011 Audioboo Ltd. All rights reserved.
+ *
+ * Author: Jens Finkhaeuser <jens@finkhaeuser.de>
+ *
+ * $Id$
+ **/
+
+package fm.audioboo.application;
+
+import java.nio.ByteBuffer;
+
+import fm.audioboo.jni.FLACStreamDecoder;
+
+import android.util.Log;
+
+/**
+ * Decodes a list of FLAC files back to back, as if they were a single stream;
+ * e.g. a Boo's recordings, without flattening them first. The interface
+ * mirrors FLACStreamDecoder's, with sample positions counted from the start
+ * of the first file.
+ *
+ * Only one file is open at a time. read() moves on to the next file within
+ * the same call, so there is no gap at file boundaries.
+ **/
+public class FLACPlaylist
+{
+  /***************************************************************************
+   * Private constants
+   **/
+  // Log ID
+  private static final String LTAG  = "FLACPlaylist";
+
+
+  /***************************************************************************
+   * Private data
+   **/
+  // Files that could be opened, and the sample each starts at; mOffsets has
+  // an extra entry for the end of the last file.
+  private String[]          mPaths;
+  private int[]             mOffsets;
+  private int               mCount;
+
+  // Stream parameters, shared by all files.
+  private int               mSampleRate;
+  private int               mChannels;
+  private int               mBitsPerSample;
+  private int               mMinBufferSize;
+
+  // Decoder for the current file; may be null if it could not be reopened.
+  private int               mCurrent;
+  private FLACStreamDecoder mDecoder;
+
+
+  /***************************************************************************
+   * Implementation
+   **/
+
+  /**
+   * Reads the metadata of all files, skipping those that can't be opened.
+   * Throws IllegalArgumentException if no file is left, if the files differ
+   * in sample rate, channels or bits per sample, or if a file other than the
+   * last doesn't specify its length; such files need to be flattened before
+   * playing them.
+   **/
+  public FLACPlaylist(String[] paths)
+  {
+    mPaths = new String[paths.length];
+    mOffsets = new int[paths.length + 1];
+
+    boolean lengthUnknown = false;
+    try {
+      for (String path : paths) {
+        FLACStreamDecoder decoder = null;
+        try {
+          decoder = new FLACStreamDecoder(path, FLACStreamDecoder.INPUT_MMAP);
+        } catch (IllegalArgumentException ex) {
+          Log.w(LTAG, "Skipping " + path + ": " + ex.getMessage());
+          continue;
+        }
+
+        int sampleRate = decoder.sampleRate();
+        int channels = decoder.channels();
+        int bitsPerSample = decoder.bitsPerSample();
+        int samples = decoder.totalSamples();
+        mMinBufferSize = Math.max(mMinBufferSize, decoder.minBufferSize());
+
+        if (0 == mCount) {
+          // Keep the first file open for reading.
+          mDecoder = decoder;
+          mSampleRate = sampleRate;
+          mChannels = channels;
+          mBitsPerSample = bitsPerSample;
+        }
+        else {
+          decoder.release();
+          if (sampleRate != mSampleRate || channels != mChannels
+              || bitsPerSample != mBitsPerSample)
+          {
+            throw new IllegalArgumentException("Stream parameters of " + path
+                + " differ!");
+          }
+          if (lengthUnknown) {
+            throw new IllegalArgumentException("Length of "
+                + mPaths[mCount - 1] + " is unknown!");
+          }
+        }
+        lengthUnknown = (samples <= 0);
+
+        mPaths[mCount] = path;
+        mOffsets[mCount + 1] = mOffsets[mCount] + Math.max(0, samples);
+        ++mCount;
+      }
+    } catch (IllegalArgumentException ex) {
+      release();
+      throw ex;
+    }
+
+    if (0 == mCount) {
+      throw new IllegalArgumentException("None of the files can be played!");
+    }
+  }
+
+
+
+  public void release()
+  {
+    if (null != mDecoder) {
+      mDecoder.release();
+      mDecoder = null;
+    }
+  }
+
+
+
+  public int bitsPerSample()
+  {
+    return mBitsPerSample;
+  }
+
+
+
+  public int channels()
+  {
+    return mChannels;
+  }
+
+
+
+  public int sampleRate()
+  {
+    return mSampleRate;
+  }
+
+
+
+  /**
+   * Returns the size of the largest block over all files, or -1 if that's
+   * unknown; see FLACStreamDecoder.minBufferSize().
+   **/
+  public int minBufferSize()
+  {
+    return (0 == mMinBufferSize) ? -1 : mMinBufferSize;
+  }
+
+
+
+  /**
+   * Returns the number of samples in all files.
+   **/
+  public int totalSamples()
+  {
+    return mOffsets[mCount];
+  }
+
+
+
+  /**
+   * See FLACStreamDecoder.read(); fills the buffer from as many files as it
+   * takes, and only returns less than bufsize at the end of the last file.
+   **/
+  public int read(ByteBuffer buffer, int bufsize)
+  {
+    int sampleSize = (mBitsPerSample / 8) * mChannels;
+    bufsize -= bufsize % sampleSize;
+
+    int used = 0;
+    int ret = -1;
+    while (null != mDecoder && used < bufsize) {
+      ByteBuffer target = buffer;
+      if (used > 0) {
+        // The decoder writes to the start of the buffer it's given.
+        buffer.position(used);
+        target = buffer.slice();
+        buffer.rewind();
+      }
+
+      ret = mDecoder.read(target, bufsize - used);
+      if (ret > 0) {
+        used += ret;
+      }
+
+      // Reads only come up short at the end of a file.
+      if (used < bufsize && !open(mCurrent + 1)) {
+        break;
+      }
+    }
+
+    return (used > 0 ? used : ret);
+  }
+
+
+
+  /**
+   * Seeks to a particular sample, counted from the start of the first file.
+   **/
+  public void seekTo(int sample)
+  {
+    int index = 0;
+    while (index < mCount - 1 && sample >= mOffsets[index + 1]) {
+      ++index;
+    }
+
+    if ((index != mCurrent || null == mDecoder) && !open(index)) {
+      return;
+    }
+    mDecoder.seekTo(Math.max(0, sample - mOffsets[index]));
+  }
+
+
+
+  /**
+   * Returns read position, i.e. the sample the next read() starts at.
+   **/
+  public int position()
+  {
+    if (null == mDecoder) {
+      return mOffsets[mCurrent];
+    }
+    return mOffsets[mCurrent] + mDecoder.position();
+  }
+
+
+
+  /**
+   * Makes the file at index the current one. Returns false if there is no
+   * such file, or if it can't be opened any longer.
+   **/
+  private boolean open(int index)
+  {
+    if (index >= mCount) {
+      return false;
+    }
+
+    release();
+    mCurrent = index;
+    try {
+      mDecoder = new FLACStreamDecoder(mPaths[index],
+          FLACStreamDecoder.INPUT_MMAP);
+    } catch (IllegalArgumentException ex) {
+      Log.e(LTAG, "Could not reopen " + mPaths[index] + ": " + ex.getMessage());
+      return false;
+    }
+    return true;
+  }
+}
@@ -10,7 +10,9 @@
 package fm.audioboo.application;
 
 import android.content.Context;
+import android.content.SharedPreferences;
 
+import android.os.Build;
 import android.os.Handler;
 
 import android.media.AudioFormat;
@@ -18,19 +20,29 @@ import android.media.AudioRecord;
 import android.media.MediaRecorder;
 
 import fm.audioboo.jni.FLACStreamEncoder;
+import fm.audioboo.jni.EncoderConfig;
+import fm.audioboo.jni.EncoderCheckpoint;
+import fm.audioboo.jni.EncoderMetrics;
 
-import java.nio.ByteBuffer;
+import java.io.File;
 
 import java.lang.ref.WeakReference;
 
 import java.util.Locale;
 
+import java.util.concurrent.LinkedBlockingQueue;
+
 import android.util.Log;
 
 
 /**
  * Records a single FLAC file from the microphone. Overwrites the file if it
  * already exists.
+ *
+ * Starting the thread sets up the hardware and the encoder, and capture only
+ * begins with resumeRecording(); so a recorder can be started ahead of time,
+ * and then starts capturing at once. If it's stopped without having captured
+ * anything, the file is deleted before the thread ends.
  **/
 public class FLACRecorder extends Thread
 {
@@ -38,6 +50,8 @@ public class FLACRecorder extends Thread
    * Public constants
    **/
   // Message codes - XXX Also see BooRecorder
+  // MSG_OK is always sent last, once the recorded file is complete.
+  // MSG_AMPLITUDES carries the recorder; see getAmplitudes().
   public static final int MSG_OK                    = 0;
   public static final int MSG_INVALID_FORMAT        = 1;
   public static final int MSG_HARDWARE_UNAVAILABLE  = 2;
@@ -45,6 +59,7 @@ public class FLACRecorder extends Thread
   public static final int MSG_READ_ERROR            = 4;
   public static final int MSG_WRITE_ERROR           = 5;
   public static final int MSG_AMPLITUDES            = 6;
+  public static final int MSG_BACKPRESSURE          = 7;
 
 
   /***************************************************************************
@@ -53,6 +68,105 @@ public class FLACRecorder extends Thread
   // Log ID
   private static final String LTAG  = "FLACRecorder";
 
+  // Suffix for the file the encoder spills PCM to if it falls behind.
+  private static final String SPILL_SUFFIX  = ".spill";
+
+  // Preferences caching the audio setup that worked, and the build it worked
+  // on; see AudioSetup.
+  private static final String PREFS_KEY_AUDIO_SETUP       = "recorder.audio-setup";
+  private static final String PREFS_KEY_AUDIO_SETUP_BUILD = "recorder.audio-setup.build";
+
+  // Amplitudes are reported at most this many times a second; the level
+  // meter doesn't animate any faster, see SpectralView.
+  private static final int AMPLITUDES_PER_SECOND  = 15;
+
+  // Interval at which the encoder metrics snapshot is refreshed, in msec of
+  // recorded audio; see getMetrics().
+  private static final int METRICS_INTERVAL       = 1000;
+
+  // Commands for the recording thread; see mCommands.
+  private static final int CMD_RESUME = 1;
+  private static final int CMD_PAUSE  = 2;
+  private static final int CMD_STOP   = 3;
+
+
+  /***************************************************************************
+   * Format, sample rate, channel config and buffer size that AudioRecord
+   * accepted. Probing for these takes a while on some devices, so the first
+   * setup that works is cached until the OS build changes.
+   **/
+  private static class AudioSetup
+  {
+    public int  mFormat;
+    public int  mSampleRate;
+    public int  mChannelConfig;
+    public int  mBufsize;
+
+
+    /**
+     * Returns the cached setup, or null if there is none for this build.
+     **/
+    public static AudioSetup load()
+    {
+      SharedPreferences prefs = Globals.get().getPrefs();
+      if (null == prefs || !Build.FINGERPRINT.equals(
+            prefs.getString(PREFS_KEY_AUDIO_SETUP_BUILD, null)))
+      {
+        return null;
+      }
+
+      String[] values = prefs.getString(PREFS_KEY_AUDIO_SETUP, "").split(",");
+      if (4 != values.length) {
+        return null;
+      }
+      try {
+        AudioSetup setup = new AudioSetup();
+        setup.mFormat = Integer.parseInt(values[0]);
+        setup.mSampleRate = Integer.parseInt(values[1]);
+        setup.mChannelConfig = Integer.parseInt(values[2]);
+        setup.mBufsize = Integer.parseInt(values[3]);
+        return setup;
+      } catch (NumberFormatException ex) {
+        return null;
+      }
+    }
+
+
+    public void store()
+    {
+      SharedPreferences prefs = Globals.get().getPrefs();
+      if (null == prefs) {
+        return;
+      }
+
+      SharedPreferences.Editor edit = prefs.edit();
+      edit.putString(PREFS_KEY_AUDIO_SETUP_BUILD, Build.FINGERPRINT);
+      edit.putString(PREFS_KEY_AUDIO_SETUP, String.format(Locale.US,
+            "%d,%d,%d,%d", mFormat, mSampleRate, mChannelConfig, mBufsize));
+      edit.commit();
+    }
+
+
+    public static void forget()
+    {
+      SharedPreferences prefs = Globals.get().getPrefs();
+      if (null == prefs) {
+        return;
+      }
+
+      SharedPreferences.Editor edit = prefs.edit();
+      edit.remove(PREFS_KEY_AUDIO_SETUP_BUILD);
+      edit.remove(PREFS_KEY_AUDIO_SETUP);
+      edit.commit();
+    }
+
+
+    public String toString()
+    {
+      return mFormat + "/" + mChannelConfig + "/" + mSampleRate + "/" + mBufsize;
+    }
+  }
+
 
   /***************************************************************************
    * Simple class for reporting measured Amplitudes to user of FLACRecorder
@@ -70,6 +184,12 @@ public class FLACRecorder extends Thread
 
 
     public Amplitudes(Amplitudes other)
+    {
+      set(other);
+    }
+
+
+    public void set(Amplitudes other)
     {
       mPosition = other.mPosition;
       mPeak = other.mPeak;
@@ -107,17 +227,22 @@ public class FLACRecorder extends Thread
   /***************************************************************************
    * Public data
    **/
-  // Flag that keeps the thread running when true.
-  public boolean mShouldRun;
+  // Flag that is true while the thread runs, until stopRecording() is called.
+  public volatile boolean mShouldRun;
 
 
   /***************************************************************************
    * Private data
    **/
-  // Flag that signals whether the thread should record or ignore PCM data.
-  private boolean                 mShouldRecord = false;
+  // Flag that signals whether the thread should record or ignore PCM data;
+  // reflects the last command sent, not the thread's state.
+  private volatile boolean        mShouldRecord = false;
+
+  // Commands for the thread, in the order they were sent. The thread blocks
+  // on this while it isn't capturing, and checks it between reads otherwise.
+  private LinkedBlockingQueue<Integer>  mCommands = new LinkedBlockingQueue<Integer>();
 
-  // Stream encoder
+  // Stream encoder; only used on the recording thread.
   private FLACStreamEncoder       mEncoder;
 
   // File path for the output file.
@@ -129,6 +254,19 @@ public class FLACRecorder extends Thread
   // Remember the duration of the recording. This is in msec.
   private double                  mDuration;
 
+  // Amplitudes for the last MSG_AMPLITUDES; guarded by themselves.
+  // mAmplitudesPending is true until they're picked up with getAmplitudes(),
+  // and no new amplitudes are read from the encoder until then.
+  private Amplitudes              mAmplitudes = new Amplitudes();
+  private boolean                 mAmplitudesPending;
+
+  // Snapshot of the encoder's metrics, taken on the recording thread and
+  // never modified afterwards.
+  private volatile EncoderMetrics mMetrics;
+
+  // For reading amplitudes from the encoder on the recording thread.
+  private float[]                 mAmplitudeValues = new float[FLACStreamEncoder.AMPLITUDE_VALUES];
+
 
   /***************************************************************************
    * Implementation
@@ -146,6 +284,7 @@ public class FLACRecorder extends Thread
   public void resumeRecording()
   {
     mShouldRecord = true;
+    mCommands.offer(CMD_RESUME);
   }
 
 
@@ -153,6 +292,20 @@ public class FLACRecorder extends Thread
   public void pauseRecording()
   {
     mShouldRecord = false;
+    mCommands.offer(CMD_PAUSE);
+  }
+
+
+
+  /**
+   * Makes the thread stop capturing, if necessary, and finish the file.
+   * Commands sent before are handled first; join() the thread to wait for it
+   * to end.
+   **/
+  public void stopRecording()
+  {
+    mShouldRun = false;
+    mCommands.offer(CMD_STOP);
   }
 
 
@@ -173,18 +326,28 @@ public class FLACRecorder extends Thread
 
 
 
-  public Amplitudes getAmplitudes()
+  /**
+   * Copies the amplitudes measured since the last call into amp, and lets
+   * the recorder send the next MSG_AMPLITUDES. May be called from any thread.
+   **/
+  public void getAmplitudes(Amplitudes amp)
   {
-    if (null == mEncoder) {
-      return null;
+    synchronized (mAmplitudes) {
+      amp.set(mAmplitudes);
+      mAmplitudesPending = false;
     }
+  }
+
 
-    Amplitudes amp = new Amplitudes();
-    amp.mPosition = (long) mDuration;
-    amp.mPeak = mEncoder.getMaxAmplitude();
-    amp.mAverage = mEncoder.getAverageAmplitude();
 
-    return amp;
+  /**
+   * Returns the encoder's metrics as of the last second of recording, or as
+   * of when recording was paused or stopped; null if there are none yet. May
+   * be called from any thread.
+   **/
+  public EncoderMetrics getMetrics()
+  {
+    return mMetrics;
   }
 
 
@@ -222,71 +385,46 @@ public class FLACRecorder extends Thread
 
   public void run()
   {
-    // Determine audio config to use.
-    final int sample_rates[] = { 96000, /* Samsung galaxy S2 phones broken here 48000, */ 44100, 22050, 11025, 8000 };
-    final int configs[] = { AudioFormat.CHANNEL_CONFIGURATION_MONO, AudioFormat.CHANNEL_CONFIGURATION_STEREO };
-    final int formats[] = { AudioFormat.ENCODING_PCM_16BIT, AudioFormat.ENCODING_PCM_8BIT };
-
-    int sample_rate = -1;
-    int channel_config = -1;
-    int format = -1;
-
-    int bufsize = AudioRecord.ERROR_BAD_VALUE;
+    // Reuse the audio setup that worked before; only probe for one if that
+    // fails.
+    long start = System.currentTimeMillis();
     AudioRecord recorder = null;
+    AudioSetup setup = AudioSetup.load();
+    if (null != setup) {
+      recorder = createRecorder(setup);
+      if (null == recorder) {
+        Log.w(LTAG, "Cached audio setup " + setup + " failed, probing.");
+        AudioSetup.forget();
+      }
+    }
 
-    boolean found = false;
-    for (int x = 0 ; !found && x < formats.length ; ++x) {
-      format = formats[x];
-
-      for (int y = 0 ; !found && y < sample_rates.length ; ++y) {
-        sample_rate = sample_rates[y];
-
-        for (int z = 0 ; !found && z < configs.length ; ++z) {
-          channel_config = configs[z];
-
-          Log.d(LTAG, "Trying: " + format + "/" + channel_config + "/" + sample_rate);
-          bufsize = 2 * AudioRecord.getMinBufferSize(sample_rate, channel_config, format);
-          Log.d(LTAG, "Bufsize: " + bufsize);
-
-          // Handle invalid configs
-          if (AudioRecord.ERROR_BAD_VALUE == bufsize) {
-            continue;
-          }
-          if (AudioRecord.ERROR == bufsize) {
-            Log.e(LTAG, "Unable to query hardware!");
-            mHandler.obtainMessage(MSG_HARDWARE_UNAVAILABLE).sendToTarget();
-            return;
-          }
-
-          try {
-            // Set up recorder
-            recorder = new AudioRecord(MediaRecorder.AudioSource.MIC, sample_rate,
-                channel_config, format, bufsize);
-			int istate = recorder.getState();
-			if (istate != AudioRecord.STATE_INITIALIZED) // it lied to us
-				continue;
-          } catch (IllegalArgumentException ex) {
-            recorder = null;
-            Log.e(LTAG, "Failed to set up recorder!");
-            continue;
-          }
-
-          // Got a valid config.
-          found = true;
-          break;
+    if (null == recorder) {
+      setup = new AudioSetup();
+      recorder = probeRecorder(setup);
+      if (null == recorder) {
+        if (AudioRecord.ERROR == setup.mBufsize) {
+          Log.e(LTAG, "Unable to query hardware!");
+          mHandler.obtainMessage(MSG_HARDWARE_UNAVAILABLE).sendToTarget();
+        }
+        else {
+          Log.e(LTAG, "Sample rate, channel config or format not supported!");
+          mHandler.obtainMessage(MSG_INVALID_FORMAT).sendToTarget();
         }
+        mHandler.obtainMessage(MSG_OK).sendToTarget();
+        return;
       }
+      setup.store();
     }
+    Log.d(LTAG, "Using: " + setup + ", set up in "
+        + (System.currentTimeMillis() - start) + " msec.");
 
-    if (!found) {
-      Log.e(LTAG, "Sample rate, channel config or format not supported!");
-      mHandler.obtainMessage(MSG_INVALID_FORMAT).sendToTarget();
-      return;
-    }
-    Log.d(LTAG, "Using: " + format + "/" + channel_config + "/" + sample_rate);
+    int sample_rate = setup.mSampleRate;
+    int channel_config = setup.mChannelConfig;
+    int format = setup.mFormat;
+    int bufsize = setup.mBufsize;
 
     mShouldRun = true;
-    boolean oldShouldRecord = false;
+    boolean recording = false;
 
 
 
@@ -299,30 +437,63 @@ public class FLACRecorder extends Thread
       // Set up encoder. Create path for the file if it doesn't yet exist.
       Log.d(LTAG, "Setting up encoder " + mPath + " rate: " + sample_rate + " channels: " + mapped_channels + " format " + mapped_format);
 
-      mEncoder = new FLACStreamEncoder(mPath, sample_rate, mapped_channels, mapped_format);
+      EncoderConfig config = new EncoderConfig();
+      config.mSpillPath = mPath + SPILL_SUFFIX;
+      config.mCheckpointPath = mPath + EncoderCheckpoint.EXTENSION;
+      mEncoder = new FLACStreamEncoder(mPath, sample_rate, mapped_channels,
+          mapped_format, config);
+      int backpressure = FLACStreamEncoder.BACKPRESSURE_NONE;
 
       // Start recording loop
       mDuration = 0.0;
-      ByteBuffer buffer = ByteBuffer.allocateDirect(bufsize);
-      while (mShouldRun) {
-        // Toggle recording state, if necessary
-        if (mShouldRecord != oldShouldRecord) {
-          // State changed! Let's see what we are supposed to do.
-          if (mShouldRecord) {
-             Log.d(LTAG, "Start recording!");
+      double nextReport = 0.0;
+      double nextMetrics = 0.0;
+      // The encoder reads the samples straight out of the array.
+      byte[] buffer = new byte[bufsize];
+      while (true) {
+        // Sleep until the next command while paused; while capturing, the
+        // read below blocks instead.
+        Integer command = null;
+        if (recording) {
+          command = mCommands.poll();
+        }
+        else {
+          try {
+            command = mCommands.take();
+          } catch (InterruptedException ex) {
+            if (!mShouldRun) {
+              break;
+            }
+            continue;
+          }
+        }
+
+        if (null != command) {
+          if (CMD_STOP == command) {
+            if (recording) {
+              reportAmplitudes(true);
+            }
+            break;
+          }
+          if (CMD_RESUME == command && !recording) {
+            Log.d(LTAG, "Start recording!");
             recorder.startRecording();
+            recording = true;
           }
-          else {
+          else if (CMD_PAUSE == command && recording) {
             Log.d(LTAG, "Stop recording!");
             recorder.stop();
             mEncoder.flush();
+            recording = false;
+            // The last report needs the final position.
+            reportAmplitudes(true);
+            mMetrics = mEncoder.getMetrics();
           }
-          oldShouldRecord = mShouldRecord;
         }
 
         // If we're supposed to be recording, read data.
-        if (mShouldRecord) {
-          int result = recorder.read(buffer, bufsize);
+        if (recording) {
+          int result = recorder.read(buffer, 0, bufsize);
           switch (result) {
             case AudioRecord.ERROR_INVALID_OPERATION:
               Log.e(LTAG, "Invalid operation.");
@@ -337,8 +508,7 @@ public class FLACRecorder extends Thread
             default:
               if (result > 0) {
                 //Log.d(LTAG, "*** CHIPMUNK got: " + result);
-                //java.nio.ShortBuffer s = buffer.asShortBuffer();
-                //s.rewind();
+                //java.nio.ShortBuffer s = java.nio.ByteBuffer.wrap(buffer).order(java.nio.ByteOrder.nativeOrder()).asShortBuffer();
                 //for (int i = 0 ; i < (result / (format / 8)) ; ++i) {
                 //  short v = s.get(i);
                 //  if (Math.abs(v) <= 255) {
@@ -351,15 +521,29 @@ public class FLACRecorder extends Thread
                 mDuration += read_ms;
 
                 //long start = System.currentTimeMillis();
-                int write_result = mEncoder.write(buffer, result);
+                int write_result = mEncoder.write(buffer, 0, result);
                 if (write_result != result) {
                   Log.e(LTAG, "Attempted to write " + result
                       + " but only wrote " + write_result);
                   mHandler.obtainMessage(MSG_WRITE_ERROR).sendToTarget();
                 }
-                else {
-                  Amplitudes amp = getAmplitudes();
-                  mHandler.obtainMessage(MSG_AMPLITUDES, amp).sendToTarget();
+                else if (mDuration >= nextReport) {
+                  nextReport = mDuration + 1000.0 / AMPLITUDES_PER_SECOND;
+                  reportAmplitudes(false);
+                }
+
+                if (mDuration >= nextMetrics) {
+                  nextMetrics = mDuration + METRICS_INTERVAL;
+                  mMetrics = mEncoder.getMetrics();
+                }
+
+                // Let the handler know if the encoder starts or stops
+                // falling behind; arg1 is the new BACKPRESSURE_* state.
+                int new_backpressure = mEncoder.getBackpressure();
+                if (new_backpressure != backpressure) {
+                  Log.w(LTAG, "Encoder backpressure changed to " + new_backpressure);
+                  backpressure = new_backpressure;
+                  mHandler.obtainMessage(MSG_BACKPRESSURE, backpressure, 0).sendToTarget();
                 }
                 //long end = System.currentTimeMillis();
                 //Log.d(LTAG, "Write of " + result + " bytes took " + (end - start) + " msec.");
@@ -369,8 +553,35 @@ public class FLACRecorder extends Thread
       }
 
       recorder.release();
-      mEncoder.release();
+      mMetrics = mEncoder.getMetrics();
+      Log.d(LTAG, "Encoder metrics: " + mMetrics);
+
+      if (0.0 == mDuration) {
+        // Nothing was recorded, so there's nothing to finish. Delete the file
+        // before the thread ends, so a new recorder can use the same path.
+        mEncoder.release();
+        mEncoder = null;
+        new File(mPath).delete();
+        mHandler.obtainMessage(MSG_OK).sendToTarget();
+        return;
+      }
+
+      // Finishing the file can take a while; don't hold up whoever is
+      // waiting for this thread to end.
+      FLACStreamEncoder encoder = mEncoder;
       mEncoder = null;
+      encoder.releaseAsync(new FLACStreamEncoder.ReleaseListener()
+      {
+        public void onReleased(boolean success)
+        {
+          if (!success) {
+            Log.e(LTAG, "Could not finish writing " + mPath);
+            mHandler.obtainMessage(MSG_WRITE_ERROR).sendToTarget();
+          }
+          mHandler.obtainMessage(MSG_OK).sendToTarget();
+        }
+      });
+      return;
 
     } catch (IllegalArgumentException ex) {
       Log.e(LTAG, "Illegal argument: " + ex.getMessage());
@@ -382,4 +593,109 @@ public class FLACRecorder extends Thread
 
 
 
+  /**
+   * Reads the amplitudes from the encoder, and sends MSG_AMPLITUDES unless
+   * the last one is still pending. Then the encoder keeps accumulating, and
+   * is only read if force is set; the pending message is for the new
+   * amplitudes, too.
+   **/
+  private void reportAmplitudes(boolean force)
+  {
+    boolean pending;
+    synchronized (mAmplitudes) {
+      pending = mAmplitudesPending;
+    }
+    if (pending && !force) {
+      return;
+    }
+
+    mEncoder.getAmplitudes(mAmplitudeValues);
+
+    synchronized (mAmplitudes) {
+      float peak = mAmplitudeValues[FLACStreamEncoder.AMPLITUDE_PEAK];
+      if (mAmplitudesPending && mAmplitudes.mPeak > peak) {
+        peak = mAmplitudes.mPeak;
+      }
+      mAmplitudes.mPeak = peak;
+      mAmplitudes.mAverage = mAmplitudeValues[FLACStreamEncoder.AMPLITUDE_AVERAGE];
+      mAmplitudes.mPosition = (long) mAmplitudeValues[FLACStreamEncoder.AMPLITUDE_POSITION];
+
+      pending = mAmplitudesPending;
+      mAmplitudesPending = true;
+    }
+
+    if (!pending) {
+      mHandler.obtainMessage(MSG_AMPLITUDES, this).sendToTarget();
+    }
+  }
+
+
+
+  /**
+   * Tries formats, sample rates and channel configs in order of preference,
+   * and returns a recorder for the first combination that works, with that
+   * combination in setup. Returns null if there is none; setup.mBufsize is
+   * AudioRecord.ERROR then if the hardware could not be queried.
+   **/
+  private static AudioRecord probeRecorder(AudioSetup setup)
+  {
+    final int sample_rates[] = { 96000, /* Samsung galaxy S2 phones broken here 48000, */ 44100, 22050, 11025, 8000 };
+    final int configs[] = { AudioFormat.CHANNEL_CONFIGURATION_MONO, AudioFormat.CHANNEL_CONFIGURATION_STEREO };
+    final int formats[] = { AudioFormat.ENCODING_PCM_16BIT, AudioFormat.ENCODING_PCM_8BIT };
+
+    for (int format : formats) {
+      for (int sample_rate : sample_rates) {
+        for (int channel_config : configs) {
+          Log.d(LTAG, "Trying: " + format + "/" + channel_config + "/" + sample_rate);
+          int bufsize = AudioRecord.getMinBufferSize(sample_rate, channel_config, format);
+          Log.d(LTAG, "Bufsize: " + bufsize);
+
+          // Handle invalid configs
+          if (AudioRecord.ERROR_BAD_VALUE == bufsize) {
+            continue;
+          }
+          if (AudioRecord.ERROR == bufsize) {
+            setup.mBufsize = AudioRecord.ERROR;
+            return null;
+          }
+          bufsize *= 2;
+
+          setup.mFormat = format;
+          setup.mSampleRate = sample_rate;
+          setup.mChannelConfig = channel_config;
+          setup.mBufsize = bufsize;
+          AudioRecord recorder = createRecorder(setup);
+          if (null != recorder) {
+            return recorder;
+          }
+        }
+      }
+    }
+
+    setup.mBufsize = AudioRecord.ERROR_BAD_VALUE;
+    return null;
+  }
+
+
+
+  /**
+   * Returns a recorder for the given setup, or null if it can't be
+   * initialized.
+   **/
+  private static AudioRecord createRecorder(AudioSetup setup)
+  {
+    try {
+      AudioRecord recorder = new AudioRecord(MediaRecorder.AudioSource.MIC,
+          setup.mSampleRate, setup.mChannelConfig, setup.mFormat,
+          setup.mBufsize);
+      if (AudioRecord.STATE_INITIALIZED == recorder.getState()) {
+        return recorder;
+      }
+      // It lied to us.
+      recorder.release();
+    } catch (IllegalArgumentException ex) {
+      Log.e(LTAG, "Failed to set up recorder!");
+    }
+    return null;
+  }
 }
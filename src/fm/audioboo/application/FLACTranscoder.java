@@ -0,0 +1,389 @@
+/**
+ * This file is part of Audioboo, an android program for audio blogging.
+ * Copyright (C) 2011 Audioboo Ltd. All rights reserved.
+ *
+ * Author: Jens Finkhaeuser <jens@finkhaeuser.de>
+ *
+ * $Id$
+ **/
+
+package fm.audioboo.application;
+
+import java.io.File;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import fm.audioboo.jni.FLACStreamDecoder;
+import fm.audioboo.jni.FLACStreamEncoder;
+import fm.audioboo.jni.EncoderConfig;
+
+import android.util.Log;
+
+/**
+ * Decodes FLAC files and encodes them into one, for when their frames can't
+ * be joined by FLACConcatenator.
+ *
+ * Decoding runs on a thread of its own, and fills a PCMRing that the calling
+ * thread encodes from. The decoder thread opens each file before the one
+ * preceding it is drained, so there's no stall between files. All files are
+ * encoded with the format of the first one that can be opened; later files
+ * with other channel counts or sample sizes are converted to it, but a
+ * different sample rate makes transcoding fail.
+ *
+ * transcode() blocks; cancel() may be called from any thread.
+ **/
+public class FLACTranscoder
+{
+  /***************************************************************************
+   * Private constants
+   **/
+  // Log ID
+  private static final String LTAG        = "FLACTranscoder";
+
+  // Bytes of PCM per slab, and slabs between decoder and encoder. The decoder
+  // fills any size, so fewer, larger slabs mean fewer JNI calls.
+  private static final int SLAB_SIZE      = 65536;
+  private static final int SLABS          = 4;
+
+
+  /***************************************************************************
+   * Progress listener
+   **/
+  public static interface ProgressListener
+  {
+    /**
+     * Called on the encoding thread after each slab, with the number of
+     * samples (per channel) encoded so far, and the number in all input
+     * files, which may be inaccurate for files that don't specify their
+     * length.
+     **/
+    public void onProgress(long done, long total);
+  }
+
+
+  /***************************************************************************
+   * Private data
+   **/
+  private String[]          mInfiles;
+  private String            mOutfile;
+
+  private volatile boolean  mCancelled;
+  private PCMRing           mRing;
+
+  // Set by the decoder thread if a file can't be converted to the output
+  // format.
+  private volatile boolean  mFailed;
+
+  // Format of the first file; set by the decoder thread before it publishes
+  // its first slab.
+  private int               mSampleRate;
+  private int               mChannels;
+  private int               mBitsPerSample;
+
+
+  /***************************************************************************
+   * Implementation
+   **/
+  public FLACTranscoder(String[] infiles, String outfile)
+  {
+    mInfiles = infiles;
+    mOutfile = outfile;
+  }
+
+
+
+  /**
+   * Transcodes the input files into the output file, and reports progress to
+   * listener, which may be null. Input files that can't be opened are
+   * skipped. Returns true if the output file was written; if transcoding was
+   * cancelled or failed, the output file is deleted.
+   **/
+  public boolean transcode(ProgressListener listener)
+  {
+    long total = countSamples();
+
+    PCMRing ring = new PCMRing(SLABS, SLAB_SIZE);
+    synchronized (this) {
+      if (mCancelled) {
+        return false;
+      }
+      mRing = ring;
+    }
+
+    DecoderThread decoderThread = new DecoderThread();
+    decoderThread.start();
+
+    FLACStreamEncoder encoder = null;
+    boolean failed = false;
+    long done = 0;
+    try {
+      while (!mCancelled) {
+        int index = ring.beginTake();
+        if (index < 0) {
+          break;
+        }
+
+        if (null == encoder) {
+          // Decoding is much faster than real time, so spread encoding over
+          // all cores.
+          EncoderConfig config = new EncoderConfig();
+          config.mThreads = EncoderConfig.THREADS_PER_CORE;
+          encoder = new FLACStreamEncoder(mOutfile, mSampleRate, mChannels,
+              mBitsPerSample, config);
+        }
+
+        int size = ring.size(index);
+        encoder.write(ring.slab(index), 0, size);
+        ring.endTake();
+
+        done += size / ((mBitsPerSample / 8) * mChannels);
+        if (null != listener) {
+          listener.onProgress(done, total);
+        }
+      }
+    } catch (InterruptedException ex) {
+      failed = true;
+    } catch (IllegalArgumentException ex) {
+      Log.e(LTAG, "Could not encode " + mOutfile + ": " + ex.getMessage());
+      failed = true;
+    } finally {
+      ring.close();
+      joinUninterruptibly(decoderThread);
+      if (null != encoder) {
+        encoder.release();
+      }
+    }
+
+    if (failed || mFailed || mCancelled || null == encoder) {
+      new File(mOutfile).delete();
+      return false;
+    }
+    return true;
+  }
+
+
+
+  /**
+   * Stops a running transcode(), or makes the next one return right away.
+   **/
+  public synchronized void cancel()
+  {
+    mCancelled = true;
+    if (null != mRing) {
+      mRing.close();
+    }
+  }
+
+
+
+  public boolean isCancelled()
+  {
+    return mCancelled;
+  }
+
+
+
+  /**
+   * Adds up the lengths of all input files, from their metadata.
+   **/
+  private long countSamples()
+  {
+    long total = 0;
+    for (String infile : mInfiles) {
+      FLACStreamDecoder decoder = open(infile);
+      if (null != decoder) {
+        total += Math.max(0, decoder.totalSamples());
+        decoder.release();
+      }
+    }
+    return total;
+  }
+
+
+
+  private static FLACStreamDecoder open(String infile)
+  {
+    try {
+      return new FLACStreamDecoder(infile, FLACStreamDecoder.INPUT_MMAP);
+    } catch (IllegalArgumentException ex) {
+      Log.e(LTAG, "Could not open " + infile + ", skipping.");
+      return null;
+    }
+  }
+
+
+
+  private static void joinUninterruptibly(Thread thread)
+  {
+    while (true) {
+      try {
+        thread.join();
+        break;
+      } catch (InterruptedException ex) {
+        // pass
+      }
+    }
+  }
+
+
+
+  /**
+   * Decodes the input files into the ring, one after the other.
+   **/
+  private class DecoderThread extends Thread
+  {
+    private int mPosition;
+
+
+    public void run()
+    {
+      ByteBuffer buffer = ByteBuffer.allocateDirect(SLAB_SIZE);
+      buffer.order(ByteOrder.nativeOrder());
+      int generation = mRing.generation();
+
+      FLACStreamDecoder decoder = null;
+      FLACStreamDecoder next = null;
+      if (mInfiles.length > 0) {
+        next = open(mInfiles[0]);
+      }
+      try {
+        for (int i = 0 ; i < mInfiles.length && !mCancelled ; ++i) {
+          decoder = next;
+
+          // Open the next file before this one is drained.
+          next = null;
+          if (i + 1 < mInfiles.length) {
+            next = open(mInfiles[i + 1]);
+          }
+
+          if (null != decoder) {
+            if (!decode(decoder, mInfiles[i], buffer, generation)) {
+              mFailed = true;
+              mRing.close();
+              return;
+            }
+            decoder.release();
+          }
+        }
+        mRing.endOfStream(generation);
+      } catch (InterruptedException ex) {
+        // Only happens when we're being stopped.
+      } finally {
+        // Releasing twice is harmless.
+        if (null != decoder) {
+          decoder.release();
+        }
+        if (null != next) {
+          next.release();
+        }
+      }
+    }
+
+
+
+    /**
+     * Decodes a file into the ring, converting it to the output format if
+     * necessary. Returns false if the file's sample rate doesn't match.
+     **/
+    private boolean decode(FLACStreamDecoder decoder, String infile,
+        ByteBuffer buffer, int generation) throws InterruptedException
+    {
+      if (0 == mSampleRate) {
+        mSampleRate = decoder.sampleRate();
+        mChannels = decoder.channels();
+        mBitsPerSample = decoder.bitsPerSample();
+      }
+      else if (decoder.sampleRate() != mSampleRate) {
+        Log.e(LTAG, "Sample rate of " + infile + " is " + decoder.sampleRate()
+            + " instead of " + mSampleRate + ", can't transcode.");
+        return false;
+      }
+
+      int channels = decoder.channels();
+      int bitsPerSample = decoder.bitsPerSample();
+      boolean convert = (channels != mChannels || bitsPerSample != mBitsPerSample);
+      if (convert) {
+        Log.d(LTAG, "Converting " + infile + " from " + channels + "/"
+            + bitsPerSample + " to " + mChannels + "/" + mBitsPerSample);
+      }
+
+      // Read no more than fits into a slab once converted.
+      int inSampleSize = (bitsPerSample / 8) * channels;
+      int outSampleSize = (mBitsPerSample / 8) * mChannels;
+      int bufsize = (SLAB_SIZE / Math.max(inSampleSize, outSampleSize))
+        * inSampleSize;
+
+      while (!mCancelled) {
+        int index = mRing.beginPut();
+        if (index < 0) {
+          return true;
+        }
+
+        int read = decoder.read(buffer, bufsize);
+        if (read <= 0) {
+          return true;
+        }
+
+        int samples = read / inSampleSize;
+        int size = samples * outSampleSize;
+        if (convert) {
+          convert(buffer, channels, bitsPerSample, samples, mRing.slab(index));
+        }
+        else {
+          buffer.rewind();
+          buffer.get(mRing.slab(index), 0, read);
+        }
+        mPosition += samples;
+        mRing.commitPut(generation, size, mPosition);
+      }
+      return true;
+    }
+
+
+
+    /**
+     * Converts samples (per channel) from in, which holds PCM with the given
+     * channels and bits per sample, to the output format in out. Upmixing
+     * repeats the last input channel, downmixing to mono averages them.
+     **/
+    private void convert(ByteBuffer in, int channels, int bitsPerSample,
+        int samples, byte[] out)
+    {
+      ByteBuffer target = ByteBuffer.wrap(out).order(ByteOrder.nativeOrder());
+      for (int i = 0 ; i < samples ; ++i) {
+        int base = i * channels;
+        for (int c = 0 ; c < mChannels ; ++c) {
+          // Values are scaled to 16 bits.
+          int value = 0;
+          if (1 == mChannels) {
+            for (int j = 0 ; j < channels ; ++j) {
+              value += sample(in, base + j, bitsPerSample);
+            }
+            value /= channels;
+          }
+          else {
+            value = sample(in, base + Math.min(c, channels - 1), bitsPerSample);
+          }
+
+          if (8 == mBitsPerSample) {
+            target.put((byte) (value >> 8));
+          }
+          else {
+            target.putShort((short) value);
+          }
+        }
+      }
+    }
+
+
+
+    private int sample(ByteBuffer in, int index, int bitsPerSample)
+    {
+      if (8 == bitsPerSample) {
+        return in.get(index) << 8;
+      }
+      return in.getShort(index * 2);
+    }
+  }
+}
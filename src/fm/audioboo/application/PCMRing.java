@@ -0,0 +1,286 @@
+/**
+ * This file is part of Audioboo, an android program for audio blogging.
+ * Copyright (C) 2011 Audioboo Ltd. All rights reserved.
+ *
+ * Author: Jens Finkhaeuser <jens@finkhaeuser.de>
+ *
+ * $Id$
+ **/
+
+package fm.audioboo.application;
+
+/**
+ * Fixed capacity ring of preallocated PCM buffers (slabs), handed from one
+ * decoding thread to one playback thread.
+ *
+ * The producer fills the slab returned by beginPut() and publishes it with
+ * commitPut(); the consumer plays the slab returned by beginTake() and hands
+ * it back with endTake(). Slabs are only ever touched by one side at a time,
+ * so the data itself is accessed without holding the lock.
+ *
+ * Seeking is requested by the consumer; it drops all queued slabs, and bumps
+ * a generation counter so that whatever the producer was decoding at the
+ * time is dropped as well.
+ **/
+public class PCMRing
+{
+  /***************************************************************************
+   * What the producer should decode next; see takeSeek().
+   **/
+  public static class Seek
+  {
+    // Sample to seek to before decoding further, or -1.
+    public int  mSample;
+    // Generation to pass to commitPut() and endOfStream().
+    public int  mGeneration;
+  }
+
+
+  /***************************************************************************
+   * Private data
+   **/
+  private byte[][]  mSlabs;
+  private int[]     mSizes;
+  private int[]     mPositions;
+
+  private int       mHead;
+  private int       mTail;
+  private int       mCount;
+
+  // Seek handling
+  private int       mGeneration;
+  private int       mSeekSample = -1;
+
+  private boolean   mEndOfStream;
+  private boolean   mClosed;
+
+  // Underruns are only counted once the ring had data since the last (re-)
+  // start, and only once per stretch of waiting.
+  private boolean   mPriming = true;
+  private boolean   mStarved;
+  private int       mUnderruns;
+
+
+  /***************************************************************************
+   * Implementation
+   **/
+  public PCMRing(int slabs, int slabSize)
+  {
+    mSlabs = new byte[slabs][slabSize];
+    mSizes = new int[slabs];
+    mPositions = new int[slabs];
+  }
+
+
+
+  public int slabs()
+  {
+    return mSlabs.length;
+  }
+
+
+
+  public int slabSize()
+  {
+    return mSlabs[0].length;
+  }
+
+
+
+  public byte[] slab(int index)
+  {
+    return mSlabs[index];
+  }
+
+
+
+  /**
+   * Number of bytes in the given slab, and the decoder position (in samples)
+   * after them.
+   **/
+  public int size(int index)
+  {
+    return mSizes[index];
+  }
+
+
+
+  public int position(int index)
+  {
+    return mPositions[index];
+  }
+
+
+
+  /***************************************************************************
+   * Producer side
+   **/
+
+  /**
+   * Returns the current generation, for producers that never seek; others
+   * get it from takeSeek().
+   **/
+  public synchronized int generation()
+  {
+    return mGeneration;
+  }
+
+
+
+  /**
+   * Fills seek with the sample to seek to before decoding further, or -1,
+   * and the generation the data decoded next belongs to. Both are taken
+   * together, so data decoded after a seek is never dropped as stale.
+   **/
+  public synchronized void takeSeek(Seek seek)
+  {
+    seek.mSample = mSeekSample;
+    seek.mGeneration = mGeneration;
+    mSeekSample = -1;
+  }
+
+
+
+  /**
+   * Waits for a free slab, and returns its index; returns -1 once the ring is
+   * closed.
+   **/
+  public synchronized int beginPut() throws InterruptedException
+  {
+    while (mCount >= mSlabs.length && !mClosed) {
+      wait();
+    }
+    return mClosed ? -1 : mHead;
+  }
+
+
+
+  /**
+   * Publishes the slab returned by beginPut(), unless a seek happened since
+   * generation was read.
+   **/
+  public synchronized void commitPut(int generation, int size, int position)
+  {
+    if (generation != mGeneration) {
+      return;
+    }
+    mSizes[mHead] = size;
+    mPositions[mHead] = position;
+    mHead = (mHead + 1) % mSlabs.length;
+    ++mCount;
+    notifyAll();
+  }
+
+
+
+  /**
+   * Marks the end of the stream; returns false if a seek happened since
+   * generation was read, and decoding should continue.
+   **/
+  public synchronized boolean endOfStream(int generation)
+  {
+    if (generation != mGeneration) {
+      return false;
+    }
+    mEndOfStream = true;
+    notifyAll();
+    return true;
+  }
+
+
+
+  /**
+   * After the end of the stream, waits for a seek. Returns false if the ring
+   * was closed instead.
+   **/
+  public synchronized boolean awaitSeek() throws InterruptedException
+  {
+    while (-1 == mSeekSample && !mClosed) {
+      wait();
+    }
+    return !mClosed;
+  }
+
+
+
+  /***************************************************************************
+   * Consumer side
+   **/
+
+  /**
+   * Waits for a filled slab, and returns its index; returns -1 at the end of
+   * the stream, or once the ring is closed.
+   **/
+  public synchronized int beginTake() throws InterruptedException
+  {
+    while (0 == mCount) {
+      if (mEndOfStream || mClosed) {
+        return -1;
+      }
+      if (!mPriming && !mStarved) {
+        ++mUnderruns;
+        mStarved = true;
+      }
+      wait();
+    }
+    mPriming = false;
+    mStarved = false;
+    return mTail;
+  }
+
+
+
+  /**
+   * Hands the slab returned by beginTake() back to the producer.
+   **/
+  public synchronized void endTake()
+  {
+    mTail = (mTail + 1) % mSlabs.length;
+    --mCount;
+    notifyAll();
+  }
+
+
+
+  /**
+   * Drops all queued data, and asks the producer to continue from sample.
+   **/
+  public synchronized void seek(int sample)
+  {
+    mSeekSample = sample;
+    ++mGeneration;
+    mTail = mHead;
+    mCount = 0;
+    mEndOfStream = false;
+    mPriming = true;
+    notifyAll();
+  }
+
+
+
+  /**
+   * Wakes up both sides for good.
+   **/
+  public synchronized void close()
+  {
+    mClosed = true;
+    notifyAll();
+  }
+
+
+
+  /***************************************************************************
+   * Statistics
+   **/
+  public synchronized int filled()
+  {
+    return mCount;
+  }
+
+
+
+  public synchronized int underruns()
+  {
+    return mUnderruns;
+  }
+}
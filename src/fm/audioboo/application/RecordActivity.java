@@ -106,6 +106,8 @@ public class RecordActivity extends Activity
   private BooRecorder     mBooRecorder;
   // Temporary place to store mBoo.getDuration()
   private double          mRecordingOffset;
+  // Play the Boo once the recorder has finished writing it.
+  private boolean         mPlayWhenFinished;
 
   // The record activity essentially represents a Boo, even though it's not
   // filled with all possible bits of information yet. We (re-)create this
@@ -140,11 +142,16 @@ public class RecordActivity extends Activity
           break;
 
         case FLACRecorder.MSG_OK:
+        case FLACRecorder.MSG_BACKPRESSURE:
           // Ignore
           break;
 
         case BooRecorder.MSG_END_OF_RECORDING:
           updateButtons();
+          if (mPlayWhenFinished) {
+            mPlayWhenFinished = false;
+            Globals.get().mPlayer.play(mBoo, false);
+          }
           break;
 
         default:
@@ -270,6 +277,7 @@ public class RecordActivity extends Activity
   private void startRecording()
   {
     // Stop playback & hide player.
+    mPlayWhenFinished = false;
     Globals.get().mPlayer.stop();
     hidePlayer();
 
@@ -299,9 +307,10 @@ public class RecordActivity extends Activity
     // Log.d(LTAG, "Pause recording.");
     mBooRecorder.stop();
 
-    // Show & initialize player.
+    // Show & initialize player; playback starts when the recorder is done
+    // with the file.
     showPlayer();
-    Globals.get().mPlayer.play(mBoo, false);
+    mPlayWhenFinished = true;
   }
 
 
@@ -335,6 +344,19 @@ public class RecordActivity extends Activity
 
 
 
+  @Override
+  public void onPause()
+  {
+    super.onPause();
+
+    // Don't hold on to the hardware while we're not visible.
+    if (null != mBooRecorder) {
+      mBooRecorder.release();
+    }
+  }
+
+
+
   @Override
   public void onStop()
   {
@@ -342,6 +364,7 @@ public class RecordActivity extends Activity
 
     // Definitely stop playback. We don't exactly know what Boo was playing
     // before, and we don't really care.
+    mPlayWhenFinished = false;
     Globals.get().mPlayer.stop();
   }
 
@@ -437,6 +460,7 @@ public class RecordActivity extends Activity
   private void startCountdown()
   {
     // Stop playback & hide player.
+    mPlayWhenFinished = false;
     Globals.get().mPlayer.stop();
     hidePlayer();
 
@@ -754,8 +778,9 @@ public class RecordActivity extends Activity
       mBooRecorder = null;
     }
 
-    // Instanciate recorder.
+    // Instanciate recorder, and have it ready for when record is pressed.
     mBooRecorder = new BooRecorder(this, mBoo, mRecordingHandler);
+    mBooRecorder.prepare();
   }
 
 
@@ -22,6 +22,7 @@ import java.util.LinkedList;
 import java.util.UUID;
 import java.util.Locale;
 
+import java.io.File;
 import java.io.Serializable;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
@@ -38,9 +39,29 @@ public class BooData implements Parcelable, Serializable
    **/
   public static class Recording implements Parcelable, Serializable
   {
+    // The value the class had before fields were added, so that existing Boo
+    // files still load.
+    private static final long serialVersionUID = 401580981087168965L;
+
+    // Verification states
+    public static final int VERIFY_UNKNOWN    = 0;
+    public static final int VERIFY_OK         = 1;
+    public static final int VERIFY_UNCHECKED  = 2; // Decodes, but has no MD5
+    public static final int VERIFY_CORRUPT    = 3;
+
     public String  mFilename;
     public double  mDuration;
 
+    // Outcome of the last verification, and the file's modification time
+    // then; see isVerified().
+    public int     mVerified;
+    public long    mVerifiedAt;
+
+    // The file's size and modification time when it was last made part of
+    // the Boo's flattened audio; see isFlattened().
+    public long    mFlattenedSize;
+    public long    mFlattenedAt;
+
     public Recording(String filename, double duration)
     {
       mFilename = filename;
@@ -60,6 +81,54 @@ public class BooData implements Parcelable, Serializable
     }
 
 
+    /**
+     * Returns true if nothing was recorded yet; a recorder may be writing to
+     * the file, see Boo.getLastEmptyRecording().
+     **/
+    public boolean isEmpty()
+    {
+      return 0 == mDuration;
+    }
+
+
+    /**
+     * Returns true if mVerified is up to date, i.e. the file was verified and
+     * hasn't been modified since.
+     **/
+    public boolean isVerified()
+    {
+      return VERIFY_UNKNOWN != mVerified
+        && new File(mFilename).lastModified() == mVerifiedAt;
+    }
+
+
+    public void setVerified(int state)
+    {
+      mVerified = state;
+      mVerifiedAt = new File(mFilename).lastModified();
+    }
+
+
+    /**
+     * Returns true if the file is part of the flattened audio, and hasn't
+     * been modified since it was added.
+     **/
+    public boolean isFlattened()
+    {
+      File f = new File(mFilename);
+      return 0 != mFlattenedSize && f.length() == mFlattenedSize
+        && f.lastModified() == mFlattenedAt;
+    }
+
+
+    public void setFlattened(boolean flattened)
+    {
+      File f = new File(mFilename);
+      mFlattenedSize = flattened ? f.length() : 0;
+      mFlattenedAt = flattened ? f.lastModified() : 0;
+    }
+
+
     /***************************************************************************
      * Parcelable implementation
      **/
@@ -74,6 +143,10 @@ public class BooData implements Parcelable, Serializable
     {
       out.writeString(mFilename);
       out.writeDouble(mDuration);
+      out.writeInt(mVerified);
+      out.writeLong(mVerifiedAt);
+      out.writeLong(mFlattenedSize);
+      out.writeLong(mFlattenedAt);
     }
 
 
@@ -97,6 +170,10 @@ public class BooData implements Parcelable, Serializable
     {
       mFilename = in.readString();
       mDuration = in.readDouble();
+      mVerified = in.readInt();
+      mVerifiedAt = in.readLong();
+      mFlattenedSize = in.readLong();
+      mFlattenedAt = in.readLong();
     }
   }
 
@@ -0,0 +1,155 @@
+/**
+ * This file is part of Audioboo, an android program for audio blogging.
+ * Copyright (C) 2011 Audioboo Ltd. All rights reserved.
+ *
+ * Author: Jens Finkhaeuser <jens@finkhaeuser.de>
+ *
+ * $Id$
+ **/
+
+package fm.audioboo.jni;
+
+import java.io.File;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.RandomAccessFile;
+import java.io.IOException;
+
+import java.util.Set;
+import java.util.HashSet;
+
+
+/**
+ * Salvages FLAC files from encoders that never got to finish, e.g. because
+ * the process was killed mid-recording.
+ *
+ * With EncoderConfig.mCheckpointPath set, the encoder periodically flushes
+ * its output and writes a checkpoint file holding two big-endian 64 bit
+ * values: the number of samples (per channel) in complete frames written so
+ * far, and the file offset just past the last of those frames. A finished
+ * stream removes its checkpoint file, so one lying around next to a FLAC file
+ * means that file is missing its STREAMINFO totals, and may end in a partial
+ * frame.
+ **/
+public class EncoderCheckpoint
+{
+  /***************************************************************************
+   * Public constants
+   **/
+  // Suggested extension for checkpoint files.
+  public static final String EXTENSION  = ".ckpt";
+
+
+  /***************************************************************************
+   * Private constants
+   **/
+  // Size of a checkpoint record.
+  private static final int CHECKPOINT_SIZE    = 16;
+
+  // "fLaC" marker plus STREAMINFO metadata block header.
+  private static final int STREAMINFO_OFFSET  = 8;
+  private static final int STREAMINFO_LENGTH  = 34;
+
+
+  /***************************************************************************
+   * Private data
+   **/
+  // Checkpoint paths of encoders that are still running.
+  private static final Set<String> sActive = new HashSet<String>();
+
+
+  /**
+   * Returns true if a checkpoint file exists for the given FLAC file.
+   **/
+  public static boolean exists(String flacPath)
+  {
+    return new File(flacPath + EXTENSION).exists();
+  }
+
+
+
+  /**
+   * Recovers the given FLAC file, if it has a checkpoint file: truncates it
+   * after the last checkpointed frame and fixes the total samples count in
+   * STREAMINFO, then removes the checkpoint file. Returns the duration of
+   * the recovered file in seconds, or -1 if there was nothing to recover.
+   *
+   * Files still being written to by an encoder in this process are left
+   * alone.
+   **/
+  public static double recover(String flacPath) throws IOException
+  {
+    File checkpoint = new File(flacPath + EXTENSION);
+    if (!checkpoint.exists() || isActive(checkpoint.getPath())) {
+      return -1;
+    }
+
+    long samples = 0;
+    long offset = 0;
+    DataInputStream is = new DataInputStream(new FileInputStream(checkpoint));
+    try {
+      samples = is.readLong();
+      offset = is.readLong();
+    } finally {
+      is.close();
+    }
+
+    RandomAccessFile file = new RandomAccessFile(flacPath, "rw");
+    try {
+      if (offset < STREAMINFO_OFFSET + STREAMINFO_LENGTH
+          || offset > file.length() || samples < 0)
+      {
+        throw new IOException("Checkpoint '" + checkpoint + "' does not match '"
+            + flacPath + "'.");
+      }
+      file.setLength(offset);
+
+      // STREAMINFO packs sample rate (20 bits), channels (3), bits per
+      // sample (5) and total samples (36) into bytes 10 to 17.
+      byte[] info = new byte[8];
+      file.seek(STREAMINFO_OFFSET + 10);
+      file.readFully(info);
+
+      int sampleRate = ((info[0] & 0xff) << 12) | ((info[1] & 0xff) << 4)
+        | ((info[2] & 0xff) >> 4);
+
+      info[3] = (byte) ((info[3] & 0xf0) | ((samples >> 32) & 0x0f));
+      for (int i = 0 ; i < 4 ; ++i) {
+        info[4 + i] = (byte) ((samples >> (24 - 8 * i)) & 0xff);
+      }
+      file.seek(STREAMINFO_OFFSET + 10);
+      file.write(info);
+
+      checkpoint.delete();
+      return (0 == sampleRate) ? 0 : (double) samples / sampleRate;
+    } finally {
+      file.close();
+    }
+  }
+
+
+
+  /**
+   * Called by FLACStreamEncoder while it writes checkpoints to path.
+   **/
+  static void setActive(String path, boolean active)
+  {
+    synchronized (sActive) {
+      if (active) {
+        sActive.add(path);
+      }
+      else {
+        sActive.remove(path);
+      }
+    }
+  }
+
+
+
+  private static boolean isActive(String path)
+  {
+    synchronized (sActive) {
+      return sActive.contains(path);
+    }
+  }
+}
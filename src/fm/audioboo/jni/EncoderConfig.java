@@ -0,0 +1,115 @@
+/**
+ * This file is part of Audioboo, an android program for audio blogging.
+ * Copyright (C) 2011 Audioboo Ltd. All rights reserved.
+ *
+ * Author: Jens Finkhaeuser <jens@finkhaeuser.de>
+ *
+ * $Id$
+ **/
+
+package fm.audioboo.jni;
+
+import java.util.Locale;
+
+
+/**
+ * Tuning parameters for FLACStreamEncoder. The defaults reproduce what the
+ * encoder used before it was configurable; lower compression levels and
+ * disabling verification trade file size and safety for CPU time.
+ *
+ * The native code reads the fields directly, so don't rename them.
+ **/
+public class EncoderConfig
+{
+  /***************************************************************************
+   * Public constants
+   **/
+  public static final int DEFAULT_COMPRESSION_LEVEL   = 5;
+  public static final int DEFAULT_WRITE_BUFFER_SIZE   = 32768;
+  public static final int DEFAULT_FIFO_DEPTH          = 16;
+  public static final int DEFAULT_SEEK_INTERVAL       = 10;
+  public static final int DEFAULT_SEEK_POINTS         = 128;
+  public static final int DEFAULT_CHECKPOINT_INTERVAL = 5;
+
+  // Use one encoder thread per CPU core.
+  public static final int THREADS_PER_CORE            = 0;
+
+  // Use the blocksize/LPC order implied by the compression level.
+  public static final int USE_LEVEL_DEFAULT           = -1;
+
+
+  /***************************************************************************
+   * Public data
+   **/
+  // FLAC compression level, 0 (fastest) to 8 (smallest).
+  public int      mCompressionLevel = DEFAULT_COMPRESSION_LEVEL;
+
+  // Decode every frame again while encoding, and compare the results.
+  public boolean  mVerify           = true;
+
+  // FLAC blocksize and maximum LPC order, or USE_LEVEL_DEFAULT.
+  public int      mBlocksize        = USE_LEVEL_DEFAULT;
+  public int      mMaxLPCOrder      = USE_LEVEL_DEFAULT;
+
+  // Size of each buffer handed to the writer thread, in samples, and the
+  // number of such buffers that may be queued. Together they cap the memory
+  // used for PCM waiting to be encoded, at 4 bytes per sample.
+  public int      mWriteBufferSize  = DEFAULT_WRITE_BUFFER_SIZE;
+  public int      mFifoDepth        = DEFAULT_FIFO_DEPTH;
+
+  // Number of encoder threads, or THREADS_PER_CORE. With more than one
+  // thread, blocks are encoded in parallel; that only pays off for input
+  // that arrives faster than real time, e.g. when transcoding.
+  public int      mThreads          = 1;
+
+  // File to spill PCM to once all buffers are queued, or null to make
+  // write() block instead. The file is deleted right after it's opened.
+  public String   mSpillPath        = null;
+
+  // Write a seek point every mSeekInterval seconds into a SEEKTABLE of
+  // mSeekPoints entries; if the recording outgrows the table, the interval
+  // is doubled. Set either to 0 to write no SEEKTABLE.
+  public int      mSeekInterval     = DEFAULT_SEEK_INTERVAL;
+  public int      mSeekPoints       = DEFAULT_SEEK_POINTS;
+
+  // File to write a checkpoint to every mCheckpointInterval seconds of
+  // audio, or null for no checkpoints. See EncoderCheckpoint.
+  public String   mCheckpointPath     = null;
+  public int      mCheckpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+
+
+  public EncoderConfig()
+  {
+  }
+
+
+
+  public EncoderConfig(EncoderConfig other)
+  {
+    mCompressionLevel = other.mCompressionLevel;
+    mVerify = other.mVerify;
+    mBlocksize = other.mBlocksize;
+    mMaxLPCOrder = other.mMaxLPCOrder;
+    mWriteBufferSize = other.mWriteBufferSize;
+    mFifoDepth = other.mFifoDepth;
+    mThreads = other.mThreads;
+    mSpillPath = other.mSpillPath;
+    mSeekInterval = other.mSeekInterval;
+    mSeekPoints = other.mSeekPoints;
+    mCheckpointPath = other.mCheckpointPath;
+    mCheckpointInterval = other.mCheckpointInterval;
+  }
+
+
+
+  public String toString()
+  {
+    return String.format(Locale.US, "[EncoderConfig:%d:%s:%d/%d:%dx%d:%d threads:%s:%dx%ds:%s/%ds]",
+        mCompressionLevel, mVerify ? "verify" : "no verify", mBlocksize,
+        mMaxLPCOrder, mFifoDepth, mWriteBufferSize, mThreads,
+        null == mSpillPath ? "no spill" : mSpillPath, mSeekPoints,
+        mSeekInterval,
+        null == mCheckpointPath ? "no checkpoint" : mCheckpointPath,
+        mCheckpointInterval);
+  }
+}
@@ -0,0 +1,84 @@
+/**
+ * This file is part of Audioboo, an android program for audio blogging.
+ * Copyright (C) 2011 Audioboo Ltd. All rights reserved.
+ *
+ * Author: Jens Finkhaeuser <jens@finkhaeuser.de>
+ *
+ * $Id$
+ **/
+
+package fm.audioboo.jni;
+
+import java.util.Locale;
+
+
+/**
+ * Snapshot of FLACStreamEncoder's pipeline state, see
+ * FLACStreamEncoder.getMetrics(). Times are in microseconds.
+ *
+ * The native code writes the fields directly, so don't rename them.
+ **/
+public class EncoderMetrics
+{
+  /***************************************************************************
+   * Public data
+   **/
+  // Buffers (and bytes of PCM in them) waiting for the writer thread, and
+  // bytes of PCM waiting in the spill file.
+  public int      mQueuedBuffers;
+  public long     mQueuedBytes;
+  public long     mSpilledBytes;
+
+  // Most buffers that were ever queued at the same time.
+  public int      mHighWaterMark;
+
+  // Number of buffers encoded, and the time that took.
+  public long     mChunks;
+  public long     mEncodeTimeMin;
+  public long     mEncodeTimeTotal;
+  public long     mEncodeTimeMax;
+
+  // Failed encoding attempts that were retried, and buffers that were
+  // dropped after all retries failed.
+  public int      mRetries;
+  public int      mFailures;
+
+  // Samples (per channel) encoded, and bytes of FLAC data written.
+  public long     mSamplesWritten;
+  public long     mBytesEmitted;
+
+
+  public long getEncodeTimeAverage()
+  {
+    if (0 == mChunks) {
+      return 0;
+    }
+    return mEncodeTimeTotal / mChunks;
+  }
+
+
+
+  /**
+   * Returns how many seconds of audio were encoded per second spent encoding;
+   * values below 1 mean the encoder can't keep up with live input.
+   **/
+  public double getRealTimeFactor(int sample_rate)
+  {
+    if (0 == mEncodeTimeTotal) {
+      return 0;
+    }
+    return (mSamplesWritten * 1000000.0 / sample_rate) / mEncodeTimeTotal;
+  }
+
+
+
+  public String toString()
+  {
+    return String.format(Locale.US, "[EncoderMetrics:%d/%d queued (%d bytes, "
+        + "%d spilled):%d chunks in %d/%d/%d us:%d retries:%d failures:"
+        + "%d samples:%d bytes]",
+        mQueuedBuffers, mHighWaterMark, mQueuedBytes, mSpilledBytes, mChunks,
+        mEncodeTimeMin, getEncodeTimeAverage(), mEncodeTimeMax, mRetries,
+        mFailures, mSamplesWritten, mBytesEmitted);
+  }
+}
@@ -0,0 +1,40 @@
+/**
+ * This file is part of Audioboo, an android program for audio blogging.
+ * Copyright (C) 2011 Audioboo Ltd. All rights reserved.
+ *
+ * Author: Jens Finkhaeuser <jens@finkhaeuser.de>
+ *
+ * $Id$
+ **/
+
+package fm.audioboo.jni;
+
+/**
+ * Joins FLAC files without decoding them: encoded frames are copied and
+ * renumbered, and STREAMINFO and a seek table are written for the result.
+ * That's only possible if all files share sample rate, channel count and
+ * bits per sample; the MD5 signature of the result is left unset.
+ **/
+public class FLACConcatenator
+{
+  /**
+   * Concatenates infiles into outfile. Input files that can't be opened are
+   * skipped. Returns false if the remaining files can't be joined this way,
+   * or if writing failed; outfile is not left behind then, and the files
+   * need to be transcoded instead.
+   **/
+  native public static boolean concatenate(String[] infiles, String outfile);
+
+  /**
+   * Appends infiles to outfile, which must have been written by concatenate()
+   * or append(). Input files that can't be opened are skipped. Returns false
+   * if the files can't be appended this way; outfile may be damaged then,
+   * and needs to be rebuilt from scratch.
+   **/
+  native public static boolean append(String[] infiles, String outfile);
+
+  // Load native library
+  static {
+    System.loadLibrary("audioboo-native");
+  }
+}
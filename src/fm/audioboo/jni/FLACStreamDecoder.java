@@ -11,6 +11,8 @@
 
 package fm.audioboo.jni;
 
+import java.io.InputStream;
+
 import java.nio.ByteBuffer;
 
 /**
@@ -22,6 +24,18 @@ import java.nio.ByteBuffer;
  **/
 public class FLACStreamDecoder
 {
+  /***************************************************************************
+   * Public constants
+   **/
+  // Input modes: read the file through stdio, or map it into memory. Mapping
+  // makes seeking cheap, and falls back to stdio for files that can't be
+  // mapped. Note that a mapped file is only read up to the size it had when
+  // the decoder was initialized.
+  public static final int INPUT_STDIO = 0;
+  public static final int INPUT_MMAP  = 1;
+
+
+
   /***************************************************************************
    * Interface
    **/
@@ -32,7 +46,48 @@ public class FLACStreamDecoder
    **/
   public FLACStreamDecoder(String infile)
   {
-    init(infile);
+    init(infile, INPUT_STDIO);
+  }
+
+
+
+  /**
+   * As above, but with one of the INPUT_* modes.
+   **/
+  public FLACStreamDecoder(String infile, int inputMode)
+  {
+    init(infile, inputMode);
+  }
+
+
+
+  /**
+   * Decodes the FLAC data between the position and the limit of a direct
+   * ByteBuffer, e.g. a cached blob. The buffer's contents must not change
+   * while the decoder is in use; its position and limit may.
+   **/
+  public FLACStreamDecoder(ByteBuffer data)
+  {
+    if (null == data) {
+      throw new IllegalArgumentException("No buffer given!");
+    }
+    initBuffer(data, data.position(), data.remaining());
+  }
+
+
+
+  /**
+   * Decodes FLAC data from a stream, e.g. one that is still being
+   * downloaded; reads block for as long as the stream does. Streams can't
+   * seek, so neither seekTo() nor decodeRange() work on such a decoder. The
+   * stream is not closed by the decoder.
+   *
+   * The stream is read from within the constructor and read(); exceptions it
+   * throws are logged, and end up as decoder errors.
+   **/
+  public FLACStreamDecoder(InputStream stream)
+  {
+    initStream(stream);
   }
 
 
@@ -45,9 +100,16 @@ public class FLACStreamDecoder
 
 
   public void reset(String infile)
+  {
+    reset(infile, INPUT_STDIO);
+  }
+
+
+
+  public void reset(String infile, int inputMode)
   {
     deinit();
-    init(infile);
+    init(infile, inputMode);
   }
 
 
@@ -73,7 +135,9 @@ public class FLACStreamDecoder
   /**
    * Constructor equivalent
    **/
-  native private void init(String infile);
+  native private void init(String infile, int inputMode);
+  native private void initBuffer(ByteBuffer data, int offset, int length);
+  native private void initStream(InputStream stream);
 
   /**
    * Destructor equivalent, but can be called multiple times.
@@ -96,18 +160,33 @@ public class FLACStreamDecoder
   native public int sampleRate();
 
   /**
-   * Returns the minimum buffer size you need to hand to read() below, or -1
-   * if it's unknown.
+   * Returns the size of the largest block in the infile, or -1 if it's
+   * unknown. read() below accepts buffers of any size, but reading at least
+   * this much at a time keeps the number of calls down.
    **/
   native public int minBufferSize();
 
   /**
-   * Reads data from the decoder, and writes it into the provided buffer. The
-   * buffer must be at least minBufferSize() in size.
-   * Returns the number of bytes actually read, or -1 on fatal errors.
+   * Reads data from the decoder, and writes it into the provided buffer.
+   * Decoded data that doesn't fit is kept for the next call, so bufsize may
+   * span several blocks or be smaller than one; it is rounded down to whole
+   * samples for all channels.
+   * Returns the number of bytes actually read, or a negative value at the end
+   * of the stream or on fatal errors.
    **/
   native public int read(ByteBuffer buffer, int bufsize);
 
+  /**
+   * Decodes sampleCount samples (per channel) starting exactly at startSample
+   * into out, which must be a direct buffer with room for sampleCount samples
+   * for all channels. Any pending seekTo() is dropped, and read() continues
+   * after the range.
+   * Returns the number of samples decoded, which is less than sampleCount
+   * only at the end of the stream, or a negative value on errors.
+   **/
+  native public int decodeRange(long startSample, int sampleCount,
+      ByteBuffer out);
+
   /**
    * Returns the number of samples in the file.
    **/
@@ -119,7 +198,7 @@ public class FLACStreamDecoder
   native public void seekTo(int sample);
 
   /**
-   * Returns read position, in samples.
+   * Returns read position, i.e. the sample the next read() starts at.
    **/
   native public int position();
 
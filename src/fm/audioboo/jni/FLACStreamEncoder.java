@@ -9,6 +9,8 @@
 
 package fm.audioboo.jni;
 
+import java.io.File;
+
 import java.nio.ByteBuffer;
 
 
@@ -18,6 +20,69 @@ import java.nio.ByteBuffer;
  **/
 public class FLACStreamEncoder
 {
+  /***************************************************************************
+   * Public constants
+   **/
+  // Backpressure states, see getBackpressure()
+  public static final int BACKPRESSURE_NONE     = 0;
+  public static final int BACKPRESSURE_BLOCKED  = 1;
+  public static final int BACKPRESSURE_SPILLING = 2;
+
+  // Indices into the array filled by getAmplitudes()
+  public static final int AMPLITUDE_PEAK        = 0;
+  public static final int AMPLITUDE_AVERAGE     = 1;
+  public static final int AMPLITUDE_POSITION    = 2;
+  public static final int AMPLITUDE_VALUES      = 3;
+
+
+
+  /***************************************************************************
+   * Destination for encoded data, as an alternative to writing to a file.
+   *
+   * Sink methods are called from the encoder's writer thread, and from
+   * whichever thread calls release(), or the release thread started by
+   * releaseAsync().
+   **/
+  public static interface Sink
+  {
+    /**
+     * Consume len bytes from the start of buffer. The buffer is reused after
+     * this call returns, so the data must be copied out. Return false on
+     * errors.
+     **/
+    public boolean write(ByteBuffer buffer, int len);
+
+    /**
+     * Return the current write position, or -1 if the sink does not support
+     * seeking. If it does, the encoder seeks back to the start of the stream
+     * when it's released, to write the final stream information.
+     **/
+    public long tell();
+
+    /**
+     * Move the write position to the given absolute offset. Only called if
+     * tell() returned a non-negative value. Return false on errors.
+     **/
+    public boolean seek(long offset);
+  }
+
+
+
+  /***************************************************************************
+   * Notified by releaseAsync() once the encoder is released.
+   **/
+  public static interface ReleaseListener
+  {
+    /**
+     * Called on the release thread, after all data has been encoded and the
+     * output has been closed. success is false if the stream could not be
+     * completed.
+     **/
+    public void onReleased(boolean success);
+  }
+
+
+
   /***************************************************************************
    * Interface
    **/
@@ -29,7 +94,32 @@ public class FLACStreamEncoder
   public FLACStreamEncoder(String outfile, int sample_rate, int channels,
       int bits_per_sample)
   {
-    init(outfile, sample_rate, channels, bits_per_sample);
+    init(outfile, sample_rate, channels, bits_per_sample, null);
+  }
+
+
+
+  /**
+   * As above, but with tuning parameters; config may be null, in which case
+   * defaults are used.
+   **/
+  public FLACStreamEncoder(String outfile, int sample_rate, int channels,
+      int bits_per_sample, EncoderConfig config)
+  {
+    init(outfile, sample_rate, channels, bits_per_sample, config);
+    activateCheckpoint(config);
+  }
+
+
+
+  /**
+   * As above, but writes encoded data to sink instead of a file.
+   **/
+  public FLACStreamEncoder(Sink sink, int sample_rate, int channels,
+      int bits_per_sample, EncoderConfig config)
+  {
+    initWithSink(sink, sample_rate, channels, bits_per_sample, config);
+    activateCheckpoint(config);
   }
 
 
@@ -37,15 +127,92 @@ public class FLACStreamEncoder
   public void release()
   {
     deinit();
+    deactivateCheckpoint();
+  }
+
+
+
+  /**
+   * Like release(), but returns right away; draining the write FIFO,
+   * finishing the stream and closing the output happen on a native thread.
+   * listener, which may be null, is notified when that's done. The encoder
+   * can't be written to afterwards, but may be reset().
+   **/
+  public void releaseAsync(final ReleaseListener listener)
+  {
+    // The checkpoint file is in use until the release thread is done.
+    final String checkpoint = mCheckpointPath;
+    mCheckpointPath = null;
+
+    releaseAsyncImpl(new ReleaseListener()
+    {
+      public void onReleased(boolean success)
+      {
+        if (null != checkpoint) {
+          EncoderCheckpoint.setActive(checkpoint, false);
+        }
+        if (null != listener) {
+          listener.onReleased(success);
+        }
+      }
+    });
   }
 
 
 
   public void reset(String outfile, int sample_rate, int channels,
       int bits_per_sample)
+  {
+    reset(outfile, sample_rate, channels, bits_per_sample, null);
+  }
+
+
+
+  public void reset(String outfile, int sample_rate, int channels,
+      int bits_per_sample, EncoderConfig config)
   {
     deinit();
-    init(outfile, sample_rate, channels, bits_per_sample);
+    deactivateCheckpoint();
+    init(outfile, sample_rate, channels, bits_per_sample, config);
+    activateCheckpoint(config);
+  }
+
+
+
+  /**
+   * Writes count 16 bit samples from pcm, starting at offset, to the encoder.
+   * The samples are converted straight from the array, which saves going
+   * through a direct ByteBuffer. Only valid for 16 bit encoders.
+   * Returns the number of samples actually written.
+   **/
+  public int write(short[] pcm, int offset, int count)
+  {
+    checkBounds(pcm.length, offset, count);
+    return writeShorts(pcm, offset, count);
+  }
+
+
+
+  /**
+   * As above, but for PCM in a byte array in native byte order. offset and
+   * count are in bytes, and so is the return value.
+   **/
+  public int write(byte[] pcm, int offset, int count)
+  {
+    checkBounds(pcm.length, offset, count);
+    return writeBytes(pcm, offset, count);
+  }
+
+
+
+  /**
+   * Returns a snapshot of the encoder's queue and writer thread statistics.
+   **/
+  public EncoderMetrics getMetrics()
+  {
+    EncoderMetrics metrics = new EncoderMetrics();
+    getMetrics(metrics);
+    return metrics;
   }
 
 
@@ -54,6 +221,7 @@ public class FLACStreamEncoder
   {
     try {
       deinit();
+      deactivateCheckpoint();
     } finally {
       super.finalize();
     }
@@ -61,6 +229,42 @@ public class FLACStreamEncoder
 
 
 
+  private static void checkBounds(int length, int offset, int count)
+  {
+    if (offset < 0 || count < 0 || offset > length - count) {
+      throw new ArrayIndexOutOfBoundsException("Cannot write " + count
+          + " samples at offset " + offset + " from an array of length "
+          + length);
+    }
+  }
+
+
+
+  /**
+   * Keeps EncoderCheckpoint from recovering the file while we write it.
+   **/
+  private void activateCheckpoint(EncoderConfig config)
+  {
+    if (null == config || null == config.mCheckpointPath) {
+      return;
+    }
+    mCheckpointPath = new File(config.mCheckpointPath).getPath();
+    EncoderCheckpoint.setActive(mCheckpointPath, true);
+  }
+
+
+
+  private void deactivateCheckpoint()
+  {
+    if (null == mCheckpointPath) {
+      return;
+    }
+    EncoderCheckpoint.setActive(mCheckpointPath, false);
+    mCheckpointPath = null;
+  }
+
+
+
   /***************************************************************************
    * JNI Implementation
    **/
@@ -68,11 +272,16 @@ public class FLACStreamEncoder
   // Pointer to opaque data in C
   private long  mObject;
 
+  // Checkpoint file written by the native encoder, if any.
+  private String  mCheckpointPath;
+
   /**
    * Constructor equivalent
    **/
   native private void init(String outfile, int sample_rate, int channels,
-      int bits_per_sample);
+      int bits_per_sample, EncoderConfig config);
+  native private void initWithSink(Sink sink, int sample_rate, int channels,
+      int bits_per_sample, EncoderConfig config);
 
   /**
    * Destructor equivalent, but can be called multiple times.
@@ -80,16 +289,17 @@ public class FLACStreamEncoder
   native private void deinit();
 
   /**
-   * Returns the maximum amplitude written to the file since the last call
-   * to this function.
+   * Hands the native encoder to a release thread, and forgets about it.
    **/
-  native public float getMaxAmplitude();
+  native private void releaseAsyncImpl(ReleaseListener listener);
 
   /**
-   * Returns the average amplitude written to the file since the last call
-   * to this function.
+   * Fills amplitudes, which must hold at least AMPLITUDE_VALUES entries, with
+   * the maximum and average amplitude written since the last call to this
+   * function, and the position after the last sample written, in msec. Must
+   * be called on the thread that calls write().
    **/
-  native public float getAverageAmplitude();
+  native public void getAmplitudes(float[] amplitudes);
 
   /**
    * Writes data to the encoder. The provided buffer must be at least as long
@@ -98,6 +308,26 @@ public class FLACStreamEncoder
    **/
   native public int write(ByteBuffer buffer, int bufsize);
 
+  /**
+   * Backends for write(short[], ...) and write(byte[], ...); overloaded
+   * native methods would need mangled names.
+   **/
+  native private int writeShorts(short[] pcm, int offset, int count);
+  native private int writeBytes(byte[] pcm, int offset, int bufsize);
+
+  /**
+   * Returns one of the BACKPRESSURE_* constants, describing whether the last
+   * write() had to wait for the encoder (BACKPRESSURE_BLOCKED), or had its
+   * data spilled to the file configured in EncoderConfig.mSpillPath
+   * (BACKPRESSURE_SPILLING).
+   **/
+  native public int getBackpressure();
+
+  /**
+   * Fills metrics with the current statistics.
+   **/
+  native private void getMetrics(EncoderMetrics metrics);
+
   /**
    * Flushes internal buffers to FIFO.
    **/
@@ -0,0 +1,125 @@
+/**
+ * This file is part of Audioboo, an android program for audio blogging.
+ * Copyright (C) 2011 Audioboo Ltd. All rights reserved.
+ *
+ * Author: Jens Finkhaeuser <jens@finkhaeuser.de>
+ *
+ * $Id$
+ **/
+
+package fm.audioboo.jni;
+
+import java.io.File;
+
+import java.util.Locale;
+
+
+/**
+ * Checks FLAC files for corruption by decoding them in full, without handing
+ * any PCM to Java. Decoding errors, a sample count that doesn't match
+ * STREAMINFO, or an MD5 sum that doesn't match the decoded audio all count
+ * as corruption.
+ *
+ * verify() blocks; cancel() may be called from any thread, and makes the
+ * current and all further verify() calls return RESULT_CANCELLED.
+ **/
+public class FLACVerifier
+{
+  /***************************************************************************
+   * Public constants
+   **/
+  // Results of verify(); keep in sync with FLACStreamDecoder.cpp
+  public static final int RESULT_OK           = 0;
+  // Decoded fine, but the file carries no MD5 sum to check against, e.g.
+  // because it was recovered after a crash.
+  public static final int RESULT_NO_CHECKSUM  = 1;
+  public static final int RESULT_CORRUPT      = 2;
+  public static final int RESULT_CANCELLED    = 3;
+
+
+  /***************************************************************************
+   * Private data
+   **/
+  // Read by the native code between frames.
+  private volatile boolean  mCancelled;
+
+  // Throughput statistics, over all verify() calls.
+  private long              mFiles;
+  private long              mBytes;
+  private long              mNanos;
+
+
+  /***************************************************************************
+   * Implementation
+   **/
+
+  /**
+   * Verifies the given file, and returns one of the RESULT_* constants.
+   * Throws IllegalArgumentException if the file can't be opened.
+   **/
+  public int verify(String path)
+  {
+    if (mCancelled) {
+      return RESULT_CANCELLED;
+    }
+
+    long start = System.nanoTime();
+    int result = verifyFile(path);
+
+    synchronized (this) {
+      ++mFiles;
+      mBytes += new File(path).length();
+      mNanos += System.nanoTime() - start;
+    }
+    return result;
+  }
+
+
+
+  public void cancel()
+  {
+    mCancelled = true;
+  }
+
+
+
+  public boolean isCancelled()
+  {
+    return mCancelled;
+  }
+
+
+
+  /**
+   * Returns the number of bytes of FLAC data verified per second.
+   **/
+  public synchronized double getThroughput()
+  {
+    if (0 == mNanos) {
+      return 0;
+    }
+    return mBytes * 1000000000.0 / mNanos;
+  }
+
+
+
+  public synchronized String toString()
+  {
+    return String.format(Locale.US, "[FLACVerifier:%d files:%d bytes in %d ms:"
+        + "%.1f kB/s%s]", mFiles, mBytes, mNanos / 1000000,
+        getThroughput() / 1024, mCancelled ? ":cancelled" : "");
+  }
+
+
+
+  /***************************************************************************
+   * JNI Implementation
+   **/
+
+  native private int verifyFile(String path);
+
+  // Load native library
+  static {
+    System.loadLibrary("audioboo-native");
+  }
+}
@@ -0,0 +1,192 @@
+/**
+ * This file is part of Audioboo, an android program for audio blogging.
+ * Copyright (C) 2011 Audioboo Ltd. All rights reserved.
+ *
+ * Author: Jens Finkhaeuser <jens@finkhaeuser.de>
+ *
+ * $Id$
+ **/
+
+package fm.audioboo.jni;
+
+import java.io.File;
+import java.io.DataInputStream;
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Waveform summary of one or more FLAC files: the minimum, maximum and RMS
+ * of each bucket of samples (per channel), taken over all channels and
+ * scaled to 16 bit. Several files are summarized as if they were played one
+ * after the other.
+ *
+ * Summaries are computed natively, without passing PCM through Java, and
+ * stored in a file of their own:
+ *
+ *   "PEAK", version (int), stamp (long), sample rate (int), bucket size (int),
+ *   bucket count (int), then min, max and RMS (short each) per bucket
+ *
+ * all big-endian. The stamp is derived from the paths and modification times
+ * of the summarized files; get() regenerates the summary once it no longer
+ * matches.
+ **/
+public class PeakSummary
+{
+  /***************************************************************************
+   * Public constants
+   **/
+  // Suggested extension for summary files.
+  public static final String EXTENSION            = ".peaks";
+
+  // Default number of samples (per channel) per bucket.
+  public static final int DEFAULT_BUCKET_SIZE     = 256;
+
+
+  /***************************************************************************
+   * Private constants
+   **/
+  // File format version; keep in sync with FLACStreamDecoder.cpp
+  private static final int VERSION                = 1;
+
+
+  /***************************************************************************
+   * Public data
+   **/
+  public int      mSampleRate;
+  public int      mBucketSize;
+
+  public short[]  mMin;
+  public short[]  mMax;
+  public short[]  mRms;
+
+
+  /**
+   * Returns the summary of infiles stored at path, regenerating it first if
+   * it's missing, out of date, or was made with a different bucket size.
+   * Input files that can't be decoded are left out.
+   **/
+  public static PeakSummary get(String[] infiles, String path, int bucketSize)
+    throws IOException
+  {
+    long stamp = stamp(infiles);
+
+    PeakSummary summary = read(path, stamp);
+    if (null != summary && summary.mBucketSize == bucketSize) {
+      return summary;
+    }
+
+    try {
+      generate(infiles, bucketSize, path, stamp);
+    } catch (IllegalArgumentException ex) {
+      throw new IOException(ex.getMessage());
+    }
+
+    summary = read(path, stamp);
+    if (null == summary) {
+      throw new IOException("Could not read back peak summary '" + path + "'.");
+    }
+    return summary;
+  }
+
+
+
+  /**
+   * Returns the number of buckets.
+   **/
+  public int buckets()
+  {
+    return mMin.length;
+  }
+
+
+
+  /**
+   * Returns the duration of a bucket in seconds.
+   **/
+  public double bucketDuration()
+  {
+    return (0 == mSampleRate) ? 0 : (double) mBucketSize / mSampleRate;
+  }
+
+
+
+  /**
+   * Reads the summary at path; returns null if there is none, or if it
+   * doesn't carry the given stamp.
+   **/
+  private static PeakSummary read(String path, long stamp) throws IOException
+  {
+    File file = new File(path);
+    if (!file.exists()) {
+      return null;
+    }
+
+    DataInputStream is = new DataInputStream(new BufferedInputStream(
+          new FileInputStream(file)));
+    try {
+      byte[] magic = new byte[4];
+      is.readFully(magic);
+      if (!"PEAK".equals(new String(magic, "US-ASCII"))
+          || VERSION != is.readInt()
+          || stamp != is.readLong())
+      {
+        return null;
+      }
+
+      PeakSummary summary = new PeakSummary();
+      summary.mSampleRate = is.readInt();
+      summary.mBucketSize = is.readInt();
+
+      int count = is.readInt();
+      if (count < 0 || 28 + 6l * count != file.length()) {
+        return null;
+      }
+      summary.mMin = new short[count];
+      summary.mMax = new short[count];
+      summary.mRms = new short[count];
+      for (int i = 0 ; i < count ; ++i) {
+        summary.mMin[i] = is.readShort();
+        summary.mMax[i] = is.readShort();
+        summary.mRms[i] = is.readShort();
+      }
+      return summary;
+    } finally {
+      is.close();
+    }
+  }
+
+
+
+  /**
+   * Changes whenever one of the files changes, or the list of files does.
+   **/
+  private static long stamp(String[] infiles)
+  {
+    long stamp = infiles.length;
+    for (String infile : infiles) {
+      stamp = 31 * stamp + infile.hashCode();
+      stamp = 31 * stamp + new File(infile).lastModified();
+    }
+    return stamp;
+  }
+
+
+
+  /***************************************************************************
+   * JNI Implementation
+   **/
+
+  /**
+   * Decodes infiles in order, and writes their summary to outfile along with
+   * the given stamp. Throws IllegalArgumentException if the summary can't be
+   * written.
+   **/
+  native private static void generate(String[] infiles, int bucketSize,
+      String outfile, long stamp);
+
+  // Load native library
+  static {
+    System.loadLibrary("audioboo-native");
+  }
+}
@@ -12,6 +12,7 @@ package fm.audioboo.service;
 import android.content.Context;
 
 import fm.audioboo.application.FLACPlayer;
+import fm.audioboo.application.FLACPlaylist;
 import fm.audioboo.application.Boo;
 
 import android.util.Log;
@@ -59,13 +60,33 @@ public class FLACPlayerWrapper extends PlayerBase
     }
 
 
-    // Flatten audio file before we can start playback. This call will return
-    // quickly if the file is already flattend, and will block while flattening.
-    boo.flattenAudio();
+    // Play the recordings back to back, so playback starts right away.
+    FLACPlaylist playlist = null;
+    String[] files = boo.getRecordingFilenames();
+    if (null != files) {
+      try {
+        playlist = new FLACPlaylist(files);
+      } catch (IllegalArgumentException ex) {
+        Log.d(LTAG, "Can't play recordings back to back: " + ex.getMessage());
+      }
+    }
 
     // Start playback
-    String filename = boo.mData.mHighMP3Url.getPath();
-    mFlacPlayer = new FLACPlayer(ctx, filename);
+    if (null != playlist) {
+      mFlacPlayer = new FLACPlayer(ctx, playlist);
+    }
+    else {
+      // Flatten audio file before we can start playback. This call will return
+      // quickly if the file is already flattend, and will block while flattening.
+      boo.flattenAudio();
+      if (null == boo.mData.mHighMP3Url) {
+        Log.e(LTAG, "Boo has no audio, won't play.");
+        return false;
+      }
+
+      String filename = boo.mData.mHighMP3Url.getPath();
+      mFlacPlayer = new FLACPlayer(ctx, filename);
+    }
 
     mFlacPlayer.setListener(new FLACPlayer.PlayerListener() {
       public void onError()
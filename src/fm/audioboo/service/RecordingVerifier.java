@@ -0,0 +1,192 @@
+/**
+ * This file is part of Audioboo, an android program for audio blogging.
+ * Copyright (C) 2011 Audioboo Ltd.
+ * All rights reserved.
+ *
+ * Author: Jens Finkhaeuser <jens@finkhaeuser.de>
+ *
+ * $Id$
+ **/
+
+package fm.audioboo.service;
+
+import android.os.Process;
+
+import java.io.File;
+
+import fm.audioboo.application.Boo;
+
+import fm.audioboo.data.BooData;
+
+import fm.audioboo.jni.FLACVerifier;
+
+import android.util.Log;
+
+/**
+ * Verifies a Boo's recordings on a low priority background thread, and
+ * records the outcome in the recordings' metadata, see FLACVerifier. Only
+ * one Boo is verified at a time. Empty recordings are left alone; a recorder
+ * may still be writing to them.
+ **/
+public class RecordingVerifier
+{
+  /***************************************************************************
+   * Private constants
+   **/
+  // Log ID
+  private static final String LTAG  = "RecordingVerifier";
+
+
+  /***************************************************************************
+   * Listener interface
+   **/
+  public static interface Listener
+  {
+    /**
+     * Called on the verifier thread once all of the Boo's recordings were
+     * verified; not called if verification was cancelled.
+     **/
+    public void onVerified(Boo boo);
+  }
+
+
+  /***************************************************************************
+   * Private data
+   **/
+  private Thread        mThread;
+  private FLACVerifier  mVerifier;
+
+
+  /***************************************************************************
+   * Implementation
+   **/
+
+  /**
+   * Returns true if none of the Boo's recordings need verifying.
+   **/
+  public static boolean isVerified(Boo boo)
+  {
+    if (null == boo.mData.mRecordings) {
+      return true;
+    }
+    for (BooData.Recording rec : boo.mData.mRecordings) {
+      if (!rec.isEmpty() && new File(rec.mFilename).exists()
+          && !rec.isVerified())
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+
+
+  /**
+   * Returns true if none of the Boo's recordings were found to be corrupt.
+   **/
+  public static boolean isIntact(Boo boo)
+  {
+    if (null == boo.mData.mRecordings) {
+      return true;
+    }
+    for (BooData.Recording rec : boo.mData.mRecordings) {
+      if (BooData.Recording.VERIFY_CORRUPT == rec.mVerified
+          && !rec.isEmpty() && new File(rec.mFilename).exists())
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+
+
+  /**
+   * Starts verifying the recordings of the given Boo that aren't verified
+   * yet, unless a verification is running already.
+   **/
+  public synchronized void verify(final Boo boo, final Listener listener)
+  {
+    if (null != mThread) {
+      return;
+    }
+
+    final FLACVerifier verifier = new FLACVerifier();
+    mVerifier = verifier;
+    mThread = new Thread() {
+      public void run()
+      {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+        boolean changed = false;
+        for (BooData.Recording rec : boo.mData.mRecordings) {
+          if (rec.isEmpty() || !new File(rec.mFilename).exists()
+              || rec.isVerified())
+          {
+            continue;
+          }
+
+          int result = FLACVerifier.RESULT_CORRUPT;
+          try {
+            result = verifier.verify(rec.mFilename);
+          } catch (IllegalArgumentException ex) {
+            Log.e(LTAG, "Could not verify " + rec + ": " + ex.getMessage());
+          }
+
+          if (FLACVerifier.RESULT_CANCELLED == result) {
+            break;
+          }
+          if (FLACVerifier.RESULT_OK != result) {
+            Log.w(LTAG, "Verification result for " + rec + ": " + result);
+          }
+          rec.setVerified(toState(result));
+          changed = true;
+        }
+
+        if (changed) {
+          boo.writeToFile();
+        }
+        Log.i(LTAG, "Verified " + boo.mData.mFilename + ": " + verifier);
+
+        synchronized (RecordingVerifier.this) {
+          mThread = null;
+          mVerifier = null;
+        }
+
+        if (!verifier.isCancelled() && null != listener) {
+          listener.onVerified(boo);
+        }
+      }
+    };
+    mThread.start();
+  }
+
+
+
+  /**
+   * Cancels a running verification; recordings verified so far keep their
+   * state.
+   **/
+  public synchronized void cancel()
+  {
+    if (null != mVerifier) {
+      mVerifier.cancel();
+    }
+  }
+
+
+
+  private static int toState(int result)
+  {
+    switch (result) {
+      case FLACVerifier.RESULT_OK:
+        return BooData.Recording.VERIFY_OK;
+
+      case FLACVerifier.RESULT_NO_CHECKSUM:
+        return BooData.Recording.VERIFY_UNCHECKED;
+
+      default:
+        return BooData.Recording.VERIFY_CORRUPT;
+    }
+  }
+}
@@ -126,6 +126,16 @@ public class UploadManager
   private int                     mChunkSize      = Constants.MIN_UPLOAD_CHUNK_SIZE;
   private long                    mUploadStarted  = -1;
 
+  // Recordings are verified before their audio is uploaded.
+  private RecordingVerifier       mVerifier       = new RecordingVerifier();
+  private RecordingVerifier.Listener  mVerifyListener = new RecordingVerifier.Listener() {
+      public void onVerified(Boo boo)
+      {
+        // Continue where processAudioStage() left off.
+        mHandler.sendEmptyMessage(API.ERR_SUCCESS);
+      }
+  };
+
   private Handler                 mHandler        = new Handler(new Handler.Callback() {
       public boolean handleMessage(Message msg)
       {
@@ -153,7 +163,12 @@ public class UploadManager
 
   public void stop()
   {
+    mVerifier.cancel();
     mThread.mShouldRun = false;
+    Boo boo = mBooUpload;
+    if (null != boo) {
+      boo.cancelFlatten();
+    }
     mThread.interrupt();
   }
 
@@ -329,11 +344,36 @@ public class UploadManager
       adjustChunkSize(diff, result);
     }
 
+    // Before starting to upload audio, make sure the recordings aren't
+    // corrupt. Verification runs in the background, and resumes processing
+    // once it's done.
+    if (-1 == mBooUpload.mData.mUploadInfo.mAudioChunkId) {
+      if (!RecordingVerifier.isVerified(mBooUpload)) {
+        mVerifier.verify(mBooUpload, mVerifyListener);
+        return false;
+      }
+      if (!RecordingVerifier.isIntact(mBooUpload)) {
+        Log.e(LTAG, "Not uploading corrupt recordings: " + mBooUpload);
+        setNotification(mBooUpload, Constants.NOTIFICATION_UPLOAD_ERROR);
+        mBooUpload = null;
+        return false;
+      }
+    }
+
     // Create a new attachment if we don't have an ID yet. Otherwise add to the
     // pre-existing attachment.
     mUploadStarted = System.currentTimeMillis();
     if (-1 == mBooUpload.mData.mUploadInfo.mAudioChunkId) {
       mBooUpload.flattenAudio();
+      if (null == mBooUpload.mData.mHighMP3Url) {
+        // Flattening is only cancelled when we're being stopped.
+        if (mThread.mShouldRun) {
+          Log.e(LTAG, "Could not flatten audio: " + mBooUpload);
+          setNotification(mBooUpload, Constants.NOTIFICATION_UPLOAD_ERROR);
+          mBooUpload = null;
+        }
+        return false;
+      }
       Globals.get().mAPI.createAttachment(mBooUpload.mData.mHighMP3Url.getPath(), 0,
           mChunkSize, mHandler);
     }